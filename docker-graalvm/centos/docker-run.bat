@@ -2,5 +2,5 @@
 if "%~2"=="" (
     echo Se debe indicar el tag a utilizar como parametro. Ej. docker-run.bat 1.0.0-SNAPSHOT [PROJECT-PATH]
 ) else (
-	docker run --volume %~2:/project tools/graalvm-jdk8-centos:%~1
+	docker run --volume %~2:/project tools/graalvm-jdk17-centos:%~1
 )
\ No newline at end of file
@@ -1,10 +1,8 @@
 #!/bin/bash
 
-$JAVA_HOME/bin/native-image --no-server \
-         --class-path /project/target/environment-var-replacer.jar \
+$JAVA_HOME/bin/native-image --class-path /project/target/environment-var-replacer.jar \
 	     -H:Name=environment-var-replacer-ubuntu \
 	     -H:Class=com.github.arielcarrera.env.var.replacer.EnvVarReplacer \
-	     -H:+ReportUnsupportedElementsAtRuntime \
-	     -H:+AllowVMInspection
+	     --enable-monitoring
 		 
-#-H:ReflectionConfigurationFiles=build/reflect.json \
+# --no-fallback, reflection, resources and -H:+AddAllCharsets are read from META-INF/native-image in the jar
@@ -2,5 +2,5 @@
 if "%~1"=="" (
     echo Se debe indicar el tag a utilizar como parametro. Ej. docker-build.bat 1.0.0-SNAPSHOT
 ) else (
-	docker build . -f Dockerfile -t tools/graalvm-jdk8-ubuntu:%~1
+	docker build . -f Dockerfile -t tools/graalvm-jdk17-ubuntu:%~1
 )
\ No newline at end of file
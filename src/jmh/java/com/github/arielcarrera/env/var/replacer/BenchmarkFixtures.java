@@ -0,0 +1,105 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inputs of the benchmarks, generated from the templates of test-resources.
+ * Benchmarks are run from the project directory.
+ */
+final class BenchmarkFixtures {
+
+	private static final Pattern EXPRESSION = Pattern.compile("\\$\\{[A-Za-z0-9_.-]+(:[^}$]*)?\\}");
+
+	private BenchmarkFixtures() {
+	}
+
+	/**
+	 * @return values of the keys used by the templates
+	 */
+	static Properties values() {
+		Properties properties = new Properties();
+		for (String key : new String[] { "VAR_A", "VAR_B", "VAR_C", "VAR_D", "VAR_E", "VAR_F" }) {
+			properties.setProperty(key, key.toLowerCase());
+		}
+		properties.setProperty("VAR_3_REQUIRED", "Test!");
+		return properties;
+	}
+
+	/**
+	 * @return lines of a template
+	 */
+	static List<String> lines(String template) throws IOException {
+		return Files.readAllLines(Paths.get("test-resources", template));
+	}
+
+	/**
+	 * @return expressions of a template, nested expressions are not included
+	 */
+	static List<String> expressions(String template) throws IOException {
+		List<String> expressions = new ArrayList<String>();
+		for (String line : lines(template)) {
+			Matcher matcher = EXPRESSION.matcher(line);
+			while (matcher.find()) {
+				expressions.add(matcher.group());
+			}
+		}
+		return expressions;
+	}
+
+	/**
+	 * Builds a line with a number of expressions of test7, lines without
+	 * expressions have the same literal text.
+	 */
+	static String line(int expressions) throws IOException {
+		List<String> all = expressions("test7-multipleinline-template.xml");
+		StringBuilder sb = new StringBuilder("\t\t<source name=\"java:/test\">");
+		for (int i = 0; i < Math.max(expressions, 1); i++) {
+			sb.append("<x").append(i).append('>');
+			sb.append(expressions > 0 ? all.get(i % all.size()) : "value");
+			sb.append("</x").append(i).append('>');
+		}
+		return sb.append("</source>").toString();
+	}
+
+	/**
+	 * Writes a file repeating test1 and test7 templates until it reaches the
+	 * size.
+	 */
+	static Path file(Path directory, long size) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		lines.addAll(lines("test1-template.xml"));
+		lines.addAll(lines("test7-multipleinline-template.xml"));
+		Path path = directory.resolve("input-" + size + ".xml");
+		long written = 0;
+		try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+			while (written < size) {
+				for (String line : lines) {
+					writer.write(line);
+					writer.write('\n');
+					written += line.length() + 1;
+				}
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * @return size in bytes of values like 1KB or 100MB
+	 */
+	static long parseSize(String size) {
+		if (size.endsWith("MB"))
+			return Long.parseLong(size.substring(0, size.length() - 2)) * 1024 * 1024;
+		if (size.endsWith("KB"))
+			return Long.parseLong(size.substring(0, size.length() - 2)) * 1024;
+		return Long.parseLong(size);
+	}
+}
@@ -0,0 +1,102 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the substitution of single lines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ExpressionScannerBenchmark {
+
+	@State(Scope.Thread)
+	public static class Placeholders {
+		@Param({ "0", "1", "10", "100" })
+		public int count;
+
+		String line;
+		ExpressionScanner scanner;
+
+		@Setup
+		public void setup() throws IOException {
+			line = BenchmarkFixtures.line(count);
+			Properties values = BenchmarkFixtures.values();
+			scanner = new ExpressionScanner(null, values::getProperty);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class EscapedDefaults {
+		String line;
+		ExpressionScanner scanner;
+
+		@Setup
+		public void setup() {
+			StringBuilder sb = new StringBuilder("\t\t<content>");
+			for (int i = 0; i < 10; i++) {
+				// undefined keys, the defaults are used
+				sb.append("${VAR_").append(i).append("_CON_DEFAULT:function() { return \\} + ").append(i).append(" \\}}");
+			}
+			line = sb.append("</content>").toString();
+			scanner = new ExpressionScanner(null, key -> null);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class FilteredPrefixes {
+		String block;
+		Replacer replacer;
+
+		@Setup
+		public void setup() throws IOException {
+			String[] prefixes = new String[32];
+			for (int i = 0; i < prefixes.length; i++) {
+				prefixes[i] = "team" + i + ".";
+			}
+			StringBuilder sb = new StringBuilder();
+			for (String line : BenchmarkFixtures.lines("test10-template.xml")) {
+				// expressions of other prefixes are skipped regions
+				sb.append(line).append(" ${team31.VAR_A} test\n");
+			}
+			block = sb.toString();
+			replacer = new Replacer(ReplacerConfig.builder().filterPrefixes(prefixes).removePrefix("team31.")
+					.valueSource(ValueSource.properties(BenchmarkFixtures.values())).build());
+		}
+	}
+
+	@Benchmark
+	public String placeholders(Placeholders state) throws RequiredEnvironmentVariableException {
+		return state.scanner.processLine(state.line).toString();
+	}
+
+	@Benchmark
+	public String escapedDefaults(EscapedDefaults state) throws RequiredEnvironmentVariableException {
+		return state.scanner.processLine(state.line).toString();
+	}
+
+	@Benchmark
+	public String filteredPrefixes(FilteredPrefixes state) throws ReplacerException {
+		StringWriter writer = new StringWriter(state.block.length());
+		state.replacer.replace(new StringReader(state.block), writer);
+		return writer.toString();
+	}
+}
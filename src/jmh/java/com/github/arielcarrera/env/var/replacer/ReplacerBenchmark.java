@@ -0,0 +1,69 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the replacement of whole files. The output is deleted before
+ * every invocation, so it is always written.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReplacerBenchmark {
+
+	@Param({ "1KB", "1MB", "100MB" })
+	public String size;
+
+	@Param({ "false", "true" })
+	public boolean memoryMapped;
+
+	private Path directory;
+	private Path input;
+	private Path output;
+	private Replacer replacer;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("replacer-benchmark");
+		input = BenchmarkFixtures.file(directory, BenchmarkFixtures.parseSize(size));
+		output = directory.resolve("output.xml");
+		replacer = new Replacer(ReplacerConfig.builder().memoryMapped(memoryMapped)
+				.valueSource(ValueSource.properties(BenchmarkFixtures.values())).build());
+	}
+
+	@Setup(Level.Invocation)
+	public void deleteOutput() throws IOException {
+		Files.deleteIfExists(output);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	@Benchmark
+	public ReplaceResult replace() throws ReplacerException {
+		return replacer.replace(input, output);
+	}
+}
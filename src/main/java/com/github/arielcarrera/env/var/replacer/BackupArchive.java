@@ -0,0 +1,98 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Zip file where the original files of a run are saved, instead of a .bak file
+ * for each of them. Files are streamed into the archive when they are backed
+ * up, the archive is created with the first file and it is complete when it is
+ * closed.
+ * <p>
+ * Entries are named by the path of the files, without root. A file is saved
+ * once, with its content when it is first backed up: later backups of the same
+ * file, by a reused replacer or in watch mode, are skipped. Instances are
+ * thread-safe.
+ */
+public final class BackupArchive implements Closeable {
+
+	private final Path path;
+	private final boolean override;
+	private final Set<String> entries = new HashSet<String>();
+	private ZipOutputStream out;
+	private boolean closed;
+
+	/**
+	 * @param path     zip file to create
+	 * @param override true to override the file if it exists
+	 */
+	public BackupArchive(Path path, boolean override) {
+		this.path = path;
+		this.override = override;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return true if the archive can not be created because it exists and it
+	 *         can not be overridden
+	 */
+	boolean isBlocked() {
+		return !override && out == null && Files.exists(path);
+	}
+
+	/**
+	 * Adds a file to the archive, creating the archive with the first file.
+	 * Nothing is added if the file is already in the archive.
+	 *
+	 * @throws java.nio.file.FileAlreadyExistsException if the archive exists and
+	 *                                                  it can not be overridden
+	 */
+	synchronized void add(Path file) throws IOException {
+		if (closed) {
+			throw new IOException("Backup archive is closed: " + path);
+		}
+		if (out == null) {
+			out = new ZipOutputStream(new BufferedOutputStream(override
+					? Files.newOutputStream(path)
+					: Files.newOutputStream(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)));
+		}
+		String name = entryName(file);
+		if (!entries.add(name)) {
+			return;
+		}
+		out.putNextEntry(new ZipEntry(name));
+		Files.copy(file, out);
+		out.closeEntry();
+	}
+
+	/**
+	 * Completes the archive, it can not be used after closing it.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		closed = true;
+		if (out != null) {
+			out.close();
+		}
+	}
+
+	private static String entryName(Path file) {
+		Path absolute = file.toAbsolutePath().normalize();
+		Path root = absolute.getRoot();
+		String name = root != null ? root.relativize(absolute).toString() : absolute.toString();
+		return FilenameUtils.separatorsToUnix(name);
+	}
+}
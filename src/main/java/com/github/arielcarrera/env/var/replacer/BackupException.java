@@ -0,0 +1,16 @@
+package com.github.arielcarrera.env.var.replacer;
+
+/**
+ * The backup file can not be created.
+ */
+public class BackupException extends ReplacerException {
+	private static final long serialVersionUID = -6410528436374512395L;
+
+	public BackupException(int errorCode, String message) {
+		super(errorCode, message);
+	}
+
+	public BackupException(int errorCode, String message, Throwable cause) {
+		super(errorCode, message, cause);
+	}
+}
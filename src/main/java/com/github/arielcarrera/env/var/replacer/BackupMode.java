@@ -0,0 +1,19 @@
+package com.github.arielcarrera.env.var.replacer;
+
+/**
+ * Backup of the original file before it is replaced.
+ */
+public enum BackupMode {
+	/**
+	 * No backup file is created
+	 */
+	NONE,
+	/**
+	 * A .bak file is created, it fails if the file already exists
+	 */
+	CREATE,
+	/**
+	 * A .bak file is created, it overrides the file if it already exists
+	 */
+	FORCE
+}
@@ -0,0 +1,24 @@
+package com.github.arielcarrera.env.var.replacer;
+
+/**
+ * How the original file is saved when backups are enabled by
+ * {@link BackupMode}.
+ */
+public enum BackupStrategy {
+	/**
+	 * The file is copied to a .bak file
+	 */
+	COPY,
+	/**
+	 * A .bak hard link to the file is created, the file is copied if links are
+	 * not supported or the backup is in another device. Outputs are replaced by
+	 * moving a new file, so the link keeps the original content as long as the
+	 * file is not modified in place by other tools
+	 */
+	LINK,
+	/**
+	 * The file is added to the {@link BackupArchive} of the run, no .bak file is
+	 * created
+	 */
+	ARCHIVE
+}
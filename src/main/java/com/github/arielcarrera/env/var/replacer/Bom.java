@@ -0,0 +1,149 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Byte order marks of Unicode charsets. A file that starts with a byte order
+ * mark is decoded with the charset of the mark, whatever the configured
+ * charset, and the mark is written to the output as it was read, so the output
+ * is encoded like the input and untouched bytes are kept.
+ * <p>
+ * Marks are matched in order: a file that starts with FF FE 00 00 is read as
+ * UTF-32LE, not as UTF-16LE starting with a null char. UTF-32 marks are only
+ * matched if the runtime supports UTF-32.
+ */
+enum Bom {
+	UTF_8(StandardCharsets.UTF_8.name(), 0xEF, 0xBB, 0xBF),
+	UTF_32LE("UTF-32LE", 0xFF, 0xFE, 0x00, 0x00),
+	UTF_32BE("UTF-32BE", 0x00, 0x00, 0xFE, 0xFF),
+	UTF_16BE(StandardCharsets.UTF_16BE.name(), 0xFE, 0xFF),
+	UTF_16LE(StandardCharsets.UTF_16LE.name(), 0xFF, 0xFE);
+
+	/**
+	 * Bytes of the longest mark
+	 */
+	static final int MAX_LENGTH = 4;
+
+	private final Charset charset;
+	private final byte[] bytes;
+
+	Bom(String charset, int... bytes) {
+		this.charset = Charset.isSupported(charset) ? Charset.forName(charset) : null;
+		this.bytes = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			this.bytes[i] = (byte) bytes[i];
+		}
+	}
+
+	/**
+	 * @return charset of the text after the mark
+	 */
+	Charset getCharset() {
+		return charset;
+	}
+
+	/**
+	 * @return bytes of the mark, they must not be modified
+	 */
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	int length() {
+		return bytes.length;
+	}
+
+	/**
+	 * @return the charset of the mark, or the default charset if there is no
+	 *         mark
+	 */
+	static Charset charset(Bom bom, Charset defaultCharset) {
+		if (bom != null) {
+			return bom.charset;
+		}
+		// the encoder of UTF-16 writes a mark, text without mark is big endian
+		return defaultCharset.equals(StandardCharsets.UTF_16) ? StandardCharsets.UTF_16BE : defaultCharset;
+	}
+
+	/**
+	 * @param head   first bytes of a file
+	 * @param length number of bytes of the head
+	 * @return the mark the head starts with, null if it does not start with a
+	 *         mark
+	 */
+	static Bom of(byte[] head, int length) {
+		for (Bom bom : values()) {
+			if (bom.charset != null && bom.matches(head, length)) {
+				return bom;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the first bytes of a file
+	 *
+	 * @return the mark of the file, null if it has no mark
+	 */
+	static Bom read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer head = ByteBuffer.allocate(MAX_LENGTH);
+			while (head.hasRemaining() && channel.read(head) > 0) {
+				// a read can return less bytes than requested
+			}
+			return of(head.array(), head.position());
+		}
+	}
+
+	/**
+	 * Reads the mark of a stream, the bytes that are not part of the mark are
+	 * read again from the returned stream
+	 *
+	 * @return the mark, null if the stream has no mark
+	 */
+	static Bom read(PushbackInputStream in) throws IOException {
+		byte[] head = new byte[MAX_LENGTH];
+		int length = 0;
+		int n;
+		while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+			length += n;
+		}
+		Bom bom = of(head, length);
+		int skip = bom != null ? bom.length() : 0;
+		in.unread(head, skip, length - skip);
+		return bom;
+	}
+
+	/**
+	 * Skips the mark of a stream that starts with it
+	 */
+	static InputStream skip(InputStream in, Bom bom) throws IOException {
+		for (int skipped = 0; bom != null && skipped < bom.length();) {
+			if (in.read() < 0) {
+				break;
+			}
+			skipped++;
+		}
+		return in;
+	}
+
+	private boolean matches(byte[] head, int length) {
+		if (length < bytes.length) {
+			return false;
+		}
+		for (int i = 0; i < bytes.length; i++) {
+			if (head[i] != bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
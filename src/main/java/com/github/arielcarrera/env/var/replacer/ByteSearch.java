@@ -0,0 +1,94 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Search of expression starts in bytes, without decoding them. It is only valid
+ * for charsets where "${" is encoded as in ASCII and it can not be part of other
+ * chars, see {@link #isSupported(Charset)}.
+ * <p>
+ * Bytes are compared eight at a time, only the words that contain a '$' are
+ * checked one byte at a time.
+ */
+final class ByteSearch {
+
+	private static final byte DOLLAR = '$';
+	private static final byte OPEN = '{';
+	private static final long DOLLARS = 0x2424242424242424L;
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGHS = 0x8080808080808080L;
+	private static final long MAX_REGION = 1L << 30;
+
+	private ByteSearch() {
+	}
+
+	/**
+	 * @return true if expressions can be searched in bytes encoded with the
+	 *         charset
+	 */
+	static boolean isSupported(Charset charset) {
+		if (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+				|| charset.equals(StandardCharsets.ISO_8859_1)) {
+			return true;
+		}
+		return charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1
+				&& Arrays.equals("${".getBytes(charset), new byte[] { DOLLAR, OPEN });
+	}
+
+	/**
+	 * Returns the index of the first "${" between from (inclusive) and to
+	 * (exclusive).
+	 *
+	 * @return index of the '$', or -1 if there is no expression
+	 */
+	static int indexOf(ByteBuffer buffer, int from, int to) {
+		int i = from;
+		// the '{' of the last word is checked with the next byte
+		while (i + 8 < to) {
+			long word = buffer.getLong(i) ^ DOLLARS;
+			if (((word - ONES) & ~word & HIGHS) == 0) {
+				i += 8;
+				continue;
+			}
+			for (int end = i + 8; i < end; i++) {
+				if (buffer.get(i) == DOLLAR && buffer.get(i + 1) == OPEN) {
+					return i;
+				}
+			}
+		}
+		for (; i + 1 < to; i++) {
+			if (buffer.get(i) == DOLLAR && buffer.get(i + 1) == OPEN) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks if a file contains "${" mapping it to memory.
+	 */
+	static boolean containsExpression(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long position = 0;
+			while (position + 1 < size) {
+				// regions overlap by one byte, so "${" is found in the limit
+				long length = Math.min(MAX_REGION, size - position);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				if (indexOf(buffer, 0, (int) length) >= 0) {
+					return true;
+				}
+				position += length - 1;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Output stream that compares what is written with the current content of the
+ * target file. Nothing is written while both are equal, the temporal file is
+ * created with the first difference. Its name is unique, so concurrent
+ * streams of the same target or of targets rendered from the same file do not
+ * share it. It has the permissions of the target, or the default permissions
+ * of new files if there is no target, as it replaces the target.
+ * <p>
+ * When the stream is closed {@link #isChanged()} tells whether the temporal file
+ * has to be moved to the target.
+ * <p>
+ * Ranges of other files can be written with
+ * {@link #transfer(FileChannel, long, long)}, once the content is different they
+ * are copied from channel to channel without reading them.
+ */
+final class ComparingOutputStream extends OutputStream {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Path target;
+	private final Path directory;
+	private Path tmp;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private byte[] transferBuffer;
+	private InputStream current;
+	private FileChannel channel;
+	private OutputStream out;
+	private long matched;
+	private long size;
+
+	/**
+	 * @param target    file to compare with
+	 * @param directory directory of the temporal file written if the content
+	 *                  is different
+	 */
+	ComparingOutputStream(Path target, Path directory) throws IOException {
+		this.target = target;
+		this.directory = directory;
+		if (Files.isRegularFile(target)) {
+			current = new BufferedInputStream(Files.newInputStream(target), BUFFER_SIZE);
+		} else {
+			diverge();
+		}
+	}
+
+	/**
+	 * @return true if the content is different from the target and it was
+	 *         written to the temporal file
+	 */
+	boolean isChanged() {
+		return out != null;
+	}
+
+	/**
+	 * @return temporal file, null if it was not created
+	 */
+	Path getTmp() {
+		return tmp;
+	}
+
+	/**
+	 * @return number of bytes written to the stream, changed or not
+	 */
+	long getSize() {
+		return size;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		size += len;
+		if (out != null) {
+			out.write(b, off, len);
+			return;
+		}
+		int i = 0;
+		while (i < len) {
+			int n = current.read(buffer, 0, Math.min(buffer.length, len - i));
+			if (n < 0) {
+				// the target is shorter
+				break;
+			}
+			for (int k = 0; k < n; k++) {
+				if (buffer[k] != b[off + i + k]) {
+					matched += k;
+					i += k;
+					diverge();
+					out.write(b, off + i, len - i);
+					return;
+				}
+			}
+			matched += n;
+			i += n;
+		}
+		if (i < len) {
+			diverge();
+			out.write(b, off + i, len - i);
+		}
+	}
+
+	/**
+	 * Writes a range of a file.
+	 *
+	 * @param source   file to copy from
+	 * @param position position of the range in the file
+	 * @param count    number of bytes to copy
+	 */
+	void transfer(FileChannel source, long position, long count) throws IOException {
+		if (out == null && count > 0) {
+			// compared ranges are counted by write
+			if (transferBuffer == null) {
+				transferBuffer = new byte[BUFFER_SIZE];
+			}
+			ByteBuffer bytes = ByteBuffer.wrap(transferBuffer);
+			// the range is compared until the first difference
+			while (out == null && count > 0) {
+				bytes.clear();
+				bytes.limit((int) Math.min(transferBuffer.length, count));
+				int n = source.read(bytes, position);
+				if (n < 0) {
+					throw new IOException("Unexpected end of file");
+				}
+				write(transferBuffer, 0, n);
+				position += n;
+				count -= n;
+			}
+		}
+		if (count > 0) {
+			size += count;
+			out.flush();
+			while (count > 0) {
+				long n = source.transferTo(position, count, channel);
+				if (n <= 0) {
+					throw new IOException("Unexpected end of file");
+				}
+				position += n;
+				count -= n;
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (out == null && current.read() >= 0) {
+				// the target is longer
+				diverge();
+			}
+		} finally {
+			try {
+				if (current != null) {
+					current.close();
+				}
+			} finally {
+				if (out != null) {
+					out.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the temporal file copying the part of the target that was equal
+	 */
+	private void diverge() throws IOException {
+		Path file;
+		while (true) {
+			file = directory.resolve(target.getFileName() + "." + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+			try {
+				// created with the default permissions, unlike Files.createTempFile
+				channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+				break;
+			} catch (FileAlreadyExistsException e) {
+				// name taken, try another one
+			}
+		}
+		if (current != null) {
+			try {
+				Files.setPosixFilePermissions(file, Files.getPosixFilePermissions(target));
+			} catch (UnsupportedOperationException e) {
+				// the file system does not support POSIX permissions
+			} catch (IOException e) {
+				channel.close();
+				Files.deleteIfExists(file);
+				throw e;
+			}
+		}
+		tmp = file;
+		out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+		if (matched > 0) {
+			try (InputStream in = Files.newInputStream(target)) {
+				long remaining = matched;
+				while (remaining > 0) {
+					int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (n < 0) {
+						throw new IOException("File modified while it was compared: " + target);
+					}
+					out.write(buffer, 0, n);
+					remaining -= n;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,698 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_ERROR_READING_FILE;
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_INVALID_ARGUMENTS;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves render requests over a local socket, keeping the compiled templates,
+ * the prefix filters and the values of the replacer between requests.
+ * <p>
+ * The protocol is line-delimited JSON, a request by line and a response by
+ * line. Requests are objects with these fields:
+ * <ul>
+ * <li><b>id</b>: returned as a string in the response, responses of a
+ * connection are written when their requests finish, in any order</li>
+ * <li><b>template</b>: path of a template, or <b>text</b>: an inline
+ * template</li>
+ * <li><b>output</b>: file where the result of a template is written, without
+ * it the result is returned in the response</li>
+ * <li><b>values</b>: object of values that override the values of the
+ * daemon for the request</li>
+ * <li><b>command</b>: <i>stats</i> returns the latency percentiles of the
+ * last requests and <i>shutdown</i> stops the daemon once running requests
+ * finish, instead of a template</li>
+ * <li><b>token</b>: token of the daemon, required by every request except on
+ * Unix domain sockets restricted to their owner</li>
+ * </ul>
+ * Responses have an "ok" field: {"id":"1","ok":true,"result":"...","lines":1,"micros":85}
+ * or {"id":"1","ok":false,"code":5,"error":"..."} with the error code and
+ * message of the command line.
+ * <p>
+ * Requests run concurrently, in virtual threads when the runtime supports
+ * them. Only local addresses are served: TCP on a loopback address, or Unix
+ * domain sockets when the runtime supports them.
+ * <p>
+ * Any local user can connect to a TCP port, so every request requires the
+ * token, and templates and outputs must be below the roots of the daemon, after
+ * resolving symbolic links. The token file and the socket file are never
+ * served. Without a token requests are only accepted on Unix domain sockets
+ * whose file is restricted to its owner.
+ */
+final class Daemon implements Closeable {
+
+	/**
+	 * Prefix of the addresses of Unix domain sockets
+	 */
+	static final String UNIX_PREFIX = "unix:";
+	/**
+	 * Requests whose latency is kept to compute percentiles
+	 */
+	static final int LATENCY_SAMPLES = 4096;
+	/**
+	 * Random bytes of generated tokens
+	 */
+	private static final int TOKEN_BYTES = 32;
+
+	private final Replacer replacer;
+	private final ValueSource values;
+	private final List<Path> roots;
+	private final byte[] token;
+	/**
+	 * Real paths that are not served even below a root: the token file and the
+	 * socket file
+	 */
+	private final List<Path> hidden = new ArrayList<Path>(2);
+	private final boolean debug;
+	private final PrintStream log;
+	private final ExecutorService executor = newExecutor();
+	private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+	private final Latencies latencies = new Latencies(LATENCY_SAMPLES);
+	private ServerSocketChannel server;
+	private Path socketFile;
+	/**
+	 * Only the owner of the socket file can connect
+	 */
+	private boolean ownerOnly;
+	private volatile boolean closed;
+	/**
+	 * Thread that handled a shutdown command, it closes the daemon after
+	 * writing the response, so other requests can not close it first
+	 */
+	private volatile Thread shutdownThread;
+
+	/**
+	 * @param replacer replacer of the requests, it should keep its templates in
+	 *                 a template cache
+	 * @param values   values of the replacer, values of requests override them
+	 * @param roots    directories of the templates and outputs of requests
+	 * @param token     token required by requests, null to accept requests on
+	 *                  owner-only Unix domain sockets only
+	 * @param tokenFile file of the token, it is not served, or null
+	 * @throws IOException if a root does not exist
+	 */
+	Daemon(Replacer replacer, ValueSource values, List<Path> roots, String token, Path tokenFile) throws IOException {
+		this.replacer = replacer;
+		this.values = values;
+		this.roots = new ArrayList<Path>(roots.size());
+		for (Path root : roots) {
+			this.roots.add(root.toRealPath());
+		}
+		this.token = token != null ? token.getBytes(StandardCharsets.UTF_8) : null;
+		if (tokenFile != null) {
+			hidden.add(realPath(tokenFile.toAbsolutePath().normalize()));
+		}
+		this.debug = replacer.getConfig().isDebugEnabled();
+		this.log = replacer.getConfig().getLog();
+	}
+
+	/**
+	 * Binds the daemon to an address: PORT or HOST:PORT of a loopback address,
+	 * or unix:PATH. Port 0 binds to a free port.
+	 *
+	 * @return the bound address, in the same format
+	 * @throws IllegalArgumentException      if the address is not valid or not
+	 *                                       local
+	 * @throws UnsupportedOperationException if Unix domain sockets are not
+	 *                                       supported by the runtime
+	 * @throws IOException                   if the address can not be bound
+	 */
+	String bind(String address) throws IOException {
+		if (address.startsWith(UNIX_PREFIX)) {
+			Path path = Paths.get(address.substring(UNIX_PREFIX.length()));
+			server = openUnix(ServerSocketChannel.class);
+			ownerOnly = bindOwnerOnly(path);
+			socketFile = path;
+			hidden.add(realPath(path.toAbsolutePath().normalize()));
+			return UNIX_PREFIX + path;
+		}
+		server = ServerSocketChannel.open();
+		server.bind(inetAddress(address));
+		InetSocketAddress bound = (InetSocketAddress) server.getLocalAddress();
+		return bound.getHostString() + ":" + bound.getPort();
+	}
+
+	/**
+	 * Serves connections until the daemon is closed.
+	 */
+	void run() throws IOException {
+		while (!closed) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (ClosedChannelException e) {
+				if (closed) {
+					return;
+				}
+				throw e;
+			}
+			try {
+				executor.execute(() -> serve(channel));
+			} catch (RejectedExecutionException e) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections and reading requests. Running requests are
+	 * completed and their responses written before their connections are
+	 * closed, see {@link #awaitTermination(long)}.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		// the socket file is deleted first, run returns when the server is closed
+		if (socketFile != null) {
+			try {
+				Files.deleteIfExists(socketFile);
+			} catch (IOException e) {
+				System.err.println("Daemon - Error deleting socket file: " + socketFile);
+			}
+		}
+		if (server != null) {
+			closeQuietly(server);
+		}
+		for (SocketChannel channel : connections) {
+			try {
+				channel.shutdownInput();
+			} catch (IOException e) {
+				closeQuietly(channel);
+			}
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Waits for the running requests of a closed daemon
+	 *
+	 * @return false if they did not finish in time
+	 */
+	boolean awaitTermination(long millis) throws InterruptedException {
+		return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Reads the requests of a connection, responses are written when they
+	 * finish and the connection is closed after the last one
+	 */
+	private void serve(SocketChannel channel) {
+		connections.add(channel);
+		if (closed) {
+			closeQuietly(channel);
+		}
+		Phaser pending = new Phaser(1);
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(input(channel), StandardCharsets.UTF_8))) {
+			Writer writer = new OutputStreamWriter(output(channel), StandardCharsets.UTF_8);
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				String request = line;
+				pending.register();
+				try {
+					executor.execute(() -> {
+						try {
+							respond(writer, handle(request));
+						} finally {
+							pending.arriveAndDeregister();
+						}
+						if (shutdownThread == Thread.currentThread()) {
+							close();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					pending.arriveAndDeregister();
+					break;
+				}
+			}
+		} catch (IOException e) {
+			if (debug && !closed) log.println("Daemon - Connection closed: " + e.getMessage());
+		} finally {
+			pending.arriveAndAwaitAdvance();
+			connections.remove(channel);
+			closeQuietly(channel);
+		}
+	}
+
+	private void respond(Writer writer, String response) {
+		synchronized (writer) {
+			try {
+				writer.write(response);
+				writer.write('\n');
+				writer.flush();
+			} catch (IOException e) {
+				if (debug && !closed) log.println("Daemon - Error writing response: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return response of a request
+	 */
+	String handle(String line) {
+		long start = System.nanoTime();
+		String id = null;
+		try {
+			Map<String, Object> request;
+			try {
+				request = FlatMapParser.parseJson("request", line, 1);
+			} catch (IOException e) {
+				throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS, "Daemon - Invalid request: " + e.getMessage());
+			}
+			id = string(request, "id");
+			authorize(request);
+			String command = string(request, "command");
+			if (command != null) {
+				return command(request, id, command);
+			}
+			StringBuilder result = new StringBuilder(128);
+			render(request, result);
+			long micros = (System.nanoTime() - start) / 1000;
+			latencies.add(micros, false);
+			return response(id, true).append(result).append(",\"micros\":").append(micros).append('}').toString();
+		} catch (ReplacerException e) {
+			return error(start, id, e.getErrorCode(), e.getMessage());
+		} catch (RuntimeException e) {
+			// every request gets a response, the client would wait for it
+			if (debug) e.printStackTrace(log);
+			return error(start, id, ERROR_CODE_INVALID_ARGUMENTS, "Daemon - Invalid request: " + e);
+		}
+	}
+
+	private String error(long start, String id, int code, String message) {
+		latencies.add((System.nanoTime() - start) / 1000, true);
+		StringBuilder response = response(id, false).append(",\"code\":").append(code);
+		return Json.quote(response.append(",\"error\":"), message).append('}').toString();
+	}
+
+	/**
+	 * Renders the template of a request, appending the fields of the result
+	 */
+	private void render(Map<String, Object> request, StringBuilder result) throws ReplacerException {
+		String template = string(request, "template");
+		String text = string(request, "text");
+		String output = string(request, "output");
+		if ((template == null) == (text == null) || (text != null && output != null)) {
+			throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS,
+					"Daemon - Invalid request: expected template, template and output, or text");
+		}
+		Path templatePath = template != null ? confine(template) : null;
+		Path outputPath = null;
+		if (output != null) {
+			outputPath = confine(output);
+		}
+		Replacer replacer = this.replacer;
+		Object overrides = request.get("values");
+		if (overrides instanceof Map) {
+			Map<String, String> requestValues = new HashMap<String, String>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) overrides).entrySet()) {
+				if (!(entry.getValue() instanceof String)) {
+					throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS,
+							"Daemon - Invalid request: nested values are not supported: " + entry.getKey());
+				}
+				requestValues.put((String) entry.getKey(), (String) entry.getValue());
+			}
+			replacer = replacer.withValues(ValueSource.chain(Arrays.asList(ValueSource.snapshot(requestValues), values)));
+		} else if (overrides != null) {
+			throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS, "Daemon - Invalid request: values must be an object");
+		}
+		if (output != null) {
+			ReplaceResult replaced = replacer.replace(templatePath, outputPath);
+			result.append(",\"output\":");
+			Json.quote(result, output).append(",\"modified\":").append(replaced.isModified());
+			result.append(",\"lines\":").append(replaced.getLines());
+			return;
+		}
+		StringWriter writer = new StringWriter();
+		long lines;
+		if (template != null) {
+			lines = replacer.render(templatePath, writer);
+		} else {
+			lines = replacer.replace(new StringReader(text), writer).getLines();
+		}
+		Json.quote(result.append(",\"result\":"), writer.toString()).append(",\"lines\":").append(lines);
+	}
+
+	private String command(Map<String, Object> request, String id, String command) throws ReplacerException {
+		switch (command) {
+		case "stats":
+			StringBuilder response = response(id, true);
+			latencies.appendTo(response);
+			return response.append('}').toString();
+		case "shutdown":
+			if (debug) log.println("Daemon - Shutdown requested");
+			shutdownThread = Thread.currentThread();
+			return response(id, true).append('}').toString();
+		default:
+			throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS, "Daemon - Unknown command: " + command);
+		}
+	}
+
+	/**
+	 * Checks the token of a request, requests on an owner-only Unix domain
+	 * socket do not need it
+	 */
+	private void authorize(Map<String, Object> request) throws ReplacerException {
+		if (ownerOnly) {
+			return;
+		}
+		String given = string(request, "token");
+		if (token == null) {
+			throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS, "Daemon - Unauthorized: requests require a token");
+		} else if (given == null || !MessageDigest.isEqual(token, given.getBytes(StandardCharsets.UTF_8))) {
+			throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS, "Daemon - Unauthorized: invalid token");
+		}
+	}
+
+	/**
+	 * @return the path of a request if it is below a root of the daemon, after
+	 *         resolving the symbolic links of the part of the path that exists,
+	 *         and it is not the token file or the socket file
+	 */
+	private Path confine(String value) throws ReplacerException {
+		Path path;
+		Path real;
+		try {
+			path = Paths.get(value);
+			real = realPath(path.toAbsolutePath().normalize());
+		} catch (InvalidPathException e) {
+			throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS, "Daemon - Invalid path: " + e.getMessage());
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Daemon - Error reading path: " + value, e);
+		}
+		if (hidden.contains(real)) {
+			throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS, "Daemon - Path not served: " + value);
+		}
+		for (Path root : roots) {
+			if (real.startsWith(root)) {
+				return path;
+			}
+		}
+		throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS, "Daemon - Path outside of the daemon roots: " + value);
+	}
+
+	private static Path realPath(Path path) throws IOException {
+		Path existing = path;
+		while (existing.getParent() != null && !Files.exists(existing)) {
+			existing = existing.getParent();
+		}
+		return existing.toRealPath().resolve(existing.relativize(path));
+	}
+
+	/**
+	 * Binds the server to a socket file restricted to its owner. The socket is
+	 * bound in a directory of its owner and moved to its path once restricted,
+	 * so no connection can be made before.
+	 *
+	 * @return false if the file system does not support POSIX permissions, the
+	 *         socket is bound to its path as it is
+	 * @throws FileAlreadyExistsException if the socket file exists
+	 */
+	private boolean bindOwnerOnly(Path socket) throws IOException {
+		if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+			throw new FileAlreadyExistsException(socket.toString());
+		}
+		Path directory;
+		try {
+			directory = Files.createTempDirectory(socket.toAbsolutePath().getParent(), ".daemon",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		} catch (UnsupportedOperationException e) {
+			server.bind(unixAddress(socket));
+			return false;
+		}
+		Path bound = directory.resolve("socket");
+		try {
+			server.bind(unixAddress(bound));
+			Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+			Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(bound);
+			Files.delete(directory);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the token of a daemon from a file, the first line of the file. If
+	 * the file does not exist a random token is written to it, readable only by
+	 * its owner where the file system supports it.
+	 *
+	 * @return the token
+	 */
+	static String token(Path file) throws IOException {
+		if (Files.exists(file)) {
+			List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+			String token = lines.isEmpty() ? "" : lines.get(0).trim();
+			if (token.isEmpty()) {
+				throw new IOException("Empty token file: " + file);
+			}
+			return token;
+		}
+		byte[] bytes = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder hex = new StringBuilder(TOKEN_BYTES * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		String token = hex.toString();
+		try {
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			Files.createFile(file);
+		}
+		Files.write(file, (token + "\n").getBytes(StandardCharsets.UTF_8));
+		return token;
+	}
+
+	/**
+	 * @return start of a response with its id and ok fields, the fields of the
+	 *         result follow
+	 */
+	private static StringBuilder response(String id, boolean ok) {
+		StringBuilder response = new StringBuilder(128).append("{\"id\":");
+		return Json.quote(response, id).append(",\"ok\":").append(ok);
+	}
+
+	private static String string(Map<String, Object> request, String field) throws ReplacerException {
+		Object value = request.get(field);
+		if (value != null && !(value instanceof String)) {
+			throw new ReplacerException(ERROR_CODE_INVALID_ARGUMENTS, "Daemon - Invalid request: " + field + " must be a string");
+		}
+		return (String) value;
+	}
+
+	/**
+	 * @return socket address of PORT or HOST:PORT, the host must be a loopback
+	 *         address
+	 */
+	static InetSocketAddress inetAddress(String address) throws IOException {
+		int colon = address.lastIndexOf(':');
+		int port;
+		try {
+			port = Integer.parseInt(address.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid address: " + address);
+		}
+		if (port < 0 || port > 65535) {
+			throw new IllegalArgumentException("Invalid port: " + address);
+		}
+		if (colon < 0) {
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		}
+		InetAddress host = InetAddress.getByName(address.substring(0, colon));
+		if (!host.isLoopbackAddress()) {
+			throw new IllegalArgumentException("Only loopback addresses are served: " + address);
+		}
+		return new InetSocketAddress(host, port);
+	}
+
+	/**
+	 * Opens a channel of a Unix domain socket, they are supported since Java 16
+	 * and are created with reflection to build with older versions
+	 *
+	 * @param type ServerSocketChannel or SocketChannel
+	 */
+	static <T> T openUnix(Class<T> type) throws IOException {
+		ProtocolFamily unix;
+		try {
+			unix = StandardProtocolFamily.valueOf("UNIX");
+		} catch (IllegalArgumentException e) {
+			throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later");
+		}
+		try {
+			return type.cast(type.getMethod("open", ProtocolFamily.class).invoke(null, unix));
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new UnsupportedOperationException("Unix domain sockets are not supported: " + e.getCause(), e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Unix domain sockets are not supported: " + e, e);
+		}
+	}
+
+	static SocketAddress unixAddress(Path path) {
+		try {
+			return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class)
+					.invoke(null, path);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later", e);
+		}
+	}
+
+	/**
+	 * @return an executor of virtual threads if the runtime supports them (Java
+	 *         21+), or of daemon platform threads
+	 */
+	private static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			AtomicInteger threads = new AtomicInteger();
+			return Executors.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "daemon-" + threads.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/**
+	 * Reads from a channel without the streams of {@link java.nio.channels.Channels},
+	 * they do not allow reading and writing a socket at the same time
+	 */
+	static InputStream input(ByteChannel channel) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return len == 0 ? 0 : channel.read(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+
+	static OutputStream output(ByteChannel channel) {
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		};
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+
+	/**
+	 * Latencies of the last requests, in microseconds
+	 */
+	static final class Latencies {
+		private final long[] samples;
+		private long requests;
+		private long errors;
+
+		Latencies(int size) {
+			this.samples = new long[size];
+		}
+
+		synchronized void add(long micros, boolean error) {
+			samples[(int) (requests++ % samples.length)] = micros;
+			if (error) {
+				errors++;
+			}
+		}
+
+		/**
+		 * Appends the counters and the nearest-rank percentiles of the kept
+		 * latencies as JSON fields
+		 */
+		synchronized void appendTo(StringBuilder sb) {
+			long[] sorted = Arrays.copyOf(samples, (int) Math.min(requests, samples.length));
+			Arrays.sort(sorted);
+			sb.append(",\"requests\":").append(requests).append(",\"errors\":").append(errors);
+			sb.append(",\"p50Micros\":").append(percentile(sorted, 50));
+			sb.append(",\"p90Micros\":").append(percentile(sorted, 90));
+			sb.append(",\"p99Micros\":").append(percentile(sorted, 99));
+			sb.append(",\"maxMicros\":").append(sorted.length > 0 ? sorted[sorted.length - 1] : 0);
+		}
+
+		private static long percentile(long[] sorted, int percentile) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+			return sorted[Math.max(rank - 1, 0)];
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Map;
+
+/**
+ * Client of a {@link Daemon} in the same process. Requests can be sent before
+ * the responses of previous ones are received, responses arrive in the order
+ * their requests finish.
+ */
+final class DaemonClient implements Closeable {
+
+	private final SocketChannel channel;
+	private final BufferedReader reader;
+	private final Writer writer;
+
+	/**
+	 * @param address address of the daemon, as returned by
+	 *                {@link Daemon#bind(String)}
+	 */
+	DaemonClient(String address) throws IOException {
+		if (address.startsWith(Daemon.UNIX_PREFIX)) {
+			channel = Daemon.openUnix(SocketChannel.class);
+			channel.connect(Daemon.unixAddress(Paths.get(address.substring(Daemon.UNIX_PREFIX.length()))));
+		} else {
+			channel = SocketChannel.open(Daemon.inetAddress(address));
+		}
+		reader = new BufferedReader(new InputStreamReader(Daemon.input(channel), StandardCharsets.UTF_8));
+		writer = new OutputStreamWriter(Daemon.output(channel), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Sends a request, a JSON object in a single line
+	 */
+	void send(String request) throws IOException {
+		writer.write(request);
+		writer.write('\n');
+		writer.flush();
+	}
+
+	/**
+	 * @return next response
+	 * @throws EOFException if the daemon closed the connection
+	 */
+	String receive() throws IOException {
+		String response = reader.readLine();
+		if (response == null) {
+			throw new EOFException("Connection closed");
+		}
+		return response;
+	}
+
+	/**
+	 * Sends a request and waits for its response, no other requests should be
+	 * pending
+	 *
+	 * @return fields of the response, numbers and booleans as text
+	 */
+	Map<String, String> call(String request) throws IOException {
+		send(request);
+		return FlatMapParser.parseJson("response", receive());
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -1,51 +1,57 @@
 package com.github.arielcarrera.env.var.replacer;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.FileAlreadyExistsException;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FilenameUtils;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
+import com.github.arielcarrera.env.var.replacer.PathExpander.Target;
+import com.github.arielcarrera.env.var.replacer.UsageIndex.Usage;
 
+/**
+ * Command line interface of {@link Replacer}.
+ */
 public class EnvVarReplacer {
-	public static class RequiredEnvironmentVariableException extends Exception {
-		private static final long serialVersionUID = -1250700098669029910L;
-		String message;
-
-		public RequiredEnvironmentVariableException(String message) {
-			super();
-			this.message = message;
-		}
-
-		@Override
-		public String getMessage() {
-			return message;
-		}
+	/**
+	 * @deprecated use
+	 *             {@link com.github.arielcarrera.env.var.replacer.RequiredEnvironmentVariableException},
+	 *             it is the one thrown by {@link Replacer}. This type is kept so
+	 *             code that references it still compiles, but it is never thrown:
+	 *             catch the top-level class instead.
+	 */
+	@Deprecated
+	public static class RequiredEnvironmentVariableException
+			extends com.github.arielcarrera.env.var.replacer.RequiredEnvironmentVariableException {
+		private static final long serialVersionUID = 2402787915539473317L;
 
-		public void setMessage(String message) {
-			this.message = message;
+		public RequiredEnvironmentVariableException(String key) {
+			super(key);
 		}
 	}
 
@@ -54,6 +60,7 @@ public class EnvVarReplacer {
 	public static final int ERROR_CODE_FILE_NOT_FOUND = 3;
 	public static final int ERROR_CODE_BACKUP_ERROR_FILE_EXIST = 4;
 	public static final int ERROR_CODE_VAR_REQUIRED = 5;
+	public static final int ERROR_CODE_CYCLIC_REFERENCE = 6;
 
 	public static final int ERROR_CODE_ERROR_READING_FILE = -1;
 	public static final int ERROR_CODE_ERROR_WRITING_FILE = -2;
@@ -62,38 +69,63 @@ public class EnvVarReplacer {
 	public static final int ERROR_CODE_BACKUP_WRITE_ERROR = -5;
 	//public static final int ERROR_CODE_DELETING_FILE = -6;
 	public static final int ERROR_CODE_RENAMING_TMP_FILE = -7;
+	public static final int ERROR_CODE_ERROR_READING_VALUES = -8;
 
-	private static boolean isBackupEnabled;
-	private static boolean isForceBackupEnabled;
-	private static boolean isDebugEnabled;
-	private static boolean isTraceEnabled;
-	private static boolean isSourceProperties;
-	private static boolean isSourceConfigFile;
-	private static boolean isRemovePrefixEnabled;
-	private static boolean isFilterByPrefixEnabled;
-	private static Properties properties;
-	private static Map<String, String> filepathsMap;
-	private static String[] paths;
-	private static String[] configPaths;
-	private static String prefix;
-	private static String[] filterPrefixes;
+	/**
+	 * Path to read from stdin and write to stdout
+	 */
+	static final String STREAM_PATH = "-";
+	/**
+	 * Milliseconds to wait for the running requests of the daemon when it is
+	 * shut down
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 30000;
 
 	private static final String ERROR_MSG = "Invalid arguments.\n\n" + Optional.ofNullable( EnvVarReplacer.class.getPackage().getImplementationTitle()).orElse("Environment Var Replacer ") + Optional.ofNullable(EnvVarReplacer.class.getPackage().getImplementationVersion()).orElse("") + "\n\n" 
-			+ "Parameters: [-s] [FILE_PATH] [-p [PROPERTIES_FILE]] [-d] [-t] [-b] [-fb] [-rp] [-fp]\n"
+			+ "Parameters: [-s] [FILE_PATH] [-p [PROPERTIES_FILE]] [-DKEY=VALUE] [-d] [-t] [-b] [-fb] [-rp] [-fp] [-j [THREADS]] [--parallel] [--cache-dir [DIR]] [--cache-size [ENTRIES]] [--values [NAME:LOCATION]] [--recursive] [--charset [CHARSET]] [--mmap] [--chunked] [--watch] [--watch-delay [MILLIS]] [--daemon [ADDRESS]] [--daemon-root [DIRS]] [--daemon-token-file [FILE]] [--scan] [--transaction] [--report [FILE]] [--summary] [--backup-mode=copy|link|archive] [--backup-archive [FILE]]\n"
 			+ " Where:\n"
-			+ " FILE_PATH: comma-separated list of file-paths to process\n"
+			+ " FILE_PATH: comma-separated list of file-paths to process, '-' to read from stdin and write to stdout\n"
+			+ "    paths can be directories or glob patterns like conf/**/*.xml, with outputs like conf/**/*.tpl:out/**/*.xml\n"
+			+ "    a file can have many outputs, input:out1,out2 in configuration files or input:out1,input:out2, rendered in parallel from a single read,\n"
+			+ "    and outputs can have their own values, input:output@PROPERTIES_FILE, overridden only by -D values\n"
 			+ " -s [FILE_PATH]: flag to indicate that a source file in FILE PATH is present and it is expected to contain a path by line\n"
 			+ "    FILE_PATH: comma-separated list of file-paths\n"
-			+ " -p [PROPERTIES_FILE]: read from properties file.\n"
-			+ "    PROPERTIES_FILE: Path to the properties file. It is required when 'p' flag is enabled\n"
+			+ " -p [PROPERTIES_FILE]: read from properties files, environment variables are read if a key is not defined in them.\n"
+			+ "    PROPERTIES_FILE: comma-separated list of properties files, later files override previous ones. It is required when 'p' flag is enabled\n"
+			+ " -DKEY=VALUE: defines a value, it overrides value providers, properties files and environment variables\n"
+			+ " --values [NAME:LOCATION]: reads values from a provider, it can be repeated and later providers override previous ones.\n"
+			+ "    Values of providers override properties files and environment variables, providers: " + String.join(", ", ValueProviders.names()) + "\n"
+			+ "    dir:DIR reads a file per key, dotenv:FILE, json:FILE and yaml:FILE read flat maps of keys to values\n"
+			+ " --recursive: replaces expressions inside values, so values can reference other keys, cyclic references are an error\n"
 			+ " -d: debug mode\n"
 			+ " -t: trace mode\n"
 			+ " -b: creates a backup file\n"
 			+ " -fb: force/override backup file\n"
-			+ " -rp [PREFIX]: indicates a prefix to be removed from properties names\n"
-			+ "     PREFIX: prefix to be removed from keys\n"
+			+ " --backup-mode=[copy|link|archive]: saves backups copying files (default), with hard links to them (files are copied if links are not supported) or in a zip archive per run, it enables backups\n"
+			+ " --backup-archive [FILE]: zip file of the archive backup mode (default: backup-yyyyMMdd-HHmmss.zip)\n"
+			+ " -rp [PREFIX]: indicates a list of prefixes to be removed from properties names\n"
+			+ "     PREFIX: comma-separated list of prefixes, the longest matching prefix is removed from keys\n"
 			+ " -fp [PREFIX]: indicates a list of prefixes to filter by\n"
-			+ "     PREFIX: comma-separated list of prefixes";
+			+ "     PREFIX: comma-separated list of prefixes\n"
+			+ " -j [THREADS]: processes files in parallel\n"
+			+ "     THREADS: number of threads\n"
+			+ " --parallel: processes files in parallel using a thread by available processor\n"
+			+ " --cache-dir [DIR]: stores compiled templates in DIR and reuses them while files are not modified\n"
+			+ " --cache-size [ENTRIES]: maximum number of compiled templates kept in the cache (default: " + TemplateCache.DEFAULT_MAX_ENTRIES + ")\n"
+			+ " --charset [CHARSET]: charset of the files (default: platform charset), files with a UTF-8/16/32 byte order mark are read and written with the charset of the mark\n"
+			+ " --mmap: maps files to memory and only decodes the lines with expressions, line terminators are kept as they are\n"
+			+ " --chunked: processes files in chunks with constant memory whatever the size of their lines, line terminators are kept as they are\n"
+			+ " --watch: keeps running and renders again the targets affected by changes in templates, properties files and configuration files\n"
+			+ " --watch-delay [MILLIS]: milliseconds without changes to render a batch of changes (default: " + WatchMode.DEFAULT_DELAY + ")\n"
+			+ " --daemon [ADDRESS]: keeps running and serves render requests as line-delimited JSON after replacing the targets, if any.\n"
+			+ "    ADDRESS: PORT or HOST:PORT of a loopback address (port 0 for a free port, it is printed to stderr) or unix:PATH (Java 16+)\n"
+			+ " --daemon-root [DIRS]: comma-separated directories of the templates and outputs of daemon requests (default: directories of the targets, or the working directory)\n"
+			+ " --daemon-token-file [FILE]: token required by daemon requests, a random token is written to FILE if it does not exist. Required by TCP addresses.\n"
+			+ "    Without it they are only accepted on Unix domain sockets, which are restricted to their owner\n"
+			+ " --scan: prints the keys used by the files as JSON without modifying them, it fails if required keys are missing\n"
+			+ " --transaction: writes every file to a temporal file and replaces the files only if all of them succeed, all the missing variables are reported\n"
+			+ " --report [FILE]: writes timings and counters of every file and of the whole run to FILE as JSON\n"
+			+ " --summary: prints the totals of the run to stderr";
 
 	/**
 	 * Processes a comma-separated list of files and replace expressions like ${}
@@ -102,8 +134,31 @@ public class EnvVarReplacer {
 	 * @param args
 	 */
 	public static void main(String[] args) {
-
-		initDefaults();
+		ReplacerConfig.Builder builder = ReplacerConfig.builder();
+		boolean isBackupEnabled = false;
+		boolean isForceBackupEnabled = false;
+		boolean isDebugEnabled = false;
+		boolean isTraceEnabled = false;
+		boolean isSourceConfigFile = false;
+		String[] paths = null;
+		String[] configPaths = null;
+		int threads = 1;
+		String cacheDir = null;
+		int cacheSize = TemplateCache.DEFAULT_MAX_ENTRIES;
+		List<String> propertiesPaths = new ArrayList<String>();
+		Map<String, String> overrides = new HashMap<String, String>();
+		List<String> valueProviders = new ArrayList<String>();
+		boolean watch = false;
+		boolean scan = false;
+		boolean transaction = false;
+		String reportPath = null;
+		BackupStrategy backupStrategy = null;
+		String backupArchive = null;
+		boolean summary = false;
+		long watchDelay = WatchMode.DEFAULT_DELAY;
+		String daemonAddress = null;
+		List<String> daemonRoots = new ArrayList<String>();
+		String daemonTokenFile = null;
 
 		if (args.length < 1) {
 			System.err.println(ERROR_MSG);
@@ -122,19 +177,12 @@ public class EnvVarReplacer {
 				isBackupEnabled = true;
 				break;
 			case "-p":
-				isSourceProperties = true;
 				if (i >= args.length) {
 					System.err.println(ERROR_MSG);
 					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
 				}
 				i++;
-				String propertiesFilePath = args[i];
-				try (InputStream input = new FileInputStream(propertiesFilePath)) {
-		            properties = new Properties();
-		            properties.load(input);
-		        } catch (IOException ex) {
-		            ex.printStackTrace();
-		        }
+				propertiesPaths.addAll(Arrays.asList(args[i].split(",")));
 				break;
 			case "-s":
 				isSourceConfigFile = true;
@@ -146,24 +194,164 @@ public class EnvVarReplacer {
 				configPaths = args[i].split(",");
 				break;
 			case "-rp":
-				isRemovePrefixEnabled = true;
 				if (i >= args.length) {
 					System.err.println(ERROR_MSG);
 					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
 				}
 				i++;
-				prefix = args[i];
+				builder.removePrefixes(args[i].split(","));
 				break;
 			case "-fp":
-				isFilterByPrefixEnabled = true;
 				if (i >= args.length) {
 					System.err.println(ERROR_MSG);
 					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
 				}
 				i++;
-				filterPrefixes = args[i].split(",");
+				builder.filterPrefixes(args[i].split(","));
+				break;
+			case "-j":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				threads = parsePositiveInt(args[i]);
+				break;
+			case "--parallel":
+				threads = Runtime.getRuntime().availableProcessors();
+				break;
+			case "--cache-dir":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				cacheDir = args[i];
+				break;
+			case "--cache-size":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				cacheSize = parsePositiveInt(args[i]);
+				break;
+			case "--charset":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				builder.charset(parseCharset(args[i]));
+				break;
+			case "--mmap":
+				builder.memoryMapped(true);
+				break;
+			case "--chunked":
+				builder.chunked(true);
+				break;
+			case "--recursive":
+				builder.recursive(true);
+				break;
+			case "--watch":
+				// watch mode does not return, the daemon would never start
+				if (daemonAddress != null) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				watch = true;
+				break;
+			case "--scan":
+				scan = true;
+				break;
+			case "--transaction":
+				transaction = true;
+				break;
+			case "--report":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				reportPath = args[i];
+				break;
+			case "--summary":
+				summary = true;
+				break;
+			case "--backup-mode":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				backupStrategy = parseBackupStrategy(args[i]);
+				break;
+			case "--backup-archive":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				backupArchive = args[i];
+				break;
+			case "--values":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				valueProviders.add(args[i]);
+				break;
+			case "--watch-delay":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				watchDelay = parsePositiveInt(args[i]);
+				break;
+			case "--daemon":
+				if (i + 1 >= args.length || watch) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				daemonAddress = args[i];
+				break;
+			case "--daemon-root":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				daemonRoots.addAll(Arrays.asList(args[i].split(",")));
+				break;
+			case "--daemon-token-file":
+				if (i + 1 >= args.length) {
+					System.err.println(ERROR_MSG);
+					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				}
+				i++;
+				daemonTokenFile = args[i];
 				break;
 			default:
+				if (args[i].startsWith("--backup-mode=")) {
+					backupStrategy = parseBackupStrategy(args[i].substring("--backup-mode=".length()));
+					break;
+				}
+				if (args[i].startsWith("-D") && args[i].length() > 2) {
+					// -DKEY=VALUE, -DKEY is an empty value
+					int equals = args[i].indexOf('=');
+					if (equals < 0) {
+						overrides.put(args[i].substring(2), "");
+					} else if (equals > 2) {
+						overrides.put(args[i].substring(2, equals), args[i].substring(equals + 1));
+					} else {
+						System.err.println(ERROR_MSG);
+						System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+					}
+					break;
+				}
 				if (paths != null) {
 					System.err.println(ERROR_MSG);
 					System.exit(ERROR_CODE_INVALID_ARGUMENTS);
@@ -174,332 +362,534 @@ public class EnvVarReplacer {
 		
 		List<String> allPaths = paths != null ? new ArrayList<String>(Arrays.asList(paths)) : new ArrayList<String>();
 		if (isSourceConfigFile && configPaths != null) {
+			final boolean debug = isDebugEnabled;
 			Arrays.stream(configPaths).filter(EnvVarReplacer::validate).map(FilenameUtils::normalizeNoEndSeparator)
 					.filter(EnvVarReplacer::checkFile).forEach(path -> {
-						readConfigFile(path, allPaths);
+						readConfigFile(path, allPaths, debug);
 					});
-			paths = allPaths.toArray(new String[allPaths.size()]);
 		}
 		
-		Arrays.stream(paths).map(EnvVarReplacer::normalizeAndResolveTargetFiles)
-				.filter(EnvVarReplacer::checkFile).filter(EnvVarReplacer::checkBackupFileExists)
-				.forEach(EnvVarReplacer::replace);
+		List<ValueSource> providers = new ArrayList<ValueSource>();
+		for (String provider : valueProviders) {
+			providers.add(openValueProvider(provider, isDebugEnabled));
+		}
+		ValueSource values = ValueSource.environment();
+		if (!propertiesPaths.isEmpty() || !overrides.isEmpty() || !providers.isEmpty()) {
+			List<Map<String, String>> properties = new ArrayList<Map<String, String>>();
+			for (String path : propertiesPaths) {
+				try {
+					properties.add(readProperties(path));
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+			values = layeredValueSource(overrides, providers, properties);
+			builder.valueSource(values);
+		}
+		if (reportPath != null || summary) {
+			builder.report(new RunReport(reportPath != null ? Paths.get(reportPath) : null, summary));
+		}
+		// a backup strategy enables backups
+		builder.backupMode(isForceBackupEnabled ? BackupMode.FORCE : isBackupEnabled || backupStrategy != null ? BackupMode.CREATE : BackupMode.NONE)
+				.debug(isDebugEnabled).trace(isTraceEnabled);
+		if (backupStrategy != null) {
+			builder.backupStrategy(backupStrategy);
+			if (backupStrategy == BackupStrategy.ARCHIVE) {
+				Path archive = Paths.get(backupArchive != null ? backupArchive
+						: "backup-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".zip");
+				builder.backupArchive(new BackupArchive(archive, isForceBackupEnabled));
+			}
+		}
+		if (cacheDir != null) {
+			validate(cacheDir);
+			builder.templateCache(new TemplateCache(cacheSize, Paths.get(FilenameUtils.normalizeNoEndSeparator(cacheDir))));
+		} else if (watch || daemonAddress != null) {
+			// templates are kept in memory to be rendered again
+			builder.templateCache(new TemplateCache(cacheSize));
+		}
+		if (allPaths.contains(STREAM_PATH)) {
+			if (allPaths.size() > 1 || watch || daemonAddress != null) {
+				System.err.println(ERROR_MSG);
+				System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+			}
+			// stdout is the output, messages are printed to stderr
+			Replacer replacer = new Replacer(builder.log(System.err).build());
+			try {
+				replacer.replace(System.in, System.out);
+			} catch (ReplacerException e) {
+				exit(replacer, e);
+			}
+			close(replacer);
+			return;
+		}
+		Set<Path> files = new LinkedHashSet<Path>();
+		// directories of the targets, the default roots of the daemon
+		Set<Path> targetRoots = new LinkedHashSet<Path>();
+		try {
+			Map<Path, ValueSource> outputValues = new HashMap<Path, ValueSource>();
+			for (Target target : PathExpander.expand(allPaths)) {
+				ValueSource targetValues = null;
+				if (target.values != null) {
+					targetValues = outputValues.get(target.values);
+					if (targetValues == null) {
+						targetValues = outputValueSource(overrides, readOutputValues(target.values), values);
+						outputValues.put(target.values, targetValues);
+					}
+				}
+				builder.addOutput(target.input, target.output != null ? target.output : target.input, targetValues);
+				files.add(target.input);
+				targetRoots.add(directory(target.input));
+				if (target.output != null) {
+					targetRoots.add(directory(target.output));
+				}
+			}
+		} catch (ReplacerException e) {
+			System.err.println(e.getMessage());
+			System.exit(e.getErrorCode());
+		}
+		if (scan) {
+			// stdout is the output, messages are printed to stderr
+			Replacer replacer = new Replacer(builder.log(System.err).build());
+			UsageIndex index = scan(replacer, files, threads);
+			System.out.println(index.toJson());
+			if (!index.getMissing().isEmpty()) {
+				System.err.println("Missing required variables: " + String.join(", ", index.getMissing()));
+				System.exit(ERROR_CODE_VAR_REQUIRED);
+			}
+			return;
+		}
+		Replacer replacer = new Replacer(builder.build());
+		// all files are checked before any of them is modified
+		for (Path path : files) {
+			try {
+				replacer.checkBackup(path);
+			} catch (BackupException e) {
+				exit(replacer, e);
+			}
+		}
+		
+		if (transaction) {
+			replaceInTransaction(replacer, files, threads);
+		} else if (threads > 1 && files.size() > 1) {
+			replaceInParallel(replacer, files, threads);
+		} else {
+			for (Path path : files) {
+				try {
+					replacer.replace(path);
+				} catch (ReplacerException e) {
+					exit(replacer, e);
+				}
+			}
+		}
+		if (replacer.getConfig().isDebugEnabled() && replacer.getConfig().getTemplateCache() != null) {
+			replacer.getConfig().getLog().println(replacer.getConfig().getTemplateCache());
+		}
+		if (!close(replacer)) {
+			System.exit(ERROR_CODE_BACKUP_WRITE_ERROR);
+		}
+		if (watch) {
+			List<String> targets = paths != null ? Arrays.asList(paths) : new ArrayList<String>();
+			List<String> configFiles = isSourceConfigFile && configPaths != null ? Arrays.asList(configPaths) : new ArrayList<String>();
+			try {
+				new WatchMode(builder, overrides, providers, propertiesPaths, targets, configFiles, watchDelay).run();
+			} catch (IOException e) {
+				System.err.println("Watch - Error watching files: " + e.getMessage());
+				if (isDebugEnabled)
+					e.printStackTrace();
+				System.exit(ERROR_CODE_ERROR_READING_FILE);
+			}
+		}
+		if (daemonAddress != null) {
+			List<Path> roots = new ArrayList<Path>();
+			for (String root : daemonRoots) {
+				roots.add(Paths.get(root));
+			}
+			if (roots.isEmpty()) {
+				roots.addAll(targetRoots.isEmpty() ? Collections.singleton(Paths.get("").toAbsolutePath()) : targetRoots);
+			}
+			serve(builder, values, daemonAddress, roots, daemonTokenFile != null ? Paths.get(daemonTokenFile) : null);
+		}
 	}
 
-	private static void initDefaults() {
-		isBackupEnabled = false;
-		isForceBackupEnabled = false;
-		isDebugEnabled = false;
-		isTraceEnabled = false;
-		isSourceProperties = false;
-		isSourceConfigFile = false;
-		isRemovePrefixEnabled = false;
-		isFilterByPrefixEnabled = false;
-		filterPrefixes = null;
-		properties = null;
-		paths = null;
-		configPaths = null;
-		prefix = null;
-		filepathsMap = new HashMap<String, String>();
+	/**
+	 * @return absolute directory of a target, outputs can be in directories
+	 *         that do not exist yet
+	 */
+	private static Path directory(Path file) {
+		Path directory = file.toAbsolutePath().getParent();
+		while (!Files.isDirectory(directory) && directory.getParent() != null) {
+			directory = directory.getParent();
+		}
+		return directory;
 	}
 
-	static boolean validate(String path) {
-		if (path == null || path.isEmpty()) {
-			System.err.println("Invalid path: " + path);
-			System.exit(ERROR_CODE_INVALID_PATH);
+	/**
+	 * Serves render requests until the daemon is shut down, see {@link Daemon}
+	 */
+	private static void serve(ReplacerConfig.Builder builder, ValueSource values, String address, List<Path> roots,
+			Path tokenFile) {
+		// backups are created and reported by the replacement of the targets only
+		if (tokenFile == null && !address.startsWith(Daemon.UNIX_PREFIX)) {
+			// any local user can connect to a TCP port
+			System.err.println("Daemon - TCP addresses require --daemon-token-file");
+			System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+			return;
 		}
-		return true;
-	}
-	
-	static String normalizeAndResolveTargetFiles(String path) {
-		validate(path);
-		int indexOf = path.indexOf(":");
-		if (indexOf >= 0) {
-			//path with input:target format
-			String origin = path.substring(0, indexOf);
-			String target = path.substring(indexOf+1, path.length());
-			if (origin.isEmpty() || target.isEmpty()) {
-				System.err.println("Invalid path: " + path);
-				System.exit(ERROR_CODE_INVALID_PATH);
+		Replacer replacer = new Replacer(builder.backupMode(BackupMode.NONE).report(null).build());
+		Daemon daemon;
+		try {
+			daemon = new Daemon(replacer, values, roots, tokenFile != null ? Daemon.token(tokenFile) : null, tokenFile);
+		} catch (IOException e) {
+			System.err.println("Daemon - Invalid root or token file: " + e.getMessage());
+			System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+			return;
+		}
+		try {
+			String bound;
+			try {
+				bound = daemon.bind(address);
+			} catch (IllegalArgumentException | UnsupportedOperationException e) {
+				System.err.println("Daemon - " + e.getMessage());
+				System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+				return;
+			}
+			// the bound port is printed, port 0 binds to a free port
+			System.err.println("Daemon - Listening on " + bound);
+			daemon.run();
+			daemon.close();
+			if (!daemon.awaitTermination(SHUTDOWN_TIMEOUT)) {
+				System.err.println("Daemon - Running requests did not finish, exiting");
 			}
-			String normalizedOrigin = FilenameUtils.normalizeNoEndSeparator(origin);
-			filepathsMap.put(normalizedOrigin, FilenameUtils.normalizeNoEndSeparator(target));
-			return normalizedOrigin;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			System.err.println("Daemon - Error listening on " + address + ": " + e.getMessage());
+			if (replacer.getConfig().isDebugEnabled())
+				e.printStackTrace();
+			System.exit(ERROR_CODE_ERROR_READING_FILE);
+		} finally {
+			daemon.close();
 		}
-		return FilenameUtils.normalizeNoEndSeparator(path);
 	}
 
-	static boolean checkFile(String path) {
-		if (!Files.isReadable(Paths.get(path))) {
-			System.err.println("Invalid path: " + path + " (File not found)");
-			System.exit(ERROR_CODE_FILE_NOT_FOUND);
-		}
-		return true;
+	private static void exit(Replacer replacer, ReplacerException e) {
+		report(replacer, e);
+		exit(replacer, e.getErrorCode());
+	}
+
+	/**
+	 * Exits after completing the backup archive and the report of the run
+	 */
+	private static void exit(Replacer replacer, int errorCode) {
+		close(replacer);
+		System.exit(errorCode);
 	}
 
-	static boolean checkBackupFileExists(String path) {
-		if (!isBackupEnabled)
-			return true;
-		Path p = Paths.get(path + ".bak");
-		if (Files.exists(p)) {
-			if (!isForceBackupEnabled) {
-				System.err.println("Backup file exists and force backup mode is disabled. File: " + path + ".bak");
-				System.exit(ERROR_CODE_BACKUP_ERROR_FILE_EXIST);
-			} else if (!Files.isWritable(p)) {
-				System.err.println("Backup file is not writable: " + path + ".bak");
-				System.exit(ERROR_CODE_BACKUP_WRITE_ERROR);
+	/**
+	 * Completes the backup archive and writes the report of the run
+	 *
+	 * @return false if the backup archive can not be written
+	 */
+	private static boolean close(Replacer replacer) {
+		boolean closed = true;
+		BackupArchive archive = replacer.getConfig().getBackupArchive();
+		if (archive != null) {
+			try {
+				archive.close();
+			} catch (IOException e) {
+				System.err.println("Backup - Error writing archive: " + archive.getPath());
+				closed = false;
 			}
 		}
+		if (replacer.getConfig().getReport() != null) {
+			replacer.getConfig().getReport().close();
+		}
+		return closed;
+	}
 
-		return true;
+	private static void report(Replacer replacer, ReplacerException e) {
+		System.err.println(e.getMessage());
+		if (replacer.getConfig().isDebugEnabled() && e.getCause() != null)
+			e.getCause().printStackTrace();
 	}
-	
-	static void readConfigFile(String path, List<String> all) {
-		try (BufferedReader br = new BufferedReader(new FileReader(path))) {
-			String line = br.readLine();
-			while (line != null) {
-				all.add(line);
-				line = br.readLine();
+
+	private static int parsePositiveInt(String value) {
+		try {
+			int number = Integer.parseInt(value);
+			if (number > 0) {
+				return number;
 			}
-		} catch (FileNotFoundException e) {
-			System.err.println("Replacement - Invalid path: " + path + " (File not found)");
-			System.exit(ERROR_CODE_FILE_NOT_FOUND);
+		} catch (NumberFormatException e) {
+			// invalid value
+		}
+		System.err.println(ERROR_MSG);
+		System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+		return 1;
+	}
+
+	/**
+	 * Values of -D arguments have precedence over value providers, value providers
+	 * over properties files, and environment variables are read if a key is not
+	 * defined in any of them. Value providers and properties files listed later
+	 * have precedence over previous ones.
+	 *
+	 * @param providers  sources opened from --values, in the order they are listed
+	 * @param properties values of the properties files, in the order they are
+	 *                   listed
+	 */
+	static ValueSource layeredValueSource(Map<String, String> overrides, List<ValueSource> providers,
+			List<Map<String, String>> properties) {
+		List<Map<String, String>> layers = new ArrayList<Map<String, String>>();
+		for (int i = properties.size() - 1; i >= 0; i--) {
+			layers.add(properties.get(i));
+		}
+		layers.add(System.getenv());
+		if (providers.isEmpty()) {
+			layers.add(0, overrides);
+			return ValueSource.layered(layers);
+		}
+		List<ValueSource> sources = new ArrayList<ValueSource>();
+		sources.add(ValueSource.snapshot(overrides));
+		for (int i = providers.size() - 1; i >= 0; i--) {
+			sources.add(providers.get(i));
+		}
+		sources.add(ValueSource.layered(layers));
+		return ValueSource.chain(sources);
+	}
+
+	/**
+	 * Values of an output with its own properties file: -D arguments have
+	 * precedence over the properties file, and the properties file over the
+	 * values of the run
+	 *
+	 * @param values values of the run
+	 */
+	static ValueSource outputValueSource(Map<String, String> overrides, Map<String, String> properties,
+			ValueSource values) {
+		return ValueSource.chain(Arrays.asList(ValueSource.snapshot(overrides), ValueSource.snapshot(properties), values));
+	}
+
+	/**
+	 * @return values of the properties file of an output
+	 * @throws ReplacerException if the file can not be read
+	 */
+	static Map<String, String> readOutputValues(Path path) throws ReplacerException {
+		try {
+			return readProperties(path.toString());
+		} catch (FileNotFoundException | NoSuchFileException e) {
+			throw new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Invalid path: " + path + " (File not found)", e);
 		} catch (IOException e) {
-			System.err.println("Replacement - Error reading from file: " + path);
-			if (isDebugEnabled)
-				e.printStackTrace();
-			System.exit(ERROR_CODE_ERROR_READING_FILE);
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error reading properties file: " + path, e);
 		}
 	}
 
-	static void replace(String path) {
-		if (isBackupEnabled) {
-			doBackup(path);
-		}
-		boolean removeTmpFile = false;
-		String tmpPath = path + ".tmp";
-		try (BufferedWriter bw = new BufferedWriter(new FileWriter(tmpPath))) {
-			try (BufferedReader br = new BufferedReader(new FileReader(path))) {
-				String line = br.readLine();
-				while (line != null) {
-					if (isTraceEnabled) System.out.println("input : " + line);
-					line = processLine(line);
-					if (isTraceEnabled) System.out.println("output: " + line);
-					bw.write(line);
-					line = br.readLine();
-					if (line != null) {
-						bw.write(System.lineSeparator());
-					}
-				}
-			} catch (FileNotFoundException e) {
-				System.err.println("Replacement - Invalid path: " + path + " (File not found)");
-				System.exit(ERROR_CODE_FILE_NOT_FOUND);
-			} catch (IOException e) {
-				System.err.println("Replacement - Error reading from file: " + path);
-				if (isDebugEnabled)
-					e.printStackTrace();
-				System.exit(ERROR_CODE_ERROR_READING_FILE);
-			}
-		} catch (IOException e1) {
-			System.err.println("Replacement - Error writing from file: " + tmpPath);
-			if (isDebugEnabled)
-				e1.printStackTrace();
-			System.exit(ERROR_CODE_ERROR_WRITING_FILE);
-		} catch (RequiredEnvironmentVariableException e) {
+	/**
+	 * Opens a source of values from a --values NAME:LOCATION argument, it exits if
+	 * it can not be opened
+	 */
+	private static ValueSource openValueProvider(String specification, boolean debug) {
+		try {
+			return ValueProviders.open(specification);
+		} catch (IllegalArgumentException e) {
 			System.err.println(e.getMessage());
-			removeTmpFile = true;
-		} finally {
-			if (removeTmpFile) {
-				try {
-					Files.delete(Paths.get(tmpPath));
-				} catch (IOException e) {
-					System.err.println("Cannot remove tmp file: " + tmpPath);
-					if (isDebugEnabled)
-						e.printStackTrace();
-				}
-				System.exit(ERROR_CODE_VAR_REQUIRED);
-			} else {
-				Path origin = Paths.get(path);
-				Path tmp = Paths.get(tmpPath);
-				String targetPath = filepathsMap.get(path);
-				Path target = (targetPath != null ? Paths.get(targetPath) : origin);
-				try {
-					if (isDebugEnabled) System.out.println("Moving tmp file from:" + tmp.toString() + " to: " + target.toString());
-					Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
-				} catch (IOException e) {
-					System.err.println("Replacement - Error moving tmp file: " + tmpPath + " to: " + target);
-					if (isDebugEnabled)
-						e.printStackTrace();
-					System.exit(ERROR_CODE_RENAMING_TMP_FILE);
-				}
-			}
+			System.err.println(ERROR_MSG);
+			System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+		} catch (NoSuchFileException e) {
+			System.err.println("Values - Invalid path: " + specification + " (File not found)");
+			System.exit(ERROR_CODE_FILE_NOT_FOUND);
+		} catch (IOException e) {
+			System.err.println("Values - Error reading values: " + specification + " (" + e.getMessage() + ")");
+			if (debug)
+				e.printStackTrace();
+			System.exit(ERROR_CODE_ERROR_READING_VALUES);
 		}
+		return null;
+	}
 
+	static Map<String, String> readProperties(String path) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream input = new FileInputStream(path)) {
+			properties.load(input);
+		}
+		Map<String, String> values = new HashMap<String, String>();
+		for (String key : properties.stringPropertyNames()) {
+			values.put(key, properties.getProperty(key));
+		}
+		return values;
 	}
 
-	private static String processLine(String line) throws RequiredEnvironmentVariableException {
-		ExpressionResult result = new ExpressionResult(true, line, new HashSet<String>(), new HashMap<String, String>());
-		int i = 0;
-		while ((result = processExpression(result)).isReplaced()) {
-			i++;
-			if (i > 99) throw new RuntimeException("Error processing line: " + line);
-		}
-		String string = result.getStr();
-		//replace escaped end chars...
-		for (String rplKey : result.getEscapedEndChars()) {
-			string = string.replace(rplKey, "}");
-		}
-		//replace skipped regions...
-		Set<String> keySet = result.getSkippedRegions().keySet();
-		string = replaceRegion(string, keySet, result.getSkippedRegions());
-		
-		return string;
+	private static BackupStrategy parseBackupStrategy(String name) {
+		try {
+			return BackupStrategy.valueOf(name.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			System.err.println("Invalid backup mode: " + name);
+			System.err.println(ERROR_MSG);
+			System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+			return null;
+		}
 	}
-	
-	private static String replaceRegion(String str, Set<String> keys, Map<String, String> map) {
-		Set<String> keysToRemove = new HashSet<String>();
-		boolean replaced = false;
-		for (String key : keys) {
-			if (str.contains(key)) {
-				keysToRemove.add(key);
-				str = str.replace(key, map.get(key));
-				replaced = true;
-			}
+
+	private static Charset parseCharset(String name) {
+		try {
+			return Charset.forName(name);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Invalid charset: " + name);
+			System.err.println(ERROR_MSG);
+			System.exit(ERROR_CODE_INVALID_ARGUMENTS);
+			return null;
 		}
-		//remove processed keys from pendings
-		keys.removeAll(keysToRemove);
-		return replaced && !keys.isEmpty() ? replaceRegion(str, keys, map) : str;
 	}
-	
-	@Data @AllArgsConstructor
-	private static class ExpressionResult{
-		boolean replaced = false;
-		String str;
-		Set<String> escapedEndChars;
-		Map<String, String> skippedRegions;
+
+	/**
+	 * Processes the files using a pool of threads. Every file is processed, errors
+	 * are reported by file and the exit code is the one of the first failed file
+	 * in the list.
+	 */
+	static void replaceInParallel(Replacer replacer, Set<Path> files, int threads) {
+		List<ReplacerException> errors = forEachFile(replacer, files, threads, replacer::replace);
+		if (!errors.isEmpty()) {
+			exit(replacer, errors.get(0).getErrorCode());
+		}
 	}
-	private static ExpressionResult processExpression(ExpressionResult exp) throws RequiredEnvironmentVariableException {
-		char[] charArray = exp.getStr().toCharArray();
-		int startTagIndex = -1;
-		int keyEndIndex = -1;
-		int endTagIndex = -1;
-		boolean hasEscapedEndChar = false;
-		
-		for (int i = 0; i < charArray.length; i++) {
-			if (charArray[i] == '$' ) {
-				if (i + 1 < charArray.length && charArray[i+1] == '{') {
-					// if exists '${' 
-					startTagIndex = i;
-					keyEndIndex = -1;
-					i++; //skip ${
-				}
-			} else if (charArray[i] == ':') {
-				if (keyEndIndex < 0) {
-					keyEndIndex = i;
-				}
-			} else if (charArray[i] == '}') {
-				if (startTagIndex > -1) {
-					if (keyEndIndex > -1) {
-						if (i - 1 >= 0 && charArray[i-1] == '\\') {
-							hasEscapedEndChar = true;
-						} else {
-							endTagIndex = i;
-							break;
-						}
-					} else  {
-						keyEndIndex = i;
-						endTagIndex = i;
-						break;
-					}
-				}
-				
-			} else {
-				// if startTagIndex exists but no boundary is determined..
-				if (startTagIndex > -1 && keyEndIndex < 0) {
-					// if char is not allowed... - | . | 0-1 | A-Z | _ | a-z | 
-					char c = charArray[i];
-					if (!(c == 45 || c == 46 || (c > 47 && c < 58) || (c > 64 && c < 91) || c == 95 || (c > 96 && c < 123))) {
-						startTagIndex = -1;
-					}
+
+	/**
+	 * Processes the files in a {@link Transaction}: every file is written to a
+	 * temporal file, and they are moved to their outputs only if no file failed.
+	 * Errors are reported by file, missing variables of all the files are listed
+	 * together, and the exit code is the one of the first failed file in the
+	 * list.
+	 */
+	static void replaceInTransaction(Replacer replacer, Set<Path> files, int threads) {
+		Transaction transaction = new Transaction(replacer);
+		List<ReplacerException> errors = forEachFile(replacer, files, threads, transaction::prepare);
+		if (!errors.isEmpty()) {
+			transaction.rollback();
+			Set<String> missing = new LinkedHashSet<String>();
+			for (ReplacerException error : errors) {
+				if (error instanceof com.github.arielcarrera.env.var.replacer.RequiredEnvironmentVariableException) {
+					missing.addAll(((com.github.arielcarrera.env.var.replacer.RequiredEnvironmentVariableException) error).getKeys());
 				}
-				//else any char allowed
 			}
+			if (!missing.isEmpty()) {
+				System.err.println("Missing required variables: " + String.join(", ", missing));
+			}
+			System.err.println("Replacement - No file was modified, " + errors.size() + " of " + files.size() + " files failed");
+			exit(replacer, errors.get(0).getErrorCode());
+		}
+		try {
+			transaction.commit();
+		} catch (ReplacerException e) {
+			exit(replacer, e);
 		}
+	}
 
-		//if an expression is detected...
-		if (startTagIndex > -1 && keyEndIndex > -1 && endTagIndex > -1) {
-			String keyName = exp.getStr().substring(startTagIndex+2, keyEndIndex);
-			boolean toInclude = (isFilterByPrefixEnabled ? false : true);
-			if (isFilterByPrefixEnabled) {
-				for (String pre : filterPrefixes) {
-					if (keyName.startsWith(pre)) {
-						toInclude = true;
-						break;
-					}
-				}
-				if (!toInclude) {
-					String randomUUID = "__SKIPPED__" + UUID.randomUUID().toString();
-					exp.getSkippedRegions().put(randomUUID, exp.getStr().substring(startTagIndex, endTagIndex + 1));
-					if (endTagIndex + 1 < exp.getStr().length()) {
-						return new ExpressionResult(true, exp.getStr().substring(0, startTagIndex) + randomUUID + exp.getStr().substring(endTagIndex +1, exp.getStr().length()), exp.getEscapedEndChars(), exp.getSkippedRegions());
-					}
-					return new ExpressionResult(true, exp.getStr().substring(0, startTagIndex) + randomUUID, exp.getEscapedEndChars(), exp.getSkippedRegions());
-				}
+	/**
+	 * Task run for a file
+	 */
+	@FunctionalInterface
+	interface FileTask {
+		void run(Path path) throws ReplacerException;
+	}
+
+	/**
+	 * Runs a task for every file using a pool of threads. Errors are reported by
+	 * file.
+	 *
+	 * @return errors in the order of the list
+	 */
+	private static List<ReplacerException> forEachFile(Replacer replacer, Set<Path> files, int threads, FileTask task) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+		List<ReplacerException> errors = new ArrayList<ReplacerException>();
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(files.size());
+			for (Path path : files) {
+				futures.add(executor.submit(() -> {
+					task.run(path);
+					return null;
+				}));
 			}
-			
-			String value = resolveValue(keyName);
-			boolean hasDefaultValue = keyEndIndex != endTagIndex;
-			boolean isRequired = !hasDefaultValue;
-			if (isRequired && value == null) {
-				throw new RequiredEnvironmentVariableException(
-						"Environment Variable " + keyName + " is required");
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					ReplacerException error = cause instanceof ReplacerException ? (ReplacerException) cause
+							: new ReplacerException(ERROR_CODE_ERROR_WRITING_FILE, "Replacement - Unexpected error: " + cause, cause);
+					report(replacer, error);
+					errors.add(error);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					errors.add(new ReplacerException(ERROR_CODE_ERROR_WRITING_FILE, "Replacement - Interrupted"));
+					break;
+				}
 			}
-			if (value == null) {
-				value = exp.getStr().substring(keyEndIndex + 1, endTagIndex);
+		} finally {
+			executor.shutdownNow();
+		}
+		return errors;
+	}
+
+	/**
+	 * Finds the expressions of the files using a pool of threads, the files are
+	 * not modified. The index is built in the order of the list.
+	 */
+	static UsageIndex scan(Replacer replacer, Set<Path> files, int threads) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+		UsageIndex index = new UsageIndex();
+		try {
+			List<Future<List<Usage>>> futures = new ArrayList<Future<List<Usage>>>(files.size());
+			for (Path path : files) {
+				futures.add(executor.submit(() -> replacer.scan(path)));
 			}
-			
-			//replace escaped end tags....
-			if (value.contains("\\}") || hasEscapedEndChar) {
-				int indexOf = value.indexOf("\\}");
-				while (indexOf > 0 ) {
-					//generate random key to replace
-					String randomUUID = "__REPLACE__" + UUID.randomUUID().toString();
-					exp.getEscapedEndChars().add(randomUUID);
-					value = value.substring(0, indexOf) + randomUUID + value.substring(indexOf + "\\}".length());
-					indexOf = value.indexOf("\\}");
+			for (Future<List<Usage>> future : futures) {
+				try {
+					index.add(future.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					exit(replacer, cause instanceof ReplacerException ? (ReplacerException) cause
+							: new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Unexpected error: " + cause, cause));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					System.exit(ERROR_CODE_ERROR_READING_FILE);
 				}
 			}
-			
-			if (endTagIndex + 1 < exp.getStr().length()) {
-				return new ExpressionResult(true, exp.getStr().substring(0, startTagIndex) + value + exp.getStr().substring(endTagIndex +1, exp.getStr().length()), exp.getEscapedEndChars(), exp.getSkippedRegions());
-			}
-			return new ExpressionResult(true, exp.getStr().substring(0, startTagIndex) + value, exp.getEscapedEndChars(), exp.getSkippedRegions());
+		} finally {
+			executor.shutdownNow();
 		}
-		return new ExpressionResult(false, exp.getStr(), exp.getEscapedEndChars(), exp.getSkippedRegions());
+		return index;
 	}
 
-	private static String resolveValue(String keyName) {
-		String key = (isRemovePrefixEnabled && keyName.startsWith(prefix) ? keyName.substring(prefix.length()) : keyName);
-		return isSourceProperties ? properties.getProperty(key) : System.getenv(key);
+	static boolean validate(String path) {
+		if (path == null || path.isEmpty()) {
+			System.err.println("Invalid path: " + path);
+			System.exit(ERROR_CODE_INVALID_PATH);
+		}
+		return true;
+	}
+	
+	static boolean checkFile(String path) {
+		if (!Files.isReadable(Paths.get(path))) {
+			System.err.println("Invalid path: " + path + " (File not found)");
+			System.exit(ERROR_CODE_FILE_NOT_FOUND);
+		}
+		return true;
 	}
 
-	private static void doBackup(String path) {
-		Path source = Paths.get(path);
-		Path target = Paths.get(path + ".bak");
-		try {
-			if (isForceBackupEnabled) {
-				Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
-			} else {
-				Files.copy(source, target);
+	static void readConfigFile(String path, List<String> all, boolean isDebugEnabled) {
+		try (BufferedReader br = new BufferedReader(new FileReader(path))) {
+			String line = br.readLine();
+			while (line != null) {
+				all.add(line);
+				line = br.readLine();
 			}
-		} catch (FileAlreadyExistsException e2) {
-			System.err.println("Error during backup of file (File already exist): " + path);
-			System.exit(ERROR_CODE_BACKUP_ERROR_FILE_EXIST);
-		} catch (IOException e1) {
-			System.err.println("Error during backup of file: " + path);
+		} catch (FileNotFoundException e) {
+			System.err.println("Replacement - Invalid path: " + path + " (File not found)");
+			System.exit(ERROR_CODE_FILE_NOT_FOUND);
+		} catch (IOException e) {
+			System.err.println("Replacement - Error reading from file: " + path);
 			if (isDebugEnabled)
-				e1.printStackTrace();
-			System.exit(ERROR_CODE_BACKUP_ERROR);
+				e.printStackTrace();
+			System.exit(ERROR_CODE_ERROR_READING_FILE);
 		}
 	}
 
@@ -0,0 +1,435 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.github.arielcarrera.env.var.replacer.FileStats.Phase;
+
+/**
+ * Single-pass scanner that replaces expressions like ${KEY} or ${KEY:default}
+ * in a line, or in a stream read in chunks.
+ * <p>
+ * The line is read once from left to right and the result is written into a
+ * reusable buffer. Nested expressions are resolved before the enclosing one
+ * (inside a key they become part of the key name), escaped end chars (\}) inside
+ * a default value are unescaped only when that default is used and filtered
+ * expressions are copied through as they are. Resolved values are not scanned
+ * again; inside the default value of another expression their end chars are
+ * escaped, so a filtered expression that encloses them is still valid for the
+ * next pass.
+ * <p>
+ * Instances are not thread-safe, use one scanner per thread.
+ */
+final class ExpressionScanner {
+
+	private final Predicate<String> filter;
+	private final Function<String, String> resolver;
+	private final StringBuilder out = new StringBuilder(256);
+	private final List<Frame> frames = new ArrayList<Frame>();
+	private int depth;
+	/**
+	 * Counters of the file being processed, null to not count expressions
+	 */
+	FileStats stats;
+
+	/**
+	 * @param filter   keys to be replaced, null to replace all keys
+	 * @param resolver returns the value of a key or null if it is not defined
+	 */
+	ExpressionScanner(Predicate<String> filter, Function<String, String> resolver) {
+		this.filter = filter;
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Processes a line. The returned buffer is reused by the next call.
+	 *
+	 * @param line line to process
+	 * @return processed line
+	 * @throws RequiredEnvironmentVariableException if an expression without
+	 *                                              default value has no value
+	 */
+	CharSequence processLine(String line) throws RequiredEnvironmentVariableException {
+		out.setLength(0);
+		depth = 0;
+		final int length = line.length();
+		int i = 0;
+		while (i < length) {
+			if (depth == 0) {
+				int next = line.indexOf("${", i);
+				if (next < 0) {
+					out.append(line, i, length);
+					break;
+				}
+				out.append(line, i, next);
+				open();
+				i = next + 2;
+				continue;
+			}
+			Frame frame = frames.get(depth - 1);
+			char c = line.charAt(i);
+			if (c == '$' && i + 1 < length && line.charAt(i + 1) == '{') {
+				open();
+				i += 2;
+				continue;
+			}
+			if (frame.defaultStart < 0) {
+				if (c == '}') {
+					close(frame);
+				} else if (c == ':') {
+					out.append(c);
+					frame.defaultStart = out.length();
+				} else if (isKeyChar(c)) {
+					out.append(c);
+				} else {
+					// invalid key, pending expressions remain as they are
+					abandon();
+					out.append(c);
+				}
+			} else if (c == '}') {
+				if (line.charAt(i - 1) == '\\') {
+					frame.addEscape(out.length() - 1);
+					out.append(c);
+				} else {
+					close(frame);
+				}
+			} else {
+				out.append(c);
+			}
+			i++;
+		}
+		// unterminated expressions remain as they are
+		abandon();
+		return out;
+	}
+
+	/**
+	 * Processes a stream in chunks, without splitting it in lines. Text outside
+	 * expressions is written as soon as it is read and only the expression being
+	 * replaced is buffered, so memory does not depend on the size of lines or of
+	 * the stream. The result is the same as processing every line with
+	 * {@link #processLine(String)}: line terminators end open expressions, and
+	 * they are written as they are read.
+	 *
+	 * @param reader        input, it is not closed
+	 * @param writer        output, it is not closed or flushed
+	 * @param buffer        chunk buffer, at least 2 chars
+	 * @param maxExpression max chars of an expression
+	 * @return number of lines
+	 * @throws ExpressionTooLongException           if an expression is longer
+	 *                                              than maxExpression
+	 * @throws RequiredEnvironmentVariableException if an expression without
+	 *                                              default value has no value
+	 */
+	long process(Reader reader, Writer writer, char[] buffer, int maxExpression)
+			throws IOException, RequiredEnvironmentVariableException {
+		out.setLength(0);
+		depth = 0;
+		long lines = 0;
+		// offsets of the first char of the buffer and of the open expression
+		long offset = 0;
+		long start = 0;
+		char previous = '\n';
+		int carry = 0;
+		boolean end = false;
+		while (!end) {
+			int n = reader.read(buffer, carry, buffer.length - carry);
+			while (n == 0) {
+				n = reader.read(buffer, carry, buffer.length - carry);
+			}
+			end = n < 0;
+			int limit = carry + Math.max(n, 0);
+			if (stats != null) stats.lap(Phase.READ);
+			int literal = 0;
+			int i = 0;
+			while (i < limit) {
+				char c = buffer[i];
+				if (c == '$' && i + 1 == limit && !end) {
+					// "${" can be split between chunks
+					break;
+				}
+				if (c == '$' && i + 1 < limit && buffer[i + 1] == '{') {
+					if (depth == 0) {
+						writer.write(buffer, literal, i - literal);
+						start = offset + i;
+					}
+					open();
+					previous = '{';
+					i += 2;
+					continue;
+				}
+				if (depth == 0) {
+					if (c == '\r' || (c == '\n' && previous != '\r')) {
+						lines++;
+					}
+				} else if (c == '\n' || c == '\r') {
+					// unterminated expressions remain as they are, the terminator is read again
+					abandon();
+					literal = flush(writer, i);
+					continue;
+				} else {
+					Frame frame = frames.get(depth - 1);
+					if (frame.defaultStart < 0) {
+						if (c == '}') {
+							close(frame);
+						} else if (c == ':') {
+							out.append(c);
+							frame.defaultStart = out.length();
+						} else if (isKeyChar(c)) {
+							out.append(c);
+						} else {
+							// invalid key, pending expressions remain as they are
+							abandon();
+							out.append(c);
+						}
+					} else if (c == '}') {
+						if (previous == '\\') {
+							frame.addEscape(out.length() - 1);
+							out.append(c);
+						} else {
+							close(frame);
+						}
+					} else {
+						out.append(c);
+					}
+					if (depth > 0 && out.length() > maxExpression) {
+						abandon();
+						throw new ExpressionTooLongException(start, maxExpression);
+					}
+					if (depth == 0) {
+						literal = flush(writer, i + 1);
+					}
+				}
+				previous = c;
+				i++;
+			}
+			if (depth == 0) {
+				writer.write(buffer, literal, i - literal);
+			}
+			carry = limit - i;
+			offset += i;
+			if (carry > 0) {
+				buffer[0] = buffer[i];
+			}
+			if (stats != null) stats.lap(Phase.SUBSTITUTE);
+		}
+		if (depth > 0) {
+			// unterminated expressions remain as they are
+			abandon();
+			flush(writer, 0);
+		}
+		return previous != '\n' && previous != '\r' ? lines + 1 : lines;
+	}
+
+	/**
+	 * Writes the buffered expression
+	 *
+	 * @return index where the next literal text starts
+	 */
+	private int flush(Writer writer, int next) throws IOException {
+		writer.append(out);
+		out.setLength(0);
+		return next;
+	}
+
+	/**
+	 * Ends the open expressions, they remain as they are written: the escapes
+	 * added to the results of their inner expressions are removed
+	 */
+	private void abandon() {
+		for (int f = depth - 1; f >= 0; f--) {
+			Frame frame = frames.get(f);
+			for (int k = frame.addedCount - 1; k >= 0; k--) {
+				out.deleteCharAt(frame.added[k]);
+			}
+		}
+		depth = 0;
+	}
+
+	private void open() {
+		if (depth == frames.size()) {
+			frames.add(new Frame());
+		}
+		frames.get(depth++).reset(out.length());
+		out.append("${");
+	}
+
+	private void close(Frame frame) throws RequiredEnvironmentVariableException {
+		depth--;
+		replace(frame);
+		if (depth > 0 && frames.get(depth - 1).defaultStart < 0) {
+			// expression inside a key, its result is part of the enclosing key
+			for (int i = frame.start; i < out.length(); i++) {
+				if (!isKeyChar(out.charAt(i))) {
+					// invalid key, pending expressions remain as they are
+					abandon();
+					break;
+				}
+			}
+		}
+	}
+
+	private void replace(Frame frame) throws RequiredEnvironmentVariableException {
+		boolean hasDefaultValue = frame.defaultStart >= 0;
+		String keyName = out.substring(frame.start + 2, hasDefaultValue ? frame.defaultStart - 1 : out.length());
+		if (filter != null && !filter.test(keyName)) {
+			// skipped region
+			out.append('}');
+			if (stats != null) stats.skipped++;
+			return;
+		}
+		String value = resolver.apply(keyName);
+		if (value != null) {
+			out.setLength(frame.start);
+			int escapes = appendUnescaped(out, value);
+			if (stats != null) {
+				stats.placeholders++;
+				stats.escapes += escapes;
+			}
+			escapeInDefault(frame.start);
+		} else if (hasDefaultValue) {
+			// move the default value to the start of the expression removing escape chars
+			int write = frame.start;
+			int escape = 0;
+			for (int read = frame.defaultStart; read < out.length(); read++) {
+				if (escape < frame.escapeCount && frame.escapes[escape] == read) {
+					escape++;
+				} else {
+					out.setCharAt(write++, out.charAt(read));
+				}
+			}
+			out.setLength(write);
+			if (stats != null) {
+				stats.defaults++;
+				stats.escapes += frame.escapeCount - frame.addedCount;
+			}
+			escapeInDefault(frame.start);
+		} else {
+			throw new RequiredEnvironmentVariableException(keyName);
+		}
+	}
+
+	/**
+	 * Escapes the end chars of a result inside the default value of the
+	 * enclosing expression. The escapes are removed if that default value is
+	 * used, and kept if the enclosing expression is filtered.
+	 */
+	private void escapeInDefault(int start) {
+		if (depth == 0 || frames.get(depth - 1).defaultStart < 0) {
+			return;
+		}
+		Frame enclosing = frames.get(depth - 1);
+		for (int i = start; i < out.length(); i++) {
+			if (out.charAt(i) == '}') {
+				out.insert(i, '\\');
+				enclosing.addEscape(i);
+				enclosing.addAdded(i++);
+			}
+		}
+	}
+
+	/**
+	 * Escapes the end chars of a result, from a position of the buffer
+	 */
+	static void escapeEndChars(StringBuilder out, int start) {
+		for (int i = start; i < out.length(); i++) {
+			if (out.charAt(i) == '}') {
+				out.insert(i++, '\\');
+			}
+		}
+	}
+
+	/**
+	 * Appends a value replacing escaped end chars (\}) with end chars
+	 *
+	 * @return number of unescaped end chars
+	 */
+	static int appendUnescaped(StringBuilder out, String value) {
+		int from = 0;
+		int count = 0;
+		int indexOf = value.indexOf("\\}");
+		while (indexOf >= 0) {
+			out.append(value, from, indexOf);
+			from = indexOf + 1;
+			count++;
+			indexOf = value.indexOf("\\}", from + 1);
+		}
+		out.append(value, from, value.length());
+		return count;
+	}
+
+	/**
+	 * Allowed chars in a key: - | . | 0-9 | A-Z | _ | a-z | $
+	 */
+	static boolean isKeyChar(char c) {
+		return c == '-' || c == '.' || (c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || c == '_'
+				|| (c >= 'a' && c <= 'z') || c == '$';
+	}
+
+	/**
+	 * An expression is longer than the max chars of chunked mode
+	 */
+	static final class ExpressionTooLongException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final long offset;
+
+		ExpressionTooLongException(long offset, int maxExpression) {
+			super("Expression longer than " + maxExpression + " chars at offset " + offset);
+			this.offset = offset;
+		}
+
+		/**
+		 * @return offset in chars of the start of the expression
+		 */
+		long getOffset() {
+			return offset;
+		}
+	}
+
+	/**
+	 * State of an open expression. Positions are relative to the output buffer.
+	 */
+	private static final class Frame {
+		int start;
+		int defaultStart;
+		int[] escapes = new int[4];
+		int escapeCount;
+		/**
+		 * Escapes added to the results of inner expressions, not written in
+		 * the input
+		 */
+		int[] added = new int[4];
+		int addedCount;
+
+		void reset(int start) {
+			this.start = start;
+			this.defaultStart = -1;
+			this.escapeCount = 0;
+			this.addedCount = 0;
+		}
+
+		void addEscape(int position) {
+			if (escapeCount == escapes.length) {
+				int[] copy = new int[escapeCount * 2];
+				System.arraycopy(escapes, 0, copy, 0, escapeCount);
+				escapes = copy;
+			}
+			escapes[escapeCount++] = position;
+		}
+
+		void addAdded(int position) {
+			if (addedCount == added.length) {
+				int[] copy = new int[addedCount * 2];
+				System.arraycopy(added, 0, copy, 0, addedCount);
+				added = copy;
+			}
+			added[addedCount++] = position;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.nio.file.Path;
+
+/**
+ * Timings and counters of the replacement of a file, recorded when a
+ * {@link RunReport} is configured. Components check for a null instance before
+ * recording, so nothing is measured when reports are disabled.
+ * <p>
+ * Instances are not thread-safe, a file is processed by one thread.
+ */
+final class FileStats {
+
+	/**
+	 * Phases of a replacement. Files are streamed, so reading, substituting and
+	 * writing are timed line by line. In chunked mode they are timed chunk by
+	 * chunk and writing is timed as substitution.
+	 */
+	enum Phase {
+		/**
+		 * Reading lines, searching expressions and compiling templates
+		 */
+		READ,
+		/**
+		 * Replacing the expressions of lines
+		 */
+		SUBSTITUTE,
+		/**
+		 * Writing lines to the temporal file
+		 */
+		WRITE,
+		BACKUP,
+		/**
+		 * Moving the temporal file to the output
+		 */
+		MOVE
+	}
+
+	final Path input;
+	final Path output;
+	final long[] nanos = new long[Phase.values().length];
+	long lines;
+	/**
+	 * Expressions replaced with values
+	 */
+	long placeholders;
+	/**
+	 * Expressions replaced with their default values
+	 */
+	long defaults;
+	/**
+	 * Expressions left as they are by the prefix filter
+	 */
+	long skipped;
+	/**
+	 * Escaped end chars (\}) unescaped in values and used default values
+	 */
+	long escapes;
+	long bytesIn;
+	long bytesOut;
+	boolean modified;
+	String error;
+	private long mark;
+
+	/**
+	 * @param input  processed file, null for streams
+	 * @param output written file, null for streams
+	 */
+	FileStats(Path input, Path output) {
+		this.input = input;
+		this.output = output;
+		this.mark = System.nanoTime();
+	}
+
+	/**
+	 * Starts timing a phase from now
+	 */
+	void start() {
+		mark = System.nanoTime();
+	}
+
+	/**
+	 * Adds the time since the previous call, or since {@link #start()}, to a
+	 * phase
+	 */
+	void lap(Phase phase) {
+		long now = System.nanoTime();
+		nanos[phase.ordinal()] += now - mark;
+		mark = now;
+	}
+
+	long totalNanos() {
+		long total = 0;
+		for (long n : nanos) {
+			total += n;
+		}
+		return total;
+	}
+}
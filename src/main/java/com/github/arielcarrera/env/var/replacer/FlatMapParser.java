@@ -0,0 +1,458 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsers of the files of values read by {@link ValueProviders}: .env files,
+ * JSON objects and YAML mappings, and of the JSON requests of {@link Daemon}.
+ * Only flat maps of keys to scalar values are supported, nested values are
+ * rejected, except for the objects of requests. Values are not expanded.
+ * <p>
+ * Errors are reported as {@link IOException} with the file and the line of the
+ * error.
+ */
+final class FlatMapParser {
+
+	private FlatMapParser() {
+	}
+
+	/**
+	 * Parses KEY=VALUE lines. Lines can start with "export", empty lines and
+	 * lines starting with # are ignored. Values can be quoted: single quoted
+	 * values are literal, double quoted values support \n, \r, \t, \", \\ and \$
+	 * escapes, and both of them can span many lines. Unquoted values are trimmed
+	 * and end at " #".
+	 *
+	 * @param file  name of the file for error messages
+	 * @param lines lines of the file
+	 * @return values by key
+	 */
+	static Map<String, String> parseDotEnv(String file, List<String> lines) throws IOException {
+		Map<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if (line.isEmpty() || line.charAt(0) == '#') {
+				continue;
+			}
+			if (line.startsWith("export ") || line.startsWith("export\t")) {
+				line = line.substring(7).trim();
+			}
+			int equals = line.indexOf('=');
+			if (equals < 0) {
+				throw error(file, i, "Expected KEY=VALUE");
+			}
+			String key = checkKey(file, i, line.substring(0, equals).trim());
+			String rest = line.substring(equals + 1).trim();
+			if (rest.isEmpty() || (rest.charAt(0) != '"' && rest.charAt(0) != '\'')) {
+				int comment = rest.indexOf(" #");
+				values.put(key, (comment >= 0 ? rest.substring(0, comment) : rest).trim());
+				continue;
+			}
+			char quote = rest.charAt(0);
+			StringBuilder value = new StringBuilder();
+			int start = i;
+			int end = appendQuoted(rest, 1, quote, value);
+			while (end < 0) {
+				if (++i == lines.size()) {
+					throw error(file, start, "Unterminated quoted value");
+				}
+				value.append('\n');
+				rest = lines.get(i);
+				end = appendQuoted(rest, 0, quote, value);
+			}
+			String after = rest.substring(end + 1).trim();
+			if (!after.isEmpty() && after.charAt(0) != '#') {
+				throw error(file, i, "Unexpected text after quoted value");
+			}
+			values.put(key, value.toString());
+		}
+		return values;
+	}
+
+	/**
+	 * Appends a quoted value of a .env file up to its closing quote
+	 *
+	 * @return index of the closing quote or -1 if the value continues in the next
+	 *         line
+	 */
+	private static int appendQuoted(String line, int from, char quote, StringBuilder value) {
+		for (int i = from; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == quote) {
+				return i;
+			}
+			if (c == '\\' && quote == '"' && i + 1 < line.length()) {
+				char next = line.charAt(++i);
+				switch (next) {
+				case 'n':
+					value.append('\n');
+					break;
+				case 'r':
+					value.append('\r');
+					break;
+				case 't':
+					value.append('\t');
+					break;
+				case '"':
+				case '\\':
+				case '$':
+					value.append(next);
+					break;
+				default:
+					value.append(c).append(next);
+				}
+			} else {
+				value.append(c);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses a JSON object whose values are strings, numbers, booleans or null.
+	 * Numbers and booleans are read as their text, keys with null values are not
+	 * defined.
+	 *
+	 * @param file name of the file for error messages
+	 * @param text content of the file
+	 * @return values by key
+	 */
+	static Map<String, String> parseJson(String file, String text) throws IOException {
+		Map<String, String> values = new HashMap<String, String>();
+		for (Map.Entry<String, Object> entry : new JsonParser(file, text).parseDocument(0).entrySet()) {
+			values.put(entry.getKey(), (String) entry.getValue());
+		}
+		return values;
+	}
+
+	/**
+	 * Parses a JSON object whose values are scalars, like
+	 * {@link #parseJson(String, String)}, or objects up to a level of nesting.
+	 *
+	 * @param file    name of the text for error messages
+	 * @param text    the object
+	 * @param nesting levels of nested objects allowed, 0 for a flat object
+	 * @return values by key, nested objects are maps too
+	 */
+	static Map<String, Object> parseJson(String file, String text, int nesting) throws IOException {
+		return new JsonParser(file, text).parseDocument(nesting);
+	}
+
+	/**
+	 * Parses a YAML mapping of keys to scalars, like "key: value". Keys and
+	 * values can be plain, single quoted ('' is a quote) or double quoted (with
+	 * JSON escapes). Comments and document markers are ignored, empty values, ~
+	 * and null are not defined. Nested mappings, sequences, flow collections and
+	 * block scalars are not supported.
+	 *
+	 * @param file  name of the file for error messages
+	 * @param lines lines of the file
+	 * @return values by key
+	 */
+	static Map<String, String> parseYaml(String file, List<String> lines) throws IOException {
+		Map<String, String> values = new HashMap<String, String>();
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i);
+			String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.charAt(0) == '#' || trimmed.equals("---") || trimmed.equals("...")) {
+				continue;
+			}
+			if (line.charAt(0) == ' ' || line.charAt(0) == '\t' || trimmed.startsWith("- ") || trimmed.equals("-")) {
+				throw error(file, i, "Nested values are not supported");
+			}
+			int[] position = { 0 };
+			String key = yamlScalar(file, i, line, position, true);
+			if (position[0] >= line.length() || line.charAt(position[0]) != ':') {
+				throw error(file, i, "Expected key: value");
+			}
+			position[0]++;
+			String value = yamlScalar(file, i, line, position, false);
+			if (value != null) {
+				values.put(key, value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Reads a scalar from a position of a line of YAML, moving the position after
+	 * it
+	 *
+	 * @param key true to read a key, it ends at ":"
+	 * @return the scalar, null for empty values, ~ and null
+	 */
+	private static String yamlScalar(String file, int lineNumber, String line, int[] position, boolean key)
+			throws IOException {
+		int i = position[0];
+		while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) {
+			i++;
+		}
+		if (i == line.length() || line.charAt(i) == '#') {
+			if (key) {
+				throw error(file, lineNumber, "Expected key: value");
+			}
+			position[0] = line.length();
+			return null;
+		}
+		char first = line.charAt(i);
+		String scalar;
+		if (first == '"') {
+			JsonParser parser = new JsonParser(file, line);
+			parser.firstLine = lineNumber;
+			parser.position = i;
+			scalar = parser.parseString();
+			i = parser.position;
+		} else if (first == '\'') {
+			StringBuilder sb = new StringBuilder();
+			i++;
+			while (true) {
+				if (i >= line.length()) {
+					throw error(file, lineNumber, "Unterminated quoted value");
+				}
+				char c = line.charAt(i++);
+				if (c == '\'') {
+					if (i < line.length() && line.charAt(i) == '\'') {
+						sb.append('\'');
+						i++;
+					} else {
+						break;
+					}
+				} else {
+					sb.append(c);
+				}
+			}
+			scalar = sb.toString();
+		} else if (!key && (first == '{' || first == '[')) {
+			throw error(file, lineNumber, "Nested values are not supported");
+		} else if (!key && (first == '|' || first == '>')) {
+			throw error(file, lineNumber, "Block scalars are not supported");
+		} else {
+			int start = i;
+			while (i < line.length()) {
+				char c = line.charAt(i);
+				if (key && c == ':' && (i + 1 == line.length() || line.charAt(i + 1) == ' ' || line.charAt(i + 1) == '\t')) {
+					break;
+				}
+				if (c == '#' && (line.charAt(i - 1) == ' ' || line.charAt(i - 1) == '\t')) {
+					break;
+				}
+				i++;
+			}
+			scalar = line.substring(start, i).trim();
+			if (!key && (scalar.equals("~") || scalar.equals("null") || scalar.equals("Null") || scalar.equals("NULL"))) {
+				scalar = null;
+			}
+		}
+		if (key) {
+			while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) {
+				i++;
+			}
+		} else {
+			String after = line.substring(i).trim();
+			if (!after.isEmpty() && after.charAt(0) != '#') {
+				throw error(file, lineNumber, "Unexpected text after value");
+			}
+			i = line.length();
+		}
+		position[0] = i;
+		return scalar;
+	}
+
+	private static String checkKey(String file, int line, String key) throws IOException {
+		if (key.isEmpty()) {
+			throw error(file, line, "Empty key");
+		}
+		for (int i = 0; i < key.length(); i++) {
+			if (!ExpressionScanner.isKeyChar(key.charAt(i))) {
+				throw error(file, line, "Invalid key: " + key);
+			}
+		}
+		return key;
+	}
+
+	private static IOException error(String file, int line, String message) {
+		return new IOException(message + " (" + file + ":" + (line + 1) + ")");
+	}
+
+	/**
+	 * Recursive descent parser of a JSON object
+	 */
+	private static final class JsonParser {
+		private final String file;
+		private final String text;
+		/**
+		 * Line of the file where the text starts
+		 */
+		int firstLine;
+		int position;
+
+		JsonParser(String file, String text) {
+			this.file = file;
+			this.text = text;
+		}
+
+		/**
+		 * Parses the text as a single object
+		 */
+		Map<String, Object> parseDocument(int nesting) throws IOException {
+			skipWhitespace();
+			Map<String, Object> values = parseObject(nesting);
+			skipWhitespace();
+			if (position < text.length()) {
+				throw error("Unexpected text after the object");
+			}
+			return values;
+		}
+
+		private Map<String, Object> parseObject(int nesting) throws IOException {
+			Map<String, Object> values = new HashMap<String, Object>();
+			expect('{');
+			skipWhitespace();
+			if (peek() == '}') {
+				position++;
+				return values;
+			}
+			while (true) {
+				skipWhitespace();
+				String key = parseString();
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				Object value = parseValue(key, nesting);
+				if (value != null) {
+					values.put(key, value);
+				} else {
+					values.remove(key);
+				}
+				skipWhitespace();
+				char c = next();
+				if (c == '}') {
+					return values;
+				}
+				if (c != ',') {
+					throw error("Expected , or }");
+				}
+			}
+		}
+
+		private Object parseValue(String key, int nesting) throws IOException {
+			char c = peek();
+			if (c == '"') {
+				return parseString();
+			}
+			if (c == '{' && nesting > 0) {
+				return parseObject(nesting - 1);
+			}
+			if (c == '{' || c == '[') {
+				throw error("Nested values are not supported: " + key);
+			}
+			int start = position;
+			while (position < text.length() && "{}[],: \t\r\n".indexOf(text.charAt(position)) < 0) {
+				position++;
+			}
+			String literal = text.substring(start, position);
+			if (literal.equals("null")) {
+				return null;
+			}
+			if (literal.equals("true") || literal.equals("false") || isNumber(literal)) {
+				return literal;
+			}
+			position = start;
+			throw error("Invalid value");
+		}
+
+		String parseString() throws IOException {
+			expect('"');
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				char c = next();
+				if (c == '"') {
+					return sb.toString();
+				}
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				c = next();
+				switch (c) {
+				case '"':
+				case '\\':
+				case '/':
+					sb.append(c);
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (position + 4 > text.length()) {
+						throw error("Invalid escape");
+					}
+					try {
+						sb.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error("Invalid escape");
+					}
+					position += 4;
+					break;
+				default:
+					throw error("Invalid escape");
+				}
+			}
+		}
+
+		private static boolean isNumber(String literal) {
+			return literal.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+		}
+
+		private void skipWhitespace() {
+			while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+				position++;
+			}
+		}
+
+		private char peek() throws IOException {
+			if (position >= text.length()) {
+				throw error("Unexpected end");
+			}
+			return text.charAt(position);
+		}
+
+		private char next() throws IOException {
+			char c = peek();
+			position++;
+			return c;
+		}
+
+		private void expect(char c) throws IOException {
+			if (peek() != c) {
+				throw error("Expected " + c);
+			}
+			position++;
+		}
+
+		private IOException error(String message) {
+			int line = 0;
+			for (int i = 0; i < position && i < text.length(); i++) {
+				if (text.charAt(i) == '\n') {
+					line++;
+				}
+			}
+			return FlatMapParser.error(file, firstLine + line, message);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.github.arielcarrera.env.var.replacer;
+
+/**
+ * Minimal JSON writing helpers for reports, the project has no JSON dependency.
+ */
+final class Json {
+
+	private Json() {
+	}
+
+	/**
+	 * Appends a string as a quoted and escaped JSON string, null is appended as
+	 * null.
+	 */
+	static StringBuilder quote(StringBuilder sb, String s) {
+		if (s == null) {
+			return sb.append("null");
+		}
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"');
+	}
+}
@@ -0,0 +1,90 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads lines from a stream keeping their terminators (\n, \r\n or \r), so the
+ * output can be written with the same line endings as the input.
+ * <p>
+ * Only the current line and a fixed-size buffer are kept in memory. Instances
+ * are not thread-safe.
+ */
+final class LineReader {
+
+	static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private final Reader reader;
+	private final char[] buffer;
+	private final StringBuilder line = new StringBuilder(256);
+	private int position;
+	private int limit;
+	private String terminator = "";
+
+	LineReader(Reader reader) {
+		this(reader, DEFAULT_BUFFER_SIZE);
+	}
+
+	LineReader(Reader reader, int bufferSize) {
+		this.reader = reader;
+		this.buffer = new char[bufferSize];
+	}
+
+	/**
+	 * @return next line without its terminator or null at the end of the stream
+	 */
+	String readLine() throws IOException {
+		line.setLength(0);
+		terminator = "";
+		boolean read = false;
+		while (true) {
+			if (position >= limit && !fill()) {
+				return read ? line.toString() : null;
+			}
+			read = true;
+			int start = position;
+			while (position < limit) {
+				char c = buffer[position];
+				if (c == '\n') {
+					line.append(buffer, start, position - start);
+					position++;
+					terminator = "\n";
+					return line.toString();
+				}
+				if (c == '\r') {
+					line.append(buffer, start, position - start);
+					position++;
+					if (position >= limit && !fill()) {
+						terminator = "\r";
+					} else if (buffer[position] == '\n') {
+						position++;
+						terminator = "\r\n";
+					} else {
+						terminator = "\r";
+					}
+					return line.toString();
+				}
+				position++;
+			}
+			line.append(buffer, start, position - start);
+		}
+	}
+
+	/**
+	 * @return terminator of the last line read, empty if the last line has no
+	 *         terminator
+	 */
+	String getTerminator() {
+		return terminator;
+	}
+
+	private boolean fill() throws IOException {
+		int n = reader.read(buffer, 0, buffer.length);
+		while (n == 0) {
+			n = reader.read(buffer, 0, buffer.length);
+		}
+		position = 0;
+		limit = Math.max(n, 0);
+		return n > 0;
+	}
+}
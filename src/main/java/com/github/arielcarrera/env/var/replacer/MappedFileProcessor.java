@@ -0,0 +1,165 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.github.arielcarrera.env.var.replacer.FileStats.Phase;
+
+/**
+ * Processes a file mapped to memory without decoding it. Expressions are
+ * searched in bytes, only the lines that contain them are decoded, processed
+ * and encoded again. The rest of the file is copied to the output as it is,
+ * including line terminators.
+ * <p>
+ * The charset must be supported by {@link ByteSearch}.
+ */
+final class MappedFileProcessor {
+
+	/**
+	 * Maximum size of a mapped file
+	 */
+	static final long MAX_SIZE = Integer.MAX_VALUE;
+	/**
+	 * Minimum size of the ranges copied from channel to channel, shorter ranges
+	 * are copied from the mapped buffer to avoid a system call per range
+	 */
+	private static final int MIN_TRANSFER = 64 * 1024;
+
+	private final Charset charset;
+	private final ExpressionScanner scanner;
+	private final PrintStream trace;
+	private final byte[] bytes = new byte[8192];
+	private long terminators;
+
+	/**
+	 * @param charset charset of the files
+	 * @param scanner scanner of the lines with expressions
+	 * @param trace   stream where processed lines are printed, null to not print
+	 *                them
+	 */
+	MappedFileProcessor(Charset charset, ExpressionScanner scanner, PrintStream trace) {
+		this.charset = charset;
+		this.scanner = scanner;
+		this.trace = trace;
+	}
+
+	/**
+	 * @param stats timings of the file, null to not record them
+	 * @return number of lines, as in the other modes: the lines of the copied
+	 *         ranges are counted by their terminators
+	 */
+	long process(Path input, ComparingOutputStream out, FileStats stats)
+			throws IOException, RequiredEnvironmentVariableException {
+		try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > MAX_SIZE)
+				throw new IOException("File too large to be mapped: " + input);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int length = (int) size;
+			terminators = 0;
+			int copied = 0;
+			int expression = ByteSearch.indexOf(buffer, 0, length);
+			while (expression >= 0) {
+				int start = lineStart(buffer, copied, expression);
+				int end = lineEnd(buffer, expression + 2, length);
+				if (stats != null) stats.lap(Phase.READ);
+				copy(buffer, channel, out, copied, start);
+				if (stats != null) stats.lap(Phase.WRITE);
+
+				String line = decode(buffer, start, end);
+				if (trace != null) trace.println("input : " + line);
+				if (stats != null) stats.lap(Phase.READ);
+				CharSequence result = scanner.processLine(line);
+				if (stats != null) stats.lap(Phase.SUBSTITUTE);
+				if (trace != null) trace.println("output: " + result);
+				byte[] encoded = result.toString().getBytes(charset);
+				out.write(encoded, 0, encoded.length);
+				if (stats != null) stats.lap(Phase.WRITE);
+
+				copied = end;
+				expression = ByteSearch.indexOf(buffer, end, length);
+			}
+			if (stats != null) stats.lap(Phase.READ);
+			copy(buffer, channel, out, copied, length);
+			if (stats != null) stats.lap(Phase.WRITE);
+			if (length > 0) {
+				byte last = buffer.get(length - 1);
+				if (last != '\n' && last != '\r') {
+					// last line without terminator
+					return terminators + 1;
+				}
+			}
+			return terminators;
+		}
+	}
+
+	private void copy(ByteBuffer buffer, FileChannel channel, ComparingOutputStream out, int from, int to)
+			throws IOException {
+		countTerminators(buffer, from, to);
+		if (to - from >= MIN_TRANSFER) {
+			out.transfer(channel, from, to - from);
+			return;
+		}
+		ByteBuffer range = buffer.duplicate();
+		range.position(from);
+		range.limit(to);
+		while (range.hasRemaining()) {
+			int n = Math.min(bytes.length, range.remaining());
+			range.get(bytes, 0, n);
+			out.write(bytes, 0, n);
+		}
+	}
+
+	/**
+	 * Counts the line terminators of a range, \r\n is a single terminator.
+	 * Lines with expressions end where the next range starts, so every
+	 * terminator of the file is in a copied range.
+	 */
+	private void countTerminators(ByteBuffer buffer, int from, int to) {
+		for (int i = from; i < to; i++) {
+			byte b = buffer.get(i);
+			if (b == '\r' || (b == '\n' && (i == 0 || buffer.get(i - 1) != '\r'))) {
+				terminators++;
+			}
+		}
+	}
+
+	private String decode(ByteBuffer buffer, int start, int end) {
+		ByteBuffer line = buffer.duplicate();
+		line.position(start);
+		line.limit(end);
+		return charset.decode(line).toString();
+	}
+
+	/**
+	 * @return index of the first byte of the line, it is not lower than from
+	 */
+	private static int lineStart(ByteBuffer buffer, int from, int index) {
+		for (int i = index - 1; i >= from; i--) {
+			byte b = buffer.get(i);
+			if (b == '\n' || b == '\r') {
+				return i + 1;
+			}
+		}
+		return from;
+	}
+
+	/**
+	 * @return index of the line terminator or the length of the buffer
+	 */
+	private static int lineEnd(ByteBuffer buffer, int from, int length) {
+		for (int i = from; i < length; i++) {
+			byte b = buffer.get(i);
+			if (b == '\n' || b == '\r') {
+				return i;
+			}
+		}
+		return length;
+	}
+}
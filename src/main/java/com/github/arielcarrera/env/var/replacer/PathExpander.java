@@ -0,0 +1,515 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_ERROR_READING_FILE;
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_FILE_NOT_FOUND;
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_INVALID_PATH;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FilenameUtils;
+
+/**
+ * Expands the paths of the command line and configuration files into target
+ * files. An entry is a path or an input:output pair, where the input can be:
+ * <ul>
+ * <li>a file</li>
+ * <li>a directory, every file below it is a target</li>
+ * <li>a glob pattern like conf/**&#47;*.xml, ** matches any number of
+ * directories, including none. A path with glob chars that exists, like
+ * conf/app[1].xml, is a file or a directory and not a pattern</li>
+ * </ul>
+ * The output of a directory or a pattern is a directory where the files are
+ * written keeping their relative paths, or a pattern like out/**&#47;*.xml: **
+ * is replaced with the relative directory of the file and * with its name, or
+ * with the part of its name matched by the * of the input pattern if the output
+ * name has more chars (conf/**&#47;*.tpl:out/**&#47;*.xml writes conf/a/x.tpl to
+ * out/a/x.xml).
+ * <p>
+ * An input can have many outputs separated by commas, input:out1,out2, and an
+ * output can be followed by a properties file with its own values,
+ * input:output@values.properties. The part after the last @ is a values file
+ * only if it exists or ends with .properties, otherwise the @ is part of the
+ * output path (conf@prod.xml). An input listed by many entries with
+ * different outputs is a target for each of them.
+ * <p>
+ * Entries are grouped by their root directory, the directory before the first
+ * segment with glob chars. Roots below other roots are walked with the
+ * outermost one, so each directory is walked once. Roots are walked in
+ * parallel. Targets are returned in the order of the entries, the files of an
+ * entry sorted by path, and a file listed by many entries with the same output
+ * is returned once.
+ * Backup and temporal files created by the replacer are not expanded.
+ */
+final class PathExpander {
+
+	private static final String GLOB_CHARS = "*?[{";
+	private static final String ANY_DIRECTORY = "**";
+	private static final int MAX_WALKERS = 8;
+
+	private PathExpander() {
+	}
+
+	/**
+	 * File to process and its output
+	 */
+	static final class Target {
+		final Path input;
+		/**
+		 * Output file, null to replace the input in place
+		 */
+		final Path output;
+		/**
+		 * Properties file with the values of the output, null to use the values
+		 * of the run
+		 */
+		final Path values;
+
+		Target(Path input, Path output, Path values) {
+			this.input = input;
+			this.output = output;
+			this.values = values;
+		}
+
+		/**
+		 * @return the same file, output and values, in any form of path
+		 */
+		Object key() {
+			return Arrays.asList(normalize(input), output != null ? normalize(output) : null,
+					values != null ? normalize(values) : null);
+		}
+
+		private static Path normalize(Path path) {
+			return path.toAbsolutePath().normalize();
+		}
+	}
+
+	/**
+	 * @param entries paths, directories or glob patterns, with optional outputs
+	 * @return target files
+	 * @throws ReplacerException if entries are invalid, do not exist or match no
+	 *                           file. Every invalid entry is listed in the
+	 *                           message, the error code is the one of the first
+	 *                           of them
+	 */
+	static List<Target> expand(List<String> entries) throws ReplacerException {
+		List<Entry> parsed = new ArrayList<Entry>(entries.size());
+		List<ReplacerException> errors = new ArrayList<ReplacerException>();
+		for (String path : entries) {
+			try {
+				parsed.add(Entry.parse(path));
+			} catch (ReplacerException e) {
+				errors.add(e);
+			}
+		}
+
+		Map<Path, List<Entry>> roots = new LinkedHashMap<Path, List<Entry>>();
+		for (Entry entry : parsed) {
+			if (entry.pattern != null) {
+				roots.computeIfAbsent(entry.root, root -> new ArrayList<Entry>()).add(entry);
+			} else if (!Files.isReadable(entry.root)) {
+				errors.add(new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Invalid path: " + entry.path + " (File not found)"));
+			}
+		}
+		errors.addAll(walk(mergeNested(roots)));
+
+		List<Target> targets = new ArrayList<Target>();
+		Set<Object> keys = new HashSet<Object>();
+		for (Entry entry : parsed) {
+			if (entry.pattern == null) {
+				for (Output output : entry.outputs) {
+					add(targets, keys, new Target(entry.root, output.path != null ? Paths.get(output.path) : null, output.values()));
+				}
+				continue;
+			}
+			if (entry.matches.isEmpty() && !entry.failed) {
+				errors.add(new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Invalid path: " + entry.path + " (No files found)"));
+			}
+			Collections.sort(entry.matches);
+			for (Path file : entry.matches) {
+				for (Output output : entry.outputs) {
+					add(targets, keys, new Target(file, entry.output(file, output.path), output.values()));
+				}
+			}
+		}
+		if (!errors.isEmpty()) {
+			StringBuilder message = new StringBuilder();
+			for (ReplacerException e : errors) {
+				message.append(message.length() > 0 ? "\n" : "").append(e.getMessage());
+			}
+			throw new ReplacerException(errors.get(0).getErrorCode(), message.toString());
+		}
+		return targets;
+	}
+
+	private static void add(List<Target> targets, Set<Object> keys, Target target) {
+		if (keys.add(target.key())) {
+			targets.add(target);
+		}
+	}
+
+	/**
+	 * Groups the entries of roots below other roots with the outermost root.
+	 * Roots reached through symbolic links are walked on their own, walks do
+	 * not follow links.
+	 */
+	private static Map<Path, List<Entry>> mergeNested(Map<Path, List<Entry>> roots) {
+		Map<Path, List<Entry>> merged = new LinkedHashMap<Path, List<Entry>>();
+		for (Map.Entry<Path, List<Entry>> root : roots.entrySet()) {
+			Path outermost = root.getKey();
+			for (Path other : roots.keySet()) {
+				// containment is transitive, a root containing the outermost contains the root
+				if (isBelow(outermost, other) && !hasLink(other, outermost)) {
+					outermost = other;
+				}
+			}
+			merged.computeIfAbsent(outermost, key -> new ArrayList<Entry>()).addAll(root.getValue());
+		}
+		return merged;
+	}
+
+	/**
+	 * @return true if the path is below the directory, and not the directory
+	 */
+	private static boolean isBelow(Path path, Path directory) {
+		if (path.equals(directory)) {
+			return false;
+		}
+		// the empty path is the working directory
+		return directory.toString().isEmpty() ? !path.isAbsolute() : path.startsWith(directory);
+	}
+
+	/**
+	 * @return true if a directory between the root and the path, or the path,
+	 *         is a symbolic link
+	 */
+	private static boolean hasLink(Path root, Path path) {
+		for (Path current = path; current != null && !current.equals(root); current = current.getParent()) {
+			if (Files.isSymbolicLink(current)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Walks every root once, in parallel
+	 *
+	 * @return errors reading the roots
+	 */
+	private static List<ReplacerException> walk(Map<Path, List<Entry>> roots) {
+		List<ReplacerException> errors = new ArrayList<ReplacerException>();
+		if (roots.size() == 1) {
+			Map.Entry<Path, List<Entry>> root = roots.entrySet().iterator().next();
+			try {
+				walk(root.getKey(), root.getValue());
+			} catch (IOException e) {
+				errors.add(walkError(root.getKey(), root.getValue(), e));
+			}
+			return errors;
+		}
+		if (roots.isEmpty()) {
+			return errors;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_WALKERS, roots.size()));
+		try {
+			Map<Path, Future<?>> futures = new LinkedHashMap<Path, Future<?>>();
+			for (Map.Entry<Path, List<Entry>> root : roots.entrySet()) {
+				futures.put(root.getKey(), executor.submit(() -> {
+					walk(root.getKey(), root.getValue());
+					return null;
+				}));
+			}
+			for (Map.Entry<Path, Future<?>> future : futures.entrySet()) {
+				try {
+					future.getValue().get();
+				} catch (ExecutionException e) {
+					errors.add(walkError(future.getKey(), roots.get(future.getKey()), e.getCause()));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					errors.add(new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Interrupted"));
+					break;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return errors;
+	}
+
+	private static ReplacerException walkError(Path root, List<Entry> entries, Throwable cause) {
+		for (Entry entry : entries) {
+			entry.failed = true;
+		}
+		if (!Files.isDirectory(root)) {
+			return new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Invalid path: " + entries.get(0).path + " (Directory not found: " + root + ")", cause);
+		}
+		return new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error reading directory: " + root, cause);
+	}
+
+	/**
+	 * Adds the files below the root to the entries they match, entries can
+	 * have roots below the root
+	 */
+	private static void walk(Path root, List<Entry> entries) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				// symbolic links are not followed, links to files are targets
+				if (attrs.isRegularFile() || (attrs.isSymbolicLink() && Files.isRegularFile(file))) {
+					String name = file.getFileName().toString();
+					if (name.endsWith(".bak") || name.endsWith(".tmp")) {
+						return FileVisitResult.CONTINUE;
+					}
+					for (Entry entry : entries) {
+						if ((entry.root.equals(root) || isBelow(file, entry.root)) && entry.matches(entry.root.relativize(file))) {
+							entry.matches.add(file);
+						}
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	static boolean isPattern(String path) {
+		for (int i = 0; i < path.length(); i++) {
+			if (GLOB_CHARS.indexOf(path.charAt(i)) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Entry of the command line or a configuration file
+	 */
+	private static final class Entry {
+		final String path;
+		/**
+		 * The file of a path, or the directory walked to expand a directory or a
+		 * pattern
+		 */
+		final Path root;
+		/**
+		 * Pattern of the files relative to the root, "**" for a directory, or null
+		 * for a file
+		 */
+		final String pattern;
+		/**
+		 * Outputs of the entry, a single output without path to replace the files
+		 * in place
+		 */
+		final List<Output> outputs;
+		final List<Path> matches = new ArrayList<Path>();
+		private final PathMatcher matcher;
+		/**
+		 * Matcher of a pattern starting with "**&#47;" for files in the root
+		 */
+		private final PathMatcher rootMatcher;
+		boolean failed;
+
+		private Entry(String path, Path root, String pattern, List<Output> outputs) {
+			this.path = path;
+			this.root = root;
+			this.pattern = pattern;
+			this.outputs = outputs;
+			if (pattern != null && !pattern.equals(ANY_DIRECTORY)) {
+				this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+				this.rootMatcher = pattern.startsWith(ANY_DIRECTORY + "/")
+						? FileSystems.getDefault().getPathMatcher("glob:" + pattern.substring(ANY_DIRECTORY.length() + 1))
+						: null;
+			} else {
+				this.matcher = null;
+				this.rootMatcher = null;
+			}
+		}
+
+		static Entry parse(String path) throws ReplacerException {
+			if (path == null || path.isEmpty()) {
+				throw new ReplacerException(ERROR_CODE_INVALID_PATH, "Invalid path: " + path);
+			}
+			String input = path;
+			List<Output> outputs = Collections.singletonList(new Output(null, null));
+			int indexOf = path.indexOf(":");
+			if (indexOf >= 0) {
+				//path with input:target format
+				input = path.substring(0, indexOf);
+				if (input.isEmpty()) {
+					throw new ReplacerException(ERROR_CODE_INVALID_PATH, "Invalid path: " + path);
+				}
+				outputs = new ArrayList<Output>();
+				// input:out1,out2@values.properties
+				for (String output : path.substring(indexOf + 1).split(",", -1)) {
+					int at = valuesSeparator(output);
+					String values = at >= 0 ? output.substring(at + 1) : null;
+					output = at >= 0 ? output.substring(0, at) : output;
+					if (output.isEmpty() || (values != null && values.isEmpty())) {
+						throw new ReplacerException(ERROR_CODE_INVALID_PATH, "Invalid path: " + path);
+					}
+					outputs.add(new Output(normalize(output), values != null ? normalize(values) : null));
+				}
+			}
+			input = normalize(input);
+			int first = isPattern(input) && !exists(input) ? firstPatternSegment(input) : -1;
+			if (first >= 0) {
+				String[] segments = input.split("/", -1);
+				String root = String.join("/", Arrays.copyOfRange(segments, 0, first));
+				String pattern = String.join("/", Arrays.copyOfRange(segments, first, segments.length));
+				if (root.isEmpty() && input.startsWith("/")) {
+					root = "/";
+				}
+				return new Entry(path, Paths.get(root), pattern, outputs);
+			}
+			Path file = Paths.get(input);
+			if (Files.isDirectory(file)) {
+				return new Entry(path, file, ANY_DIRECTORY, outputs);
+			}
+			return new Entry(path, file, null, outputs);
+		}
+
+		/**
+		 * @return index of the @ before the values file of an output, or -1 if
+		 *         the @ chars are part of the output path: the values file must
+		 *         exist or be a .properties file
+		 */
+		private static int valuesSeparator(String output) {
+			int at = output.lastIndexOf('@');
+			if (at < 0) {
+				return -1;
+			}
+			// an empty values file is an error
+			String values = output.substring(at + 1);
+			return values.isEmpty() || values.endsWith(".properties") || isFile(normalize(values)) ? at : -1;
+		}
+
+		private static boolean isFile(String path) {
+			try {
+				return Files.isRegularFile(Paths.get(path));
+			} catch (InvalidPathException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * @return index of the first segment with glob chars, directories with
+		 *         glob chars that exist are not patterns, or -1 if there is none
+		 */
+		private static int firstPatternSegment(String input) {
+			String[] segments = input.split("/", -1);
+			for (int i = 0; i < segments.length; i++) {
+				if (isPattern(segments[i]) && !exists(String.join("/", Arrays.copyOfRange(segments, 0, i + 1)))) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private static boolean exists(String path) {
+			try {
+				return Files.exists(Paths.get(path));
+			} catch (InvalidPathException e) {
+				// glob chars that are not valid in paths
+				return false;
+			}
+		}
+
+		boolean matches(Path relative) {
+			return matcher == null || matcher.matches(relative) || (rootMatcher != null && relative.getNameCount() == 1 && rootMatcher.matches(relative));
+		}
+
+		/**
+		 * @param output output of the entry, null to replace the files in place
+		 * @return output of a file matched by a pattern, null if it is replaced in
+		 *         place
+		 */
+		Path output(Path file, String output) {
+			if (output == null) {
+				return null;
+			}
+			Path relative = root.relativize(file);
+			Path directory = relative.getParent();
+			String name = relative.getFileName().toString();
+			int star = output.indexOf('*');
+			if (star < 0) {
+				// output directory
+				return Paths.get(output).resolve(relative.toString());
+			}
+			int segment = output.lastIndexOf('/', star);
+			Path outputRoot = Paths.get(segment >= 0 ? output.substring(0, segment) : "");
+			String[] tail = output.substring(segment + 1).split("/");
+			String outputName = tail[tail.length - 1];
+			if (outputName.equals(ANY_DIRECTORY)) {
+				return outputRoot.resolve(relative.toString());
+			}
+			if (tail.length > 1 && directory != null) {
+				// ** keeps the relative directory
+				outputRoot = outputRoot.resolve(directory.toString());
+			}
+			return outputRoot.resolve(outputName.equals("*") ? name : outputName.replace("*", capture(name)));
+		}
+
+		/**
+		 * @return the part of a name matched by the * of the input pattern, or the
+		 *         name without extension
+		 */
+		private String capture(String name) {
+			String namePattern = pattern.substring(pattern.lastIndexOf('/') + 1);
+			int star = namePattern.indexOf('*');
+			if (star >= 0 && star == namePattern.lastIndexOf('*') && !isPattern(namePattern.substring(star + 1))
+					&& !isPattern(namePattern.substring(0, star))) {
+				String prefix = namePattern.substring(0, star);
+				String suffix = namePattern.substring(star + 1);
+				if (name.length() >= prefix.length() + suffix.length() && name.startsWith(prefix) && name.endsWith(suffix)) {
+					return name.substring(prefix.length(), name.length() - suffix.length());
+				}
+			}
+			return FilenameUtils.removeExtension(name);
+		}
+
+		private static String normalize(String path) {
+			String normalized = FilenameUtils.normalizeNoEndSeparator(path, true);
+			return normalized != null ? normalized : path;
+		}
+	}
+
+	/**
+	 * Output of an entry
+	 */
+	private static final class Output {
+		/**
+		 * Output path or pattern, null to replace the input in place
+		 */
+		final String path;
+		final String values;
+
+		Output(String path, String values) {
+			this.path = path;
+			this.values = values;
+		}
+
+		Path values() {
+			return values != null ? Paths.get(values) : null;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Trie of key prefixes, built once. A key is matched walking its chars, so the
+ * cost depends on the length of the key and not on the number of prefixes.
+ * <p>
+ * Instances are immutable and thread-safe.
+ */
+final class PrefixMatcher {
+
+	private final Node root;
+
+	/**
+	 * @param prefixes prefixes to match, empty prefixes match every key
+	 */
+	PrefixMatcher(Collection<String> prefixes) {
+		Builder root = new Builder();
+		for (String prefix : prefixes) {
+			Builder node = root;
+			for (int i = 0; i < prefix.length(); i++) {
+				node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Builder());
+			}
+			node.terminal = true;
+		}
+		this.root = root.build();
+	}
+
+	/**
+	 * @return true if the key starts with any of the prefixes
+	 */
+	boolean matches(String key) {
+		Node node = root;
+		for (int i = 0; !node.terminal; i++) {
+			if (i == key.length() || (node = node.child(key.charAt(i))) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return length of the longest prefix of the key, or -1 if the key does not
+	 *         start with any of the prefixes
+	 */
+	int longestMatch(String key) {
+		Node node = root;
+		int match = node.terminal ? 0 : -1;
+		for (int i = 0; i < key.length(); i++) {
+			node = node.child(key.charAt(i));
+			if (node == null) {
+				break;
+			}
+			if (node.terminal) {
+				match = i + 1;
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * Node with its children sorted by char
+	 */
+	private static final class Node {
+		final char[] chars;
+		final Node[] children;
+		final boolean terminal;
+
+		Node(char[] chars, Node[] children, boolean terminal) {
+			this.chars = chars;
+			this.children = children;
+			this.terminal = terminal;
+		}
+
+		Node child(char c) {
+			int i = chars.length < 8 ? linearSearch(c) : Arrays.binarySearch(chars, c);
+			return i >= 0 ? children[i] : null;
+		}
+
+		private int linearSearch(char c) {
+			for (int i = 0; i < chars.length; i++) {
+				if (chars[i] == c) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	private static final class Builder {
+		final TreeMap<Character, Builder> children = new TreeMap<Character, Builder>();
+		boolean terminal;
+
+		Node build() {
+			char[] chars = new char[children.size()];
+			Node[] nodes = new Node[children.size()];
+			int i = 0;
+			for (Map.Entry<Character, Builder> child : children.entrySet()) {
+				chars[i] = child.getKey();
+				nodes[i] = child.getValue().build();
+				i++;
+			}
+			return new Node(chars, nodes, terminal);
+		}
+	}
+}
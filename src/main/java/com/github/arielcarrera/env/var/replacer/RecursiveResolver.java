@@ -0,0 +1,116 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Resolves values that reference other keys, like DB_URL=jdbc:${DB_HOST}, by
+ * replacing the expressions of the values with the values they reference,
+ * recursively.
+ * <p>
+ * Keys are resolved depth first. The expanded value of each key is memoised,
+ * so a key is expanded once however many keys and files reference it and the
+ * work is linear in the size of the values. A key that is referenced while it
+ * is being expanded closes a cycle, the cycle is reported with its keys, like
+ * A -> B -> A.
+ * <p>
+ * Errors are thrown as {@link Failure}, resolvers can not throw checked
+ * exceptions. Instances are thread-safe.
+ */
+final class RecursiveResolver implements Function<String, String> {
+
+	/**
+	 * Memoised value of undefined keys, compared by identity
+	 */
+	private static final String UNDEFINED = new String();
+
+	private final Predicate<String> filter;
+	private final Function<String, String> source;
+	private final int maxKeys;
+	private final ConcurrentMap<String, String> expanded = new ConcurrentHashMap<String, String>();
+	private final ThreadLocal<Resolution> resolutions = ThreadLocal.withInitial(Resolution::new);
+
+	/**
+	 * @param filter  keys to be replaced, null to replace all keys
+	 * @param source  returns the value of a key as it is defined
+	 * @param maxKeys maximum number of expanded values memoised
+	 */
+	RecursiveResolver(Predicate<String> filter, Function<String, String> source, int maxKeys) {
+		this.filter = filter;
+		this.source = source;
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * @return the expanded value of the key or null if it is not defined
+	 * @throws Failure if the key is part of a cycle or a key required by its
+	 *                 value is not defined
+	 */
+	@Override
+	public String apply(String key) {
+		String value = expanded.get(key);
+		if (value != null) {
+			return value != UNDEFINED ? value : null;
+		}
+		Resolution resolution = resolutions.get();
+		int index = resolution.path.indexOf(key);
+		if (index >= 0) {
+			List<String> cycle = new ArrayList<String>(resolution.path.subList(index, resolution.path.size()));
+			cycle.add(key);
+			throw new Failure(new ReplacerException(EnvVarReplacer.ERROR_CODE_CYCLIC_REFERENCE,
+					"Replacement - Cyclic reference: " + String.join(" -> ", cycle)));
+		}
+		value = source.apply(key);
+		if (value != null && value.indexOf("${") >= 0) {
+			value = expand(resolution, key, value);
+		}
+		// keys composed by other expressions could grow the map without limit
+		if (expanded.size() < maxKeys) {
+			expanded.putIfAbsent(key, value != null ? value : UNDEFINED);
+		}
+		return value;
+	}
+
+	private String expand(Resolution resolution, String key, String value) {
+		// a scanner by depth, the scanner of the enclosing key is still in use
+		int depth = resolution.path.size();
+		if (depth == resolution.scanners.size()) {
+			resolution.scanners.add(new ExpressionScanner(filter, this));
+		}
+		resolution.path.add(key);
+		try {
+			return resolution.scanners.get(depth).processLine(value).toString();
+		} catch (RequiredEnvironmentVariableException e) {
+			throw new Failure(e);
+		} finally {
+			resolution.path.remove(depth);
+		}
+	}
+
+	/**
+	 * Keys being expanded by a thread, from the outermost one
+	 */
+	private static final class Resolution {
+		final List<String> path = new ArrayList<String>();
+		final List<ExpressionScanner> scanners = new ArrayList<ExpressionScanner>();
+	}
+
+	/**
+	 * Error resolving a value, it carries the error to be reported
+	 */
+	static final class Failure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Failure(ReplacerException error) {
+			super(error.getMessage(), error, false, false);
+		}
+
+		ReplacerException getError() {
+			return (ReplacerException) getCause();
+		}
+	}
+}
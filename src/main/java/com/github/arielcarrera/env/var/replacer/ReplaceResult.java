@@ -0,0 +1,33 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.nio.file.Path;
+
+import lombok.Value;
+
+/**
+ * Result of a replacement.
+ */
+@Value
+public class ReplaceResult {
+	/**
+	 * Processed file, null when a stream was processed
+	 */
+	Path input;
+	/**
+	 * Written file, null when a stream was processed
+	 */
+	Path output;
+	/**
+	 * Backup file, null when no backup was created
+	 */
+	Path backup;
+	/**
+	 * Number of lines of the input, 0 when the file was skipped without reading
+	 * it
+	 */
+	long lines;
+	/**
+	 * False when the output was already up to date and it was not written
+	 */
+	boolean modified;
+}
@@ -0,0 +1,1056 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_BACKUP_ERROR;
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_BACKUP_ERROR_FILE_EXIST;
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_BACKUP_WRITE_ERROR;
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_ERROR_READING_FILE;
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_ERROR_READING_VALUES;
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_ERROR_WRITING_FILE;
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_FILE_NOT_FOUND;
+import static com.github.arielcarrera.env.var.replacer.EnvVarReplacer.ERROR_CODE_RENAMING_TMP_FILE;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.github.arielcarrera.env.var.replacer.ExpressionScanner.ExpressionTooLongException;
+import com.github.arielcarrera.env.var.replacer.FileStats.Phase;
+import com.github.arielcarrera.env.var.replacer.ReplacerConfig.Output;
+import com.github.arielcarrera.env.var.replacer.Template.Expression;
+import com.github.arielcarrera.env.var.replacer.Template.Node;
+import com.github.arielcarrera.env.var.replacer.Template.Scanned;
+import com.github.arielcarrera.env.var.replacer.UsageIndex.Usage;
+
+/**
+ * Replaces expressions like ${KEY} or ${KEY:default} with the values of a
+ * {@link ValueSource}.
+ * <p>
+ * Instances are thread-safe and can be reused, the configuration is read once
+ * when the instance is created. The value of each key is read once from the
+ * {@link ValueSource} and reused for every file, so a replacer sees a
+ * consistent set of values. Create a new replacer to read changed values.
+ * <p>
+ * Values are written as they are, unless recursive mode is enabled: then
+ * expressions inside values are replaced too, see {@link RecursiveResolver}.
+ */
+public final class Replacer {
+
+	/**
+	 * Maximum number of keys whose filter decisions and values are memoised
+	 */
+	private static final int MAX_MEMOISED_KEYS = 4096;
+	/**
+	 * Memoised value of undefined keys, compared by identity
+	 */
+	private static final String UNDEFINED = new String();
+	/**
+	 * Chars read at once in chunked mode
+	 */
+	static final int CHUNK_SIZE = 64 * 1024;
+	/**
+	 * Max chars of an expression in chunked mode, including its default value.
+	 * Longer expressions are an error.
+	 */
+	public static final int MAX_EXPRESSION_SIZE = 1024 * 1024;
+
+	private final ReplacerConfig config;
+	private final PrefixMatcher removePrefixes;
+	private final PrefixMatcher filterPrefixes;
+	private final ConcurrentMap<String, Boolean> includedKeys;
+	private final ConcurrentMap<String, String> values = new ConcurrentHashMap<String, String>();
+	private final ValueSource valueSource;
+	/**
+	 * Replacers of the outputs with their own values, by value source
+	 */
+	private final ConcurrentMap<ValueSource, Replacer> outputReplacers = new ConcurrentHashMap<ValueSource, Replacer>();
+	private final Function<String, String> resolver;
+	private final Predicate<String> filter;
+	private final ThreadLocal<ExpressionScanner> scanners;
+	private final TemplateCache templateCache;
+	private final TemplateCompiler compiler;
+	private final String filterKey;
+	private final Charset charset;
+	private final boolean byteSearch;
+	private final boolean memoryMapped;
+	private final boolean chunked;
+	private final RunReport report;
+
+	public Replacer(ReplacerConfig config) {
+		this(config, config.getValueSource(), null);
+	}
+
+	/**
+	 * @param valueSource values of the replacer, the ones of the configuration
+	 *                    or the ones of an output
+	 * @param parent      replacer whose prefix matchers and filter decisions are
+	 *                    shared, null to compile them
+	 */
+	private Replacer(ReplacerConfig config, ValueSource valueSource, Replacer parent) {
+		this.config = config;
+		if (parent != null) {
+			this.removePrefixes = parent.removePrefixes;
+			this.filterPrefixes = parent.filterPrefixes;
+			this.includedKeys = parent.includedKeys;
+		} else {
+			this.removePrefixes = config.getRemovePrefixes() != null ? new PrefixMatcher(config.getRemovePrefixes()) : null;
+			this.filterPrefixes = config.getFilterPrefixes() != null ? new PrefixMatcher(config.getFilterPrefixes()) : null;
+			this.includedKeys = new ConcurrentHashMap<String, Boolean>();
+		}
+		this.valueSource = valueSource;
+		Predicate<String> filter = filterPrefixes != null ? this::isIncluded : null;
+		this.filter = filter;
+		this.resolver = config.isRecursive() ? new RecursiveResolver(filter, this::resolveValue, MAX_MEMOISED_KEYS)
+				: this::resolveValue;
+		this.scanners = ThreadLocal.withInitial(() -> new ExpressionScanner(filter, resolver));
+		this.templateCache = config.isTraceEnabled() || config.isChunked() ? null : config.getTemplateCache();
+		this.compiler = parent != null ? parent.compiler : new TemplateCompiler(filter);
+		this.filterKey = filterPrefixes != null ? String.join(",", config.getFilterPrefixes()) : "";
+		this.charset = config.getCharset();
+		this.byteSearch = ByteSearch.isSupported(charset);
+		this.chunked = config.isChunked();
+		this.memoryMapped = config.isMemoryMapped() && byteSearch && templateCache == null && !chunked;
+		this.report = config.getReport();
+	}
+
+	public ReplacerConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Creates a replacer with the same configuration and other values. The
+	 * prefix matchers, filter decisions and compiled templates are shared, the
+	 * values are read from the new source.
+	 *
+	 * @param valueSource values of the new replacer
+	 */
+	Replacer withValues(ValueSource valueSource) {
+		return new Replacer(config, valueSource, this);
+	}
+
+	/**
+	 * Checks that the backup of a file can be created.
+	 *
+	 * @param path file to be replaced
+	 * @throws BackupException if the backup file exists and it can not be
+	 *                         overridden
+	 */
+	public void checkBackup(Path path) throws BackupException {
+		if (config.getBackupMode() == BackupMode.NONE)
+			return;
+		if (config.getBackupStrategy() == BackupStrategy.ARCHIVE) {
+			if (config.getBackupArchive().isBlocked()) {
+				throw new BackupException(ERROR_CODE_BACKUP_ERROR_FILE_EXIST,
+						"Backup file exists and force backup mode is disabled. File: " + config.getBackupArchive().getPath());
+			}
+			return;
+		}
+		Path p = backupPath(path);
+		if (Files.exists(p)) {
+			if (config.getBackupMode() != BackupMode.FORCE) {
+				throw new BackupException(ERROR_CODE_BACKUP_ERROR_FILE_EXIST,
+						"Backup file exists and force backup mode is disabled. File: " + p);
+			} else if (!Files.isWritable(p)) {
+				throw new BackupException(ERROR_CODE_BACKUP_WRITE_ERROR, "Backup file is not writable: " + p);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the expressions of a file. The result is written to the output
+	 * configured for the file or to the file itself. A file with many outputs
+	 * is written to all of them, see {@link #replaceAll(Path)}.
+	 *
+	 * @param path file to process
+	 * @return result of the replacement, the result of the first output of a
+	 *         file with many outputs, {@link #replaceAll(Path)} returns all of
+	 *         them
+	 * @throws ReplacerException if the file can not be processed, the file is
+	 *                           not modified in that case
+	 */
+	public ReplaceResult replace(Path path) throws ReplacerException {
+		if (isFanOut(config.getOutputs(path))) {
+			return replaceAll(path).get(0);
+		}
+		return replace(path, config.getOutput(path));
+	}
+
+	/**
+	 * Replaces the expressions of a file writing the result to every output
+	 * configured for it. A file with many outputs, or with outputs with their
+	 * own values, is read and parsed once and rendered to every output in
+	 * parallel, keeping the line terminators of the file. Each output is
+	 * written to its own temporal file, and no output is modified unless all of
+	 * them are rendered and the backup of the file is created. The temporal
+	 * files are then moved to the outputs one by one, see
+	 * {@link #commit(List)}: if an output can not be moved, the outputs moved
+	 * before it keep their new content.
+	 *
+	 * @param path file to process
+	 * @return results of the outputs, in the order they were configured
+	 * @throws ReplacerException if the file can not be processed or backed up,
+	 *                           the outputs are not modified in that case, or if
+	 *                           an output can not be moved
+	 */
+	public List<ReplaceResult> replaceAll(Path path) throws ReplacerException {
+		if (!isFanOut(config.getOutputs(path))) {
+			return Collections.singletonList(replace(path, config.getOutput(path)));
+		}
+		return commit(prepareAll(path));
+	}
+
+	/**
+	 * Replaces the expressions of a file writing the result to another file.
+	 * The output is written to a temporal file that is moved to the output path
+	 * when the process finishes.
+	 * <p>
+	 * Nothing is written if the output would not change: files replaced in place
+	 * without expressions are not processed, and the result of other files is
+	 * compared with the existing output before writing it.
+	 *
+	 * @param input  file to process
+	 * @param output file to write, it can be the input file
+	 * @return result of the replacement
+	 * @throws ReplacerException if the file can not be processed, the output is
+	 *                           not modified in that case
+	 */
+	public ReplaceResult replace(Path input, Path output) throws ReplacerException {
+		FileStats stats = report != null ? new FileStats(input, output) : null;
+		Path backup = null;
+		if (config.getBackupMode() != BackupMode.NONE) {
+			try {
+				backup = backup(input, stats);
+			} catch (ReplacerException e) {
+				record(stats, e);
+				throw e;
+			}
+		}
+		return move(prepare(input, output, stats), backup);
+	}
+
+	/**
+	 * Writes the result of a file to its temporal file without modifying the
+	 * output, backups are not created. The result is applied with
+	 * {@link #commit(Prepared)} or discarded with {@link #discard(Prepared)}.
+	 *
+	 * @param input  file to process
+	 * @param output file to write, it can be the input file
+	 * @return pending replacement
+	 * @throws ReplacerException if the file can not be processed, the temporal
+	 *                           file is deleted in that case
+	 */
+	Prepared prepare(Path input, Path output) throws ReplacerException {
+		return prepare(input, output, report != null ? new FileStats(input, output) : null);
+	}
+
+	/**
+	 * Writes the results of a file for every output configured for it, see
+	 * {@link #replaceAll(Path)}. If an output fails the temporal files of the
+	 * others are deleted.
+	 *
+	 * @return pending replacements, in the order of the outputs
+	 */
+	List<Prepared> prepareAll(Path input) throws ReplacerException {
+		List<Output> outputs = config.getOutputs(input);
+		if (!isFanOut(outputs)) {
+			return Collections.singletonList(prepare(input, config.getOutput(input)));
+		}
+		FileStats stats = report != null ? new FileStats(input, outputs.get(0).getPath()) : null;
+		Template template;
+		try {
+			template = compileFile(input);
+		} catch (ReplacerException e) {
+			record(stats, e);
+			throw e;
+		}
+		if (stats != null) stats.lap(Phase.READ);
+
+		List<Future<Prepared>> futures = new ArrayList<Future<Prepared>>(outputs.size() - 1);
+		for (int i = 1; i < outputs.size(); i++) {
+			Output output = outputs.get(i);
+			futures.add(ForkJoinPool.commonPool().submit(() -> prepare(input, output, template,
+					report != null ? new FileStats(input, output.getPath()) : null)));
+		}
+		List<Prepared> prepared = new ArrayList<Prepared>(outputs.size());
+		ReplacerException error = null;
+		try {
+			prepared.add(prepare(input, outputs.get(0), template, stats));
+		} catch (ReplacerException e) {
+			error = e;
+		}
+		for (Future<Prepared> future : futures) {
+			try {
+				prepared.add(future.get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				// tasks of a fork join pool wrap checked exceptions
+				while (!(cause instanceof ReplacerException) && cause instanceof RuntimeException && cause.getCause() != null) {
+					cause = cause.getCause();
+				}
+				if (error == null) {
+					error = cause instanceof ReplacerException ? (ReplacerException) cause
+							: new ReplacerException(ERROR_CODE_ERROR_WRITING_FILE, "Replacement - Unexpected error: " + cause, cause);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (error == null) {
+					error = new ReplacerException(ERROR_CODE_ERROR_WRITING_FILE, "Replacement - Interrupted");
+				}
+				break;
+			}
+		}
+		if (error != null) {
+			for (Prepared result : prepared) {
+				discard(result);
+			}
+			throw error;
+		}
+		return prepared;
+	}
+
+	/**
+	 * Renders a compiled file to one of its outputs, with the values of the
+	 * output
+	 */
+	private Prepared prepare(Path input, Output output, Template template, FileStats stats)
+			throws ReplacerException {
+		Replacer replacer = output.getValueSource() == null ? this
+				: outputReplacers.computeIfAbsent(output.getValueSource(), this::withValues);
+		ExpressionScanner scanner = replacer.scanners.get();
+		scanner.stats = stats;
+		try {
+			return replacer.write(input, output.getPath(), template, template.getBom(), scanner, stats);
+		} catch (ReplacerException e) {
+			record(stats, e);
+			throw e;
+		} finally {
+			scanner.stats = null;
+		}
+	}
+
+	private static boolean isFanOut(List<Output> outputs) {
+		return outputs.size() > 1 || (outputs.size() == 1 && outputs.get(0).getValueSource() != null);
+	}
+
+	private Prepared prepare(Path input, Path output, FileStats stats) throws ReplacerException {
+		ExpressionScanner scanner = scanners.get();
+		scanner.stats = stats;
+		try {
+			return prepare(input, output, scanner, stats);
+		} catch (ReplacerException e) {
+			record(stats, e);
+			throw e;
+		} finally {
+			scanner.stats = null;
+		}
+	}
+
+	private Prepared prepare(Path input, Path output, ExpressionScanner scanner, FileStats stats)
+			throws ReplacerException {
+		Template template = templateCache != null ? compile(input) : null;
+		Bom bom = template != null ? template.getBom() : readBom(input);
+		if (isSameFile(input, output) && !containsExpression(input, template, bom)) {
+			if (config.isDebugEnabled()) config.getLog().println("Skipping file without expressions: " + input);
+			if (stats != null) {
+				stats.lap(Phase.READ);
+				stats.bytesIn = size(input);
+			}
+			return new Prepared(input, output, null, 0, stats);
+		}
+		if (stats != null) stats.lap(Phase.READ);
+		return write(input, output, template, bom, scanner, stats);
+	}
+
+	/**
+	 * Writes the result of a file to a temporal file, encoded like the file: the
+	 * byte order mark is written as it was read and line terminators are kept.
+	 * The temporal file is unique, the same file can be written to many outputs
+	 * at the same time.
+	 *
+	 * @param template compiled file, null to read the file
+	 * @param bom      byte order mark of the file, null if it has no mark
+	 */
+	private Prepared write(Path input, Path output, Template template, Bom bom, ExpressionScanner scanner,
+			FileStats stats) throws ReplacerException {
+		Charset charset = Bom.charset(bom, this.charset);
+		// mapped files are copied with their mark
+		boolean mapped = memoryMapped && template == null && charset.equals(this.charset) && isMappable(input);
+		long lines;
+		ComparingOutputStream os;
+		try {
+			os = new ComparingOutputStream(output, tmpDirectory(input, output));
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_WRITING_FILE, "Replacement - Error writing to file: " + output, e);
+		}
+		try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(os, charset))) {
+			if (bom != null && !mapped) {
+				os.write(bom.getBytes());
+			}
+			if (template != null) {
+				lines = render(template, output, bw, scanner, stats);
+			} else if (chunked) {
+				lines = processChunked(input, bom, bw, scanner);
+			} else if (mapped) {
+				lines = processMapped(input, os, scanner, stats);
+			} else {
+				lines = process(input, bom, bw, scanner, stats);
+			}
+		} catch (IOException e1) {
+			deleteTmpFile(os.getTmp());
+			throw new ReplacerException(ERROR_CODE_ERROR_WRITING_FILE, "Replacement - Error writing to file: " + output, e1);
+		} catch (UncheckedIOException e) {
+			deleteTmpFile(os.getTmp());
+			throw valuesError(e);
+		} catch (RecursiveResolver.Failure e) {
+			deleteTmpFile(os.getTmp());
+			throw e.getError();
+		} catch (ReplacerException e) {
+			deleteTmpFile(os.getTmp());
+			throw e;
+		}
+		if (stats != null) {
+			stats.lap(Phase.WRITE);
+			stats.lines = lines;
+			stats.bytesIn = size(input);
+			stats.bytesOut = os.getSize();
+		}
+		if (!os.isChanged()) {
+			if (config.isDebugEnabled()) config.getLog().println("Skipping unchanged file: " + output);
+			return new Prepared(input, output, null, lines, stats);
+		}
+		return new Prepared(input, output, os.getTmp(), lines, stats);
+	}
+
+	/**
+	 * @return directory of the temporal file of an output, the directory of the
+	 *         output so the file is moved atomically, or the directory of the
+	 *         input if the output directory does not exist yet
+	 */
+	private static Path tmpDirectory(Path input, Path output) {
+		Path directory = parent(output);
+		return Files.isDirectory(directory) ? directory : parent(input);
+	}
+
+	private static Path parent(Path path) {
+		Path parent = path.getParent();
+		return parent != null ? parent : Paths.get("");
+	}
+
+	/**
+	 * Creates the backup of a prepared file, if it is enabled, and moves its
+	 * temporal file to the output.
+	 *
+	 * @return result of the replacement
+	 * @throws ReplacerException if the backup can not be created or the temporal
+	 *                           file can not be moved, the temporal file is
+	 *                           deleted in that case
+	 */
+	ReplaceResult commit(Prepared prepared) throws ReplacerException {
+		return commit(Collections.singletonList(prepared)).get(0);
+	}
+
+	/**
+	 * Applies prepared files in two steps. First the backups of their inputs
+	 * are created, once per input, and no output is modified if a backup fails.
+	 * Then the temporal files are moved to their outputs one by one. Each move
+	 * replaces an output as a whole, but moves can not be undone: if a temporal
+	 * file can not be moved, the outputs moved before it keep their new content
+	 * and the remaining temporal files are deleted.
+	 *
+	 * @return results in the order of the prepared files, the backup of an input
+	 *         is returned with its first output
+	 * @throws ReplacerException if a backup can not be created or a temporal
+	 *                           file can not be moved, the temporal files that
+	 *                           were not moved are deleted in that case
+	 */
+	List<ReplaceResult> commit(List<Prepared> prepared) throws ReplacerException {
+		List<ReplaceResult> results = new ArrayList<ReplaceResult>(prepared.size());
+		Map<Path, Path> backups = new HashMap<Path, Path>();
+		Prepared current = null;
+		try {
+			if (config.getBackupMode() != BackupMode.NONE) {
+				for (Prepared next : prepared) {
+					current = next;
+					if (!backups.containsKey(next.input)) {
+						if (next.stats != null) next.stats.start();
+						backups.put(next.input, backup(next.input, next.stats));
+					}
+				}
+			}
+			for (Prepared next : prepared) {
+				current = next;
+				results.add(move(next, backups.remove(next.input)));
+			}
+		} catch (ReplacerException e) {
+			if (current.stats != null && current.stats.error == null) current.stats.error = e.getMessage();
+			throw e;
+		} finally {
+			for (int i = results.size(); i < prepared.size(); i++) {
+				discard(prepared.get(i));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Deletes the temporal file of a prepared file.
+	 */
+	void discard(Prepared prepared) {
+		if (prepared.tmp != null) {
+			deleteTmpFile(prepared.tmp);
+		}
+		if (prepared.stats != null && !prepared.recorded) {
+			report.add(prepared.stats);
+			prepared.recorded = true;
+		}
+	}
+
+	private Path backup(Path input, FileStats stats) throws BackupException {
+		Path backup = doBackup(input);
+		if (stats != null) stats.lap(Phase.BACKUP);
+		return backup;
+	}
+
+	private ReplaceResult move(Prepared prepared, Path backup) throws ReplacerException {
+		FileStats stats = prepared.stats;
+		if (prepared.tmp == null) {
+			if (stats != null) record(prepared);
+			return new ReplaceResult(prepared.input, prepared.output, backup, prepared.lines, false);
+		}
+		if (stats != null) stats.start();
+		try {
+			if (config.isDebugEnabled()) config.getLog().println("Moving tmp file from:" + prepared.tmp.toString() + " to: " + prepared.output.toString());
+			Path directory = prepared.output.toAbsolutePath().getParent();
+			if (directory != null && !Files.isDirectory(directory)) {
+				// outputs of patterns can be in new directories
+				Files.createDirectories(directory);
+			}
+			Files.move(prepared.tmp, prepared.output, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			ReplacerException error = new ReplacerException(ERROR_CODE_RENAMING_TMP_FILE, "Replacement - Error moving tmp file: " + prepared.tmp + " to: " + prepared.output, e);
+			if (stats != null) {
+				stats.error = error.getMessage();
+				record(prepared);
+			}
+			throw error;
+		}
+		if (stats != null) {
+			stats.lap(Phase.MOVE);
+			stats.modified = true;
+			record(prepared);
+		}
+		return new ReplaceResult(prepared.input, prepared.output, backup, prepared.lines, true);
+	}
+
+	private void record(Prepared prepared) {
+		report.add(prepared.stats);
+		prepared.recorded = true;
+	}
+
+	private void record(FileStats stats, ReplacerException e) {
+		if (stats != null) {
+			stats.error = e.getMessage();
+			report.add(stats);
+		}
+	}
+
+	/**
+	 * @return error of a value source that can not read a value
+	 */
+	private static ReplacerException valuesError(UncheckedIOException e) {
+		return new ReplacerException(ERROR_CODE_ERROR_READING_VALUES, "Replacement - " + e.getMessage(), e.getCause());
+	}
+
+	/**
+	 * @return size of a file to be reported, 0 if it can not be read
+	 */
+	private static long size(Path path) {
+		try {
+			return Files.size(path);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Replaces the expressions of a stream. The input is processed line by line,
+	 * or in chunks in chunked mode, keeping the original line terminators.
+	 * Streams are not closed.
+	 *
+	 * @param reader input to process
+	 * @param writer output
+	 * @return result of the replacement
+	 * @throws ReplacerException if the stream can not be processed
+	 */
+	public ReplaceResult replace(Reader reader, Writer writer) throws ReplacerException {
+		ExpressionScanner scanner = scanners.get();
+		FileStats stats = report != null ? new FileStats(null, null) : null;
+		scanner.stats = stats;
+		long lines;
+		try {
+			if (chunked) {
+				lines = scanner.process(reader, writer, new char[CHUNK_SIZE], MAX_EXPRESSION_SIZE);
+			} else {
+				lines = process(new LineReader(reader), writer, scanner, stats);
+			}
+			writer.flush();
+		} catch (ExpressionTooLongException e) {
+			ReplacerException error = new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Expression longer than "
+					+ MAX_EXPRESSION_SIZE + " chars at offset " + e.getOffset() + " of stream", e);
+			record(stats, error);
+			throw error;
+		} catch (IOException e) {
+			ReplacerException error = new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error processing stream", e);
+			record(stats, error);
+			throw error;
+		} catch (UncheckedIOException e) {
+			ReplacerException error = valuesError(e);
+			record(stats, error);
+			throw error;
+		} catch (RecursiveResolver.Failure e) {
+			record(stats, e.getError());
+			throw e.getError();
+		} catch (ReplacerException e) {
+			record(stats, e);
+			throw e;
+		} finally {
+			scanner.stats = null;
+		}
+		if (stats != null) {
+			stats.lap(Phase.WRITE);
+			stats.lines = lines;
+			stats.modified = true;
+			report.add(stats);
+		}
+		return new ReplaceResult(null, null, null, lines, true);
+	}
+
+	private long process(LineReader lineReader, Writer writer, ExpressionScanner scanner, FileStats stats)
+			throws IOException, RequiredEnvironmentVariableException {
+		long lines = 0;
+		String line = lineReader.readLine();
+		if (stats != null) stats.lap(Phase.READ);
+		while (line != null) {
+			lines++;
+			if (config.isTraceEnabled()) config.getLog().println("input : " + line);
+			CharSequence result = scanner.processLine(line);
+			if (stats != null) stats.lap(Phase.SUBSTITUTE);
+			if (config.isTraceEnabled()) config.getLog().println("output: " + result);
+			writer.append(result);
+			writer.write(lineReader.getTerminator());
+			if (stats != null) stats.lap(Phase.WRITE);
+			line = lineReader.readLine();
+			if (stats != null) stats.lap(Phase.READ);
+		}
+		return lines;
+	}
+
+	/**
+	 * Replaces the expressions of a stream using the configured charset, or the
+	 * charset of its byte order mark, see {@link Bom}. The mark is written to
+	 * the output as it is. Streams are not closed.
+	 *
+	 * @param input  input to process
+	 * @param output output
+	 * @return result of the replacement
+	 * @throws ReplacerException if the stream can not be processed
+	 * @see #replace(Reader, Writer)
+	 */
+	public ReplaceResult replace(InputStream input, OutputStream output) throws ReplacerException {
+		PushbackInputStream in = new PushbackInputStream(input, Bom.MAX_LENGTH);
+		Bom bom;
+		try {
+			bom = Bom.read(in);
+			if (bom != null) {
+				output.write(bom.getBytes());
+			}
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error processing stream", e);
+		}
+		Charset charset = Bom.charset(bom, this.charset);
+		return replace(new InputStreamReader(in, charset), new BufferedWriter(new OutputStreamWriter(output, charset)));
+	}
+
+	/**
+	 * Renders a file to a writer, lines keep their terminators and the byte
+	 * order mark is not written. The file is compiled once while it is in the
+	 * template cache. The writer is not closed.
+	 *
+	 * @param input  file to render
+	 * @param writer output
+	 * @return number of lines
+	 * @throws ReplacerException if the file can not be read or rendered
+	 */
+	long render(Path input, Writer writer) throws ReplacerException {
+		Template template = compileFile(input);
+		try {
+			return template.render(writer, scanners.get(), resolver, null);
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_WRITING_FILE, "Replacement - Error writing result of file: " + input, e);
+		} catch (UncheckedIOException e) {
+			throw valuesError(e);
+		} catch (RecursiveResolver.Failure e) {
+			throw e.getError();
+		}
+	}
+
+	private Template compile(Path input) throws ReplacerException {
+		try {
+			return templateCache.get(input, filterKey, charset, compiler, config.isDebugEnabled() ? config.getLog() : null);
+		} catch (FileNotFoundException | NoSuchFileException e) {
+			throw new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Replacement - Invalid path: " + input + " (File not found)", e);
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error reading from file: " + input, e);
+		}
+	}
+
+	/**
+	 * Returns the keys read from the value source to replace a file, after
+	 * removing their prefixes.
+	 *
+	 * @return keys of the file, or null if it has expressions composed by other
+	 *         expressions or values can reference other keys, and it can depend
+	 *         on any key
+	 */
+	Set<String> dependencies(Path input) throws ReplacerException {
+		if (config.isRecursive()) {
+			return null;
+		}
+		Template template = compileFile(input);
+		Set<String> keys = new HashSet<String>();
+		if (!template.collectKeys(keys)) {
+			return null;
+		}
+		Set<String> dependencies = new HashSet<String>(keys.size() * 4 / 3 + 1);
+		for (String key : keys) {
+			dependencies.add(sourceKey(key));
+		}
+		return dependencies;
+	}
+
+	/**
+	 * Finds the expressions of a file without replacing them. Keys composed by
+	 * other expressions are found resolving them with the current values, a
+	 * line with them is scanned up to its first missing required key.
+	 *
+	 * @return expressions in order of appearance
+	 */
+	List<Usage> scan(Path input) throws ReplacerException {
+		Node[][] lines = compileFile(input).getLines();
+		List<Usage> usages = new ArrayList<Usage>();
+		try {
+			for (int i = 0; i < lines.length; i++) {
+				Node[] line = lines[i];
+				if (line.length == 1 && line[0] instanceof Scanned) {
+					scanComposed(input, i + 1, ((Scanned) line[0]).line, usages);
+				} else {
+					scan(input, i + 1, line, usages);
+				}
+			}
+		} catch (UncheckedIOException e) {
+			throw valuesError(e);
+		} catch (RecursiveResolver.Failure e) {
+			throw e.getError();
+		}
+		return usages;
+	}
+
+	private void scan(Path input, long line, Node[] nodes, List<Usage> usages) {
+		for (Node node : nodes) {
+			if (node instanceof Expression) {
+				Expression expression = (Expression) node;
+				String defaultValue = expression.defaultValue != null ? Template.toText(expression.defaultValue) : null;
+				usages.add(new Usage(expression.key, input, line, defaultValue == null, defaultValue,
+						resolver.apply(expression.key) != null, false));
+				if (expression.defaultValue != null) {
+					scan(input, line, expression.defaultValue, usages);
+				}
+			}
+		}
+	}
+
+	private void scanComposed(Path input, long line, String text, List<Usage> usages) {
+		List<String> keys = new ArrayList<String>();
+		ExpressionScanner scanner = new ExpressionScanner(filter, key -> {
+			keys.add(key);
+			return resolver.apply(key);
+		});
+		String missing = null;
+		try {
+			scanner.processLine(text);
+		} catch (RequiredEnvironmentVariableException e) {
+			missing = e.getKey();
+		}
+		for (String key : keys) {
+			boolean defined = resolver.apply(key) != null;
+			usages.add(new Usage(key, input, line, !defined && key.equals(missing), null, defined, true));
+		}
+	}
+
+	private Template compileFile(Path input) throws ReplacerException {
+		if (templateCache != null) {
+			return compile(input);
+		}
+		try (InputStream in = Files.newInputStream(input)) {
+			return compiler.compile(in, charset);
+		} catch (NoSuchFileException e) {
+			throw new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Replacement - Invalid path: " + input + " (File not found)", e);
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error reading from file: " + input, e);
+		}
+	}
+
+	private boolean containsExpression(Path input, Template template, Bom bom) throws ReplacerException {
+		if (template != null) {
+			return template.hasExpressions();
+		}
+		if (!byteSearch || (bom != null && !ByteSearch.isSupported(bom.getCharset()))) {
+			return true;
+		}
+		try {
+			return ByteSearch.containsExpression(input);
+		} catch (NoSuchFileException e) {
+			throw new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Replacement - Invalid path: " + input + " (File not found)", e);
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error reading from file: " + input, e);
+		}
+	}
+
+	/**
+	 * @return byte order mark of a file, null if it has no mark
+	 */
+	private static Bom readBom(Path input) throws ReplacerException {
+		try {
+			return Bom.read(input);
+		} catch (NoSuchFileException e) {
+			throw new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Replacement - Invalid path: " + input + " (File not found)", e);
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error reading from file: " + input, e);
+		}
+	}
+
+	private static boolean isSameFile(Path input, Path output) {
+		return input.toAbsolutePath().normalize().equals(output.toAbsolutePath().normalize());
+	}
+
+	private long render(Template template, Path output, Writer bw, ExpressionScanner scanner, FileStats stats)
+			throws ReplacerException {
+		try {
+			return template.render(bw, scanner, resolver, stats);
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_WRITING_FILE, "Replacement - Error writing to file: " + output, e);
+		}
+	}
+
+	private boolean isMappable(Path input) throws ReplacerException {
+		try {
+			return Files.size(input) <= MappedFileProcessor.MAX_SIZE;
+		} catch (NoSuchFileException e) {
+			throw new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Replacement - Invalid path: " + input + " (File not found)", e);
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error reading from file: " + input, e);
+		}
+	}
+
+	private long processMapped(Path input, ComparingOutputStream os, ExpressionScanner scanner, FileStats stats)
+			throws ReplacerException {
+		MappedFileProcessor processor = new MappedFileProcessor(charset, scanner,
+				config.isTraceEnabled() ? config.getLog() : null);
+		try {
+			return processor.process(input, os, stats);
+		} catch (NoSuchFileException e) {
+			throw new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Replacement - Invalid path: " + input + " (File not found)", e);
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error reading from file: " + input, e);
+		}
+	}
+
+	private long processChunked(Path input, Bom bom, Writer bw, ExpressionScanner scanner) throws ReplacerException {
+		try (Reader reader = new InputStreamReader(Bom.skip(Files.newInputStream(input), bom), Bom.charset(bom, charset))) {
+			return scanner.process(reader, bw, new char[CHUNK_SIZE], MAX_EXPRESSION_SIZE);
+		} catch (ExpressionTooLongException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Expression longer than "
+					+ MAX_EXPRESSION_SIZE + " chars at offset " + e.getOffset() + " of file: " + input, e);
+		} catch (NoSuchFileException e) {
+			throw new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Replacement - Invalid path: " + input + " (File not found)", e);
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error reading from file: " + input, e);
+		}
+	}
+
+	/**
+	 * Processes a file by lines, keeping their terminators
+	 */
+	private long process(Path input, Bom bom, Writer bw, ExpressionScanner scanner, FileStats stats)
+			throws ReplacerException {
+		try (Reader reader = new InputStreamReader(Bom.skip(Files.newInputStream(input), bom), Bom.charset(bom, charset))) {
+			return process(new LineReader(reader), bw, scanner, stats);
+		} catch (FileNotFoundException | NoSuchFileException e) {
+			throw new ReplacerException(ERROR_CODE_FILE_NOT_FOUND, "Replacement - Invalid path: " + input + " (File not found)", e);
+		} catch (IOException e) {
+			throw new ReplacerException(ERROR_CODE_ERROR_READING_FILE, "Replacement - Error reading from file: " + input, e);
+		}
+	}
+
+	private void deleteTmpFile(Path tmp) {
+		if (tmp == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(tmp);
+		} catch (IOException e) {
+			config.getLog().println("Cannot remove tmp file: " + tmp);
+			if (config.isDebugEnabled()) e.printStackTrace(config.getLog());
+		}
+	}
+
+	/**
+	 * @return backup file, or the archive where the file was added
+	 */
+	private Path doBackup(Path source) throws BackupException {
+		if (config.getBackupStrategy() == BackupStrategy.ARCHIVE) {
+			BackupArchive archive = config.getBackupArchive();
+			try {
+				archive.add(source);
+			} catch (FileAlreadyExistsException e2) {
+				throw new BackupException(ERROR_CODE_BACKUP_ERROR_FILE_EXIST, "Error during backup of file (File already exist): " + archive.getPath(), e2);
+			} catch (IOException e1) {
+				throw new BackupException(ERROR_CODE_BACKUP_ERROR, "Error during backup of file: " + source, e1);
+			}
+			return archive.getPath();
+		}
+		Path target = backupPath(source);
+		try {
+			if (config.getBackupStrategy() == BackupStrategy.LINK && link(source, target)) {
+				return target;
+			}
+			if (config.getBackupMode() == BackupMode.FORCE) {
+				Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				Files.copy(source, target);
+			}
+		} catch (FileAlreadyExistsException e2) {
+			throw new BackupException(ERROR_CODE_BACKUP_ERROR_FILE_EXIST, "Error during backup of file (File already exist): " + source, e2);
+		} catch (IOException e1) {
+			throw new BackupException(ERROR_CODE_BACKUP_ERROR, "Error during backup of file: " + source, e1);
+		}
+		return target;
+	}
+
+	/**
+	 * Creates a hard link to the file
+	 *
+	 * @return false if links are not supported, like across devices, and the
+	 *         file has to be copied
+	 */
+	private boolean link(Path source, Path target) throws IOException {
+		if (config.getBackupMode() == BackupMode.FORCE) {
+			Files.deleteIfExists(target);
+		}
+		try {
+			Files.createLink(target, source);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (UnsupportedOperationException | IOException e) {
+			if (config.isDebugEnabled()) config.getLog().println("Backup - Hard link not supported, copying file: " + source);
+			return false;
+		}
+	}
+
+	private static Path backupPath(Path path) {
+		return Paths.get(path.toString() + ".bak");
+	}
+
+	private boolean isIncluded(String keyName) {
+		Boolean included = includedKeys.get(keyName);
+		if (included == null) {
+			included = filterPrefixes.matches(keyName);
+			memoise(includedKeys, keyName, included);
+		}
+		return included;
+	}
+
+	/**
+	 * Values are read from the source once per key, the prefix is removed before
+	 * reading them
+	 */
+	private String resolveValue(String keyName) {
+		String value = values.get(keyName);
+		if (value == null) {
+			value = valueSource.getValue(sourceKey(keyName));
+			memoise(values, keyName, value != null ? value : UNDEFINED);
+			return value;
+		}
+		return value != UNDEFINED ? value : null;
+	}
+
+	private String sourceKey(String keyName) {
+		int length = removePrefixes != null ? removePrefixes.longestMatch(keyName) : -1;
+		return length > 0 ? keyName.substring(length) : keyName;
+	}
+
+	private static <V> void memoise(ConcurrentMap<String, V> map, String key, V value) {
+		// keys composed by other expressions could grow the map without limit
+		if (map.size() < MAX_MEMOISED_KEYS) {
+			map.putIfAbsent(key, value);
+		}
+	}
+
+	/**
+	 * Result of a file written to its temporal file and not moved yet.
+	 */
+	static final class Prepared {
+		final Path input;
+		final Path output;
+		/**
+		 * Temporal file, null when the output does not change
+		 */
+		final Path tmp;
+		final long lines;
+		/**
+		 * Counters and timings, null when they are not recorded
+		 */
+		final FileStats stats;
+		/**
+		 * The stats were added to the report
+		 */
+		boolean recorded;
+
+		Prepared(Path input, Path output, Path tmp, long lines, FileStats stats) {
+			this.input = input;
+			this.output = output;
+			this.tmp = tmp;
+			this.lines = lines;
+			this.stats = stats;
+		}
+	}
+}
\ No newline at end of file
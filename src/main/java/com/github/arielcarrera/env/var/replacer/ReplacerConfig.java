@@ -0,0 +1,414 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Options of a {@link Replacer}. Instances are immutable and are created with
+ * {@link #builder()}.
+ */
+public final class ReplacerConfig {
+
+	private final BackupMode backupMode;
+	private final BackupStrategy backupStrategy;
+	private final BackupArchive backupArchive;
+	private final boolean debugEnabled;
+	private final boolean traceEnabled;
+	private final List<String> removePrefixes;
+	private final List<String> filterPrefixes;
+	private final ValueSource valueSource;
+	private final Map<Path, List<Output>> outputs;
+	private final PrintStream log;
+	private final TemplateCache templateCache;
+	private final Charset charset;
+	private final boolean memoryMapped;
+	private final boolean chunked;
+	private final boolean recursive;
+	private final RunReport report;
+
+	private ReplacerConfig(Builder builder) {
+		this.backupMode = builder.backupMode;
+		this.backupStrategy = builder.backupStrategy;
+		this.backupArchive = builder.backupArchive;
+		this.debugEnabled = builder.debugEnabled || builder.traceEnabled;
+		this.traceEnabled = builder.traceEnabled;
+		this.removePrefixes = builder.removePrefixes != null
+				? Collections.unmodifiableList(new ArrayList<String>(builder.removePrefixes))
+				: null;
+		this.filterPrefixes = builder.filterPrefixes != null
+				? Collections.unmodifiableList(new ArrayList<String>(builder.filterPrefixes))
+				: null;
+		this.valueSource = builder.valueSource;
+		Map<Path, List<Output>> outputs = new HashMap<Path, List<Output>>();
+		for (Map.Entry<Path, List<Output>> entry : builder.outputs.entrySet()) {
+			outputs.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<Output>(entry.getValue())));
+		}
+		this.outputs = Collections.unmodifiableMap(outputs);
+		this.log = builder.log != null ? builder.log : System.out;
+		this.templateCache = builder.templateCache;
+		this.charset = builder.charset != null ? builder.charset : Charset.defaultCharset();
+		this.memoryMapped = builder.memoryMapped;
+		this.chunked = builder.chunked;
+		this.recursive = builder.recursive;
+		this.report = builder.report;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public BackupMode getBackupMode() {
+		return backupMode;
+	}
+
+	public BackupStrategy getBackupStrategy() {
+		return backupStrategy;
+	}
+
+	/**
+	 * @return archive of the backups when the strategy is
+	 *         {@link BackupStrategy#ARCHIVE}, null otherwise
+	 */
+	public BackupArchive getBackupArchive() {
+		return backupArchive;
+	}
+
+	public boolean isDebugEnabled() {
+		return debugEnabled;
+	}
+
+	public boolean isTraceEnabled() {
+		return traceEnabled;
+	}
+
+	/**
+	 * @return prefixes to be removed from keys or null
+	 */
+	public List<String> getRemovePrefixes() {
+		return removePrefixes;
+	}
+
+	/**
+	 * @return prefixes of the keys to be replaced or null to replace all keys
+	 */
+	public List<String> getFilterPrefixes() {
+		return filterPrefixes;
+	}
+
+	public ValueSource getValueSource() {
+		return valueSource;
+	}
+
+	/**
+	 * @return outputs by input path
+	 */
+	public Map<Path, List<Output>> getOutputs() {
+		return outputs;
+	}
+
+	/**
+	 * @return outputs of a file, empty if it is replaced in place
+	 */
+	public List<Output> getOutputs(Path input) {
+		List<Output> list = outputs.get(input);
+		return list != null ? list : Collections.<Output>emptyList();
+	}
+
+	/**
+	 * @return stream where debug and trace messages are printed
+	 */
+	public PrintStream getLog() {
+		return log;
+	}
+
+	/**
+	 * @return cache of compiled templates or null if files are scanned on every
+	 *         replacement
+	 */
+	public TemplateCache getTemplateCache() {
+		return templateCache;
+	}
+
+	/**
+	 * @return charset of files and streams
+	 */
+	public Charset getCharset() {
+		return charset;
+	}
+
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	public boolean isChunked() {
+		return chunked;
+	}
+
+	public boolean isRecursive() {
+		return recursive;
+	}
+
+	/**
+	 * @return report where processed files are recorded or null
+	 */
+	public RunReport getReport() {
+		return report;
+	}
+
+	/**
+	 * @return output path of a file, the file itself if it is replaced in place
+	 */
+	public Path getOutput(Path input) {
+		List<Output> list = outputs.get(input);
+		return list != null ? list.get(0).getPath() : input;
+	}
+
+	/**
+	 * Output of an input file
+	 */
+	public static final class Output {
+		private final Path path;
+		private final ValueSource valueSource;
+
+		Output(Path path, ValueSource valueSource) {
+			this.path = path;
+			this.valueSource = valueSource;
+		}
+
+		/**
+		 * @return file to write, it can be the input file
+		 */
+		public Path getPath() {
+			return path;
+		}
+
+		/**
+		 * @return values of the output, null if it uses the values of the
+		 *         configuration
+		 */
+		public ValueSource getValueSource() {
+			return valueSource;
+		}
+	}
+
+	public static final class Builder {
+		private BackupMode backupMode = BackupMode.NONE;
+		private BackupStrategy backupStrategy = BackupStrategy.COPY;
+		private BackupArchive backupArchive;
+		private boolean debugEnabled;
+		private boolean traceEnabled;
+		private List<String> removePrefixes;
+		private List<String> filterPrefixes;
+		private ValueSource valueSource = ValueSource.environment();
+		private final Map<Path, List<Output>> outputs = new HashMap<Path, List<Output>>();
+		private PrintStream log;
+		private TemplateCache templateCache;
+		private Charset charset;
+		private boolean memoryMapped;
+		private boolean chunked;
+		private boolean recursive;
+		private RunReport report;
+
+		private Builder() {
+		}
+
+		public Builder backupMode(BackupMode backupMode) {
+			if (backupMode == null)
+				throw new IllegalArgumentException("Backup mode is required");
+			this.backupMode = backupMode;
+			return this;
+		}
+
+		/**
+		 * @param backupStrategy how backups are saved, {@link BackupStrategy#COPY}
+		 *                       by default
+		 */
+		public Builder backupStrategy(BackupStrategy backupStrategy) {
+			if (backupStrategy == null)
+				throw new IllegalArgumentException("Backup strategy is required");
+			this.backupStrategy = backupStrategy;
+			return this;
+		}
+
+		/**
+		 * @param backupArchive archive where backups are saved with
+		 *                      {@link BackupStrategy#ARCHIVE}, it is closed by the
+		 *                      caller when the run finishes
+		 */
+		public Builder backupArchive(BackupArchive backupArchive) {
+			this.backupArchive = backupArchive;
+			return this;
+		}
+
+		public Builder debug(boolean debugEnabled) {
+			this.debugEnabled = debugEnabled;
+			return this;
+		}
+
+		/**
+		 * Trace mode prints every input and output line, it enables debug mode
+		 */
+		public Builder trace(boolean traceEnabled) {
+			this.traceEnabled = traceEnabled;
+			return this;
+		}
+
+		/**
+		 * @param removePrefix prefix to be removed from keys before resolving them,
+		 *                     null to keep keys as they are
+		 */
+		public Builder removePrefix(String removePrefix) {
+			return removePrefixes(removePrefix != null ? new String[] { removePrefix } : null);
+		}
+
+		/**
+		 * @param removePrefixes prefixes to be removed from keys before resolving
+		 *                       them, the longest one is removed when many of them
+		 *                       match
+		 */
+		public Builder removePrefixes(String... removePrefixes) {
+			this.removePrefixes = removePrefixes != null ? Arrays.asList(removePrefixes) : null;
+			return this;
+		}
+
+		/**
+		 * @param filterPrefixes prefixes of the keys to be replaced, other
+		 *                       expressions remain as they are
+		 */
+		public Builder filterPrefixes(String... filterPrefixes) {
+			this.filterPrefixes = filterPrefixes != null ? Arrays.asList(filterPrefixes) : null;
+			return this;
+		}
+
+		public Builder valueSource(ValueSource valueSource) {
+			if (valueSource == null)
+				throw new IllegalArgumentException("Value source is required");
+			this.valueSource = valueSource;
+			return this;
+		}
+
+		/**
+		 * Writes the result of an input file to a different file, it replaces the
+		 * previous outputs of the file
+		 */
+		public Builder output(Path input, Path output) {
+			List<Output> list = new ArrayList<Output>(1);
+			list.add(new Output(output, null));
+			this.outputs.put(input, list);
+			return this;
+		}
+
+		/**
+		 * Adds an output of an input file. A file with many outputs, or with an
+		 * output with its own values, is read and parsed once and rendered to
+		 * every output in parallel. An output with the same path is replaced.
+		 *
+		 * @param output      file to write, it can be the input file
+		 * @param valueSource values of the output, null to use the values of the
+		 *                    configuration
+		 */
+		public Builder addOutput(Path input, Path output, ValueSource valueSource) {
+			List<Output> list = this.outputs.computeIfAbsent(input, key -> new ArrayList<Output>());
+			for (int i = 0; i < list.size(); i++) {
+				if (list.get(i).getPath().equals(output)) {
+					list.set(i, new Output(output, valueSource));
+					return this;
+				}
+			}
+			list.add(new Output(output, valueSource));
+			return this;
+		}
+
+		/**
+		 * @param log stream where debug and trace messages are printed, System.out
+		 *            by default
+		 */
+		public Builder log(PrintStream log) {
+			this.log = log;
+			return this;
+		}
+
+		/**
+		 * Files are compiled once and rendered from the cache until they are
+		 * modified. The cache is not used in trace mode.
+		 *
+		 * @param templateCache cache of compiled templates, null to scan files on
+		 *                      every replacement
+		 */
+		public Builder templateCache(TemplateCache templateCache) {
+			this.templateCache = templateCache;
+			return this;
+		}
+
+		/**
+		 * @param charset charset of files and streams, the default charset of the
+		 *                platform by default. Files and streams with a byte order
+		 *                mark are read and written with the charset of the mark,
+		 *                see {@link Bom}
+		 */
+		public Builder charset(Charset charset) {
+			this.charset = charset;
+			return this;
+		}
+
+		/**
+		 * In memory mapped mode files are processed as bytes, only the lines with
+		 * expressions are decoded. The rest of the file is copied as it is,
+		 * including its line terminators. It is not used with a template cache or
+		 * if the charset does not encode "${" as ASCII (like UTF-16).
+		 */
+		public Builder memoryMapped(boolean memoryMapped) {
+			this.memoryMapped = memoryMapped;
+			return this;
+		}
+
+		/**
+		 * In chunked mode files and streams are processed in chunks of a fixed
+		 * size instead of lines, so memory does not depend on the length of lines.
+		 * Text outside expressions is copied as it is, including its line
+		 * terminators, and expressions longer than
+		 * {@link Replacer#MAX_EXPRESSION_SIZE} chars are an error. It disables
+		 * the template cache and memory mapped mode, and lines are not printed in
+		 * trace mode.
+		 */
+		public Builder chunked(boolean chunked) {
+			this.chunked = chunked;
+			return this;
+		}
+
+		/**
+		 * In recursive mode expressions inside values are replaced too, so values
+		 * can reference other keys. Each key is expanded once and its result is
+		 * reused, and references that form a cycle are reported as an error with
+		 * the keys of the cycle.
+		 */
+		public Builder recursive(boolean recursive) {
+			this.recursive = recursive;
+			return this;
+		}
+
+		/**
+		 * Records the timings and counters of every processed file. Nothing is
+		 * measured without a report.
+		 *
+		 * @param report report of the run, null to not record files
+		 */
+		public Builder report(RunReport report) {
+			this.report = report;
+			return this;
+		}
+
+		public ReplacerConfig build() {
+			if (backupStrategy == BackupStrategy.ARCHIVE && backupArchive == null)
+				throw new IllegalArgumentException("Backup archive is required");
+			return new ReplacerConfig(this);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.github.arielcarrera.env.var.replacer;
+
+/**
+ * Error processing a file. It carries the exit code to be used by the command
+ * line.
+ */
+public class ReplacerException extends Exception {
+	private static final long serialVersionUID = 4718830511264021305L;
+
+	private final int errorCode;
+
+	public ReplacerException(int errorCode, String message) {
+		super(message);
+		this.errorCode = errorCode;
+	}
+
+	public ReplacerException(int errorCode, String message, Throwable cause) {
+		super(message, cause);
+		this.errorCode = errorCode;
+	}
+
+	public int getErrorCode() {
+		return errorCode;
+	}
+}
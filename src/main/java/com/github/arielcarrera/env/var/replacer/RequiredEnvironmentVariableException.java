@@ -0,0 +1,43 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An expression without default value has no value.
+ */
+public class RequiredEnvironmentVariableException extends ReplacerException {
+	private static final long serialVersionUID = -1250700098669029910L;
+
+	private final List<String> keys;
+
+	public RequiredEnvironmentVariableException(String key) {
+		super(EnvVarReplacer.ERROR_CODE_VAR_REQUIRED, "Environment Variable " + key + " is required");
+		this.keys = Collections.singletonList(key);
+	}
+
+	/**
+	 * @param file file with the expressions
+	 * @param keys names of the required variables, not empty
+	 */
+	public RequiredEnvironmentVariableException(Path file, List<String> keys) {
+		super(EnvVarReplacer.ERROR_CODE_VAR_REQUIRED,
+				"Environment Variables " + String.join(", ", keys) + " are required. File: " + file);
+		this.keys = Collections.unmodifiableList(keys);
+	}
+
+	/**
+	 * @return name of the first required variable
+	 */
+	public String getKey() {
+		return keys.get(0);
+	}
+
+	/**
+	 * @return names of the required variables
+	 */
+	public List<String> getKeys() {
+		return keys;
+	}
+}
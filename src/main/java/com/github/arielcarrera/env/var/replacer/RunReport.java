@@ -0,0 +1,202 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.github.arielcarrera.env.var.replacer.FileStats.Phase;
+
+/**
+ * Timings and counters of a run, by file and in total. Replacers record the
+ * files they process when the report is configured with
+ * {@link ReplacerConfig.Builder#report(RunReport)}, nothing is measured
+ * otherwise.
+ * <p>
+ * The wall time is measured from the creation of the report until
+ * {@link #finish()} is called. Instances are thread-safe.
+ */
+public final class RunReport {
+
+	private final long start = System.nanoTime();
+	private final List<FileStats> files = new ArrayList<FileStats>();
+	private final Path file;
+	private final boolean summary;
+	private long wallNanos = -1;
+	private long uptimeMillis = -1;
+
+	public RunReport() {
+		this(null, false);
+	}
+
+	/**
+	 * @param file    file where the report is written by {@link #close()}, null
+	 *                to not write it
+	 * @param summary print the summary to stderr on {@link #close()}
+	 */
+	RunReport(Path file, boolean summary) {
+		this.file = file;
+		this.summary = summary;
+	}
+
+	void add(FileStats stats) {
+		synchronized (files) {
+			files.add(stats);
+		}
+	}
+
+	/**
+	 * Stops the wall time, files processed after this call are still added.
+	 */
+	public synchronized void finish() {
+		if (wallNanos < 0) {
+			wallNanos = System.nanoTime() - start;
+			uptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+		}
+	}
+
+	/**
+	 * Finishes the run, writes the report to its file and prints the summary.
+	 * Errors writing the report are printed to stderr.
+	 */
+	void close() {
+		finish();
+		if (file != null) {
+			try {
+				write(file);
+			} catch (IOException e) {
+				System.err.println("Report - Error writing file: " + file);
+			}
+		}
+		if (summary) {
+			System.err.println(summary());
+		}
+	}
+
+	/**
+	 * Writes the report as JSON to a file.
+	 */
+	public void write(Path file) throws IOException {
+		Files.write(file, toJson().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the totals of the run in one line
+	 */
+	public String summary() {
+		List<FileStats> all = snapshot();
+		FileStats total = total(all);
+		return String.format(Locale.ROOT,
+				"Report - %d files (%d modified, %d failed) in %.3f ms: %d lines, %d placeholders, %d defaults, %d skipped, %d escapes, %d bytes in, %d bytes out",
+				all.size(), countModified(all), countFailed(all), millis(wallNanos()), total.lines, total.placeholders,
+				total.defaults, total.skipped, total.escapes, total.bytesIn, total.bytesOut);
+	}
+
+	/**
+	 * Writes the report as JSON. Times are in milliseconds, files are listed in
+	 * the order they finished.
+	 */
+	public String toJson() {
+		List<FileStats> all = snapshot();
+		StringBuilder sb = new StringBuilder(256 + all.size() * 384);
+		sb.append("{\n  \"wallTimeMs\": ").append(format(millis(wallNanos())));
+		sb.append(",\n  \"jvmUptimeMs\": ").append(uptimeMillis());
+		sb.append(",\n  \"files\": ").append(all.size());
+		sb.append(",\n  \"modified\": ").append(countModified(all));
+		sb.append(",\n  \"failed\": ").append(countFailed(all));
+		sb.append(",\n  \"totals\": ");
+		appendStats(sb, total(all));
+		sb.append(",\n  \"fileStats\": [");
+		for (int i = 0; i < all.size(); i++) {
+			FileStats stats = all.get(i);
+			sb.append(i > 0 ? ",\n    " : "\n    ").append("{\"input\": ");
+			Json.quote(sb, stats.input != null ? stats.input.toString() : EnvVarReplacer.STREAM_PATH);
+			sb.append(", \"output\": ");
+			Json.quote(sb, stats.output != null ? stats.output.toString() : EnvVarReplacer.STREAM_PATH);
+			sb.append(", \"modified\": ").append(stats.modified);
+			if (stats.error != null) {
+				sb.append(", \"error\": ");
+				Json.quote(sb, stats.error);
+			}
+			sb.append(", \"stats\": ");
+			appendStats(sb, stats);
+			sb.append('}');
+		}
+		return sb.append(all.isEmpty() ? "" : "\n  ").append("]\n}").toString();
+	}
+
+	private static void appendStats(StringBuilder sb, FileStats stats) {
+		sb.append("{\"timeMs\": {");
+		for (Phase phase : Phase.values()) {
+			sb.append('"').append(phase.name().toLowerCase(Locale.ROOT)).append("\": ");
+			sb.append(format(millis(stats.nanos[phase.ordinal()]))).append(", ");
+		}
+		sb.append("\"total\": ").append(format(millis(stats.totalNanos()))).append('}');
+		sb.append(", \"lines\": ").append(stats.lines);
+		sb.append(", \"placeholders\": ").append(stats.placeholders);
+		sb.append(", \"defaults\": ").append(stats.defaults);
+		sb.append(", \"skipped\": ").append(stats.skipped);
+		sb.append(", \"escapes\": ").append(stats.escapes);
+		sb.append(", \"bytesIn\": ").append(stats.bytesIn);
+		sb.append(", \"bytesOut\": ").append(stats.bytesOut).append('}');
+	}
+
+	private List<FileStats> snapshot() {
+		synchronized (files) {
+			return new ArrayList<FileStats>(files);
+		}
+	}
+
+	private static FileStats total(List<FileStats> all) {
+		FileStats total = new FileStats(null, null);
+		for (FileStats stats : all) {
+			for (int i = 0; i < total.nanos.length; i++) {
+				total.nanos[i] += stats.nanos[i];
+			}
+			total.lines += stats.lines;
+			total.placeholders += stats.placeholders;
+			total.defaults += stats.defaults;
+			total.skipped += stats.skipped;
+			total.escapes += stats.escapes;
+			total.bytesIn += stats.bytesIn;
+			total.bytesOut += stats.bytesOut;
+		}
+		return total;
+	}
+
+	private static int countModified(List<FileStats> all) {
+		int count = 0;
+		for (FileStats stats : all) {
+			count += stats.modified ? 1 : 0;
+		}
+		return count;
+	}
+
+	private static int countFailed(List<FileStats> all) {
+		int count = 0;
+		for (FileStats stats : all) {
+			count += stats.error != null ? 1 : 0;
+		}
+		return count;
+	}
+
+	private synchronized long wallNanos() {
+		return wallNanos >= 0 ? wallNanos : System.nanoTime() - start;
+	}
+
+	private synchronized long uptimeMillis() {
+		return uptimeMillis >= 0 ? uptimeMillis : ManagementFactory.getRuntimeMXBean().getUptime();
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static String format(double millis) {
+		return String.format(Locale.ROOT, "%.3f", millis);
+	}
+}
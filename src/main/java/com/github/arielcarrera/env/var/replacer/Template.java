@@ -0,0 +1,269 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.github.arielcarrera.env.var.replacer.FileStats.Phase;
+
+/**
+ * A file compiled into literal text and expressions, so it can be rendered
+ * many times without scanning it again. The line terminators and the byte order
+ * mark of the file are kept, so the output is written like the file.
+ * <p>
+ * Templates are immutable and are created by {@link TemplateCompiler}.
+ */
+final class Template {
+
+	/**
+	 * Line terminators by code, the code of a line without terminator is 0
+	 */
+	static final String[] TERMINATORS = { "", "\n", "\r\n", "\r" };
+
+	private final Node[][] lines;
+	private final byte[] terminators;
+	private final Bom bom;
+	private final int skipped;
+	private final boolean expressions;
+
+	/**
+	 * @param lines       nodes of each line
+	 * @param terminators code of the terminator of each line
+	 * @param bom         byte order mark of the file, null if it has no mark
+	 * @param skipped     filtered expressions compiled as literal text, the
+	 *                    ones of scanned lines are not included
+	 */
+	Template(Node[][] lines, byte[] terminators, Bom bom, int skipped) {
+		this.lines = lines;
+		this.terminators = terminators;
+		this.bom = bom;
+		this.skipped = skipped;
+		this.expressions = skipped > 0 || hasExpressions(lines);
+	}
+
+	/**
+	 * @return code of a line terminator in {@link #TERMINATORS}
+	 */
+	static byte terminatorCode(String terminator) {
+		for (int i = 1; i < TERMINATORS.length; i++) {
+			if (TERMINATORS[i].equals(terminator)) {
+				return (byte) i;
+			}
+		}
+		return 0;
+	}
+
+	Node[][] getLines() {
+		return lines;
+	}
+
+	byte[] getTerminators() {
+		return terminators;
+	}
+
+	/**
+	 * @return byte order mark of the file, null if it has no mark
+	 */
+	Bom getBom() {
+		return bom;
+	}
+
+	int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return false if the template is only literal text, without filtered
+	 *         expressions
+	 */
+	boolean hasExpressions() {
+		return expressions;
+	}
+
+	/**
+	 * Adds the keys of the expressions, including the ones of default values.
+	 *
+	 * @return false if the template has lines that are parsed on every render,
+	 *         their keys are not known
+	 */
+	boolean collectKeys(Set<String> keys) {
+		boolean known = true;
+		for (Node[] line : lines) {
+			known &= collectKeys(line, keys);
+		}
+		return known;
+	}
+
+	private static boolean collectKeys(Node[] nodes, Set<String> keys) {
+		boolean known = true;
+		for (Node node : nodes) {
+			if (node instanceof Expression) {
+				Expression expression = (Expression) node;
+				keys.add(expression.key);
+				if (expression.defaultValue != null) {
+					known &= collectKeys(expression.defaultValue, keys);
+				}
+			} else if (node instanceof Scanned) {
+				known = false;
+			}
+		}
+		return known;
+	}
+
+	/**
+	 * @return text of the nodes, with expressions as they are written
+	 */
+	static String toText(Node[] nodes) {
+		StringBuilder sb = new StringBuilder();
+		appendText(nodes, sb);
+		return sb.toString();
+	}
+
+	private static void appendText(Node[] nodes, StringBuilder sb) {
+		for (Node node : nodes) {
+			if (node instanceof Literal) {
+				sb.append(((Literal) node).text);
+			} else if (node instanceof Expression) {
+				Expression expression = (Expression) node;
+				sb.append("${").append(expression.key);
+				if (expression.defaultValue != null) {
+					sb.append(':');
+					appendText(expression.defaultValue, sb);
+				}
+				sb.append('}');
+			} else {
+				sb.append(((Scanned) node).line);
+			}
+		}
+	}
+
+	private static boolean hasExpressions(Node[][] lines) {
+		for (Node[] line : lines) {
+			for (Node node : line) {
+				if (!(node instanceof Literal)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Renders the template writing every line with its original terminator.
+	 * The byte order mark is not written, the writer encodes chars.
+	 *
+	 * @param stats counters and timings of the file, null to not record them.
+	 *              They are counted as the scanner does: the filtered
+	 *              expressions and the escaped end chars of default values are
+	 *              counted when the template is compiled, and added when it
+	 *              is rendered
+	 * @return number of lines
+	 */
+	long render(Writer writer, ExpressionScanner scanner, Function<String, String> resolver,
+			FileStats stats) throws IOException, RequiredEnvironmentVariableException {
+		StringBuilder out = new StringBuilder(256);
+		for (int i = 0; i < lines.length; i++) {
+			Node[] line = lines[i];
+			CharSequence result;
+			if (line.length == 1 && line[0] instanceof Scanned) {
+				result = scanner.processLine(((Scanned) line[0]).line);
+			} else {
+				out.setLength(0);
+				render(line, out, resolver, stats);
+				result = out;
+			}
+			if (stats != null) stats.lap(Phase.SUBSTITUTE);
+			writer.append(result);
+			writer.write(TERMINATORS[terminators[i]]);
+			if (stats != null) stats.lap(Phase.WRITE);
+		}
+		if (stats != null) stats.skipped += skipped;
+		return lines.length;
+	}
+
+	private static void render(Node[] nodes, StringBuilder out, Function<String, String> resolver, FileStats stats)
+			throws RequiredEnvironmentVariableException {
+		for (Node node : nodes) {
+			if (node instanceof Literal) {
+				out.append(((Literal) node).text);
+			} else {
+				Expression expression = (Expression) node;
+				int start = out.length();
+				if (expression.defaultValue != null) {
+					// inner expressions are resolved first, as the scanner does
+					render(expression.defaultValue, out, resolver, stats);
+				}
+				String value = resolver.apply(expression.key);
+				if (value != null) {
+					out.setLength(start);
+					int escapes = ExpressionScanner.appendUnescaped(out, value);
+					if (stats != null) {
+						stats.placeholders++;
+						stats.escapes += escapes;
+					}
+				} else if (expression.defaultValue == null) {
+					throw new RequiredEnvironmentVariableException(expression.key);
+				} else if (stats != null) {
+					stats.defaults++;
+					stats.escapes += expression.escapes;
+				}
+				if (expression.escaped) {
+					ExpressionScanner.escapeEndChars(out, start);
+				}
+			}
+		}
+	}
+
+	interface Node {
+	}
+
+	/**
+	 * Text copied as it is
+	 */
+	static final class Literal implements Node {
+		final String text;
+
+		Literal(String text) {
+			this.text = text;
+		}
+	}
+
+	/**
+	 * Expression to be replaced, the default value is null when the expression
+	 * is required. Escaped expressions are kept in the default value of a
+	 * filtered expression, the end chars of their result are escaped.
+	 */
+	static final class Expression implements Node {
+		final String key;
+		final Node[] defaultValue;
+		/**
+		 * Escaped end chars of the default value as it is written
+		 */
+		final int escapes;
+		final boolean escaped;
+
+		Expression(String key, Node[] defaultValue, int escapes) {
+			this(key, defaultValue, escapes, false);
+		}
+
+		Expression(String key, Node[] defaultValue, int escapes, boolean escaped) {
+			this.key = key;
+			this.defaultValue = defaultValue;
+			this.escapes = escapes;
+			this.escaped = escaped;
+		}
+	}
+
+	/**
+	 * Line that depends on the values of its expressions to be parsed, it is
+	 * processed by the scanner on every render
+	 */
+	static final class Scanned implements Node {
+		final String line;
+
+		Scanned(String line) {
+			this.line = line;
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.arielcarrera.env.var.replacer.Template.Expression;
+import com.github.arielcarrera.env.var.replacer.Template.Literal;
+import com.github.arielcarrera.env.var.replacer.Template.Node;
+import com.github.arielcarrera.env.var.replacer.Template.Scanned;
+
+/**
+ * Cache of compiled templates. Files are compiled once and rendered from the
+ * cache while their modification time and size do not change.
+ * <p>
+ * Templates are kept in memory up to a maximum number of entries, the least
+ * recently used ones are evicted first. If a directory is configured compiled
+ * templates are also stored there, so they can be reused by other processes.
+ * <p>
+ * Instances are thread-safe and can be shared between replacers.
+ */
+public final class TemplateCache {
+
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+
+	private static final int MAGIC = 0x45565254;
+	private static final int VERSION = 4;
+	private static final byte NODE_LITERAL = 0;
+	private static final byte NODE_EXPRESSION = 1;
+	private static final byte NODE_SCANNED = 2;
+
+	private final int maxEntries;
+	private final Path directory;
+	private final Map<String, Entry> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxEntries maximum number of templates kept in memory
+	 */
+	public TemplateCache(int maxEntries) {
+		this(maxEntries, null);
+	}
+
+	/**
+	 * @param maxEntries maximum number of templates kept in memory and in the
+	 *                   directory
+	 * @param directory  directory where compiled templates are stored, null to
+	 *                   keep them only in memory
+	 */
+	public TemplateCache(int maxEntries, Path directory) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("Invalid cache size: " + maxEntries);
+		this.maxEntries = maxEntries;
+		this.directory = directory;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, TemplateCache.Entry> eldest) {
+				if (size() > TemplateCache.this.maxEntries) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Template cache - hits: " + getHits() + ", misses: " + getMisses() + ", evictions: " + getEvictions();
+	}
+
+	/**
+	 * Returns the compiled template of a file, compiling it if it is not cached
+	 * or it was modified.
+	 *
+	 * @param file      file to compile
+	 * @param filterKey filter used by the compiler, templates compiled with
+	 *                  different filters are cached separately
+	 * @param charset   charset of the file if it has no byte order mark
+	 * @param compiler  compiler to use on a miss
+	 * @param log       stream where hits and misses are printed, null to not
+	 *                  print them
+	 */
+	Template get(Path file, String filterKey, Charset charset, TemplateCompiler compiler, PrintStream log)
+			throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		long modified = attributes.lastModifiedTime().toMillis();
+		long size = attributes.size();
+		String key = file.toAbsolutePath().normalize().toString() + "|" + filterKey + "|" + charset.name();
+
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		if (entry != null && entry.modified == modified && entry.size == size) {
+			hits.incrementAndGet();
+			if (log != null) log.println("Template cache hit: " + file);
+			return entry.template;
+		}
+
+		Template template = directory != null ? load(key, modified, size) : null;
+		if (template != null) {
+			hits.incrementAndGet();
+			if (log != null) log.println("Template cache hit: " + file + " (" + directory + ")");
+		} else {
+			misses.incrementAndGet();
+			if (log != null) log.println("Template cache miss: " + file);
+			try (InputStream in = Files.newInputStream(file)) {
+				template = compiler.compile(in, charset);
+			}
+			if (directory != null) {
+				store(key, modified, size, template, log);
+			}
+		}
+		synchronized (entries) {
+			entries.put(key, new Entry(modified, size, template));
+		}
+		return template;
+	}
+
+	private Template load(String key, long modified, long size) {
+		Path path = directory.resolve(fileName(key));
+		if (!Files.isReadable(path)) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			// lengths can not be greater than the file, it is checked to detect corrupted files
+			long limit = Files.size(path);
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(readString(in, limit))
+					|| in.readLong() != modified || in.readLong() != size) {
+				return null;
+			}
+			byte bomCode = in.readByte();
+			Bom bom = bomCode >= 0 && bomCode < Bom.values().length ? Bom.values()[bomCode] : null;
+			int skipped = in.readInt();
+			Node[][] lines = new Node[readLength(in, limit)][];
+			byte[] terminators = new byte[lines.length];
+			for (int i = 0; i < lines.length; i++) {
+				terminators[i] = in.readByte();
+				if (terminators[i] < 0 || terminators[i] >= Template.TERMINATORS.length) {
+					return null;
+				}
+				lines[i] = readNodes(in, limit);
+			}
+			// recently used files are the last ones to be evicted
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+			return new Template(lines, terminators, bom, skipped);
+		} catch (IOException e) {
+			// invalid cache file, it is compiled again
+			return null;
+		}
+	}
+
+	private void store(String key, long modified, long size, Template template, PrintStream log) {
+		try {
+			Files.createDirectories(directory);
+			Path path = directory.resolve(fileName(key));
+			Path tmp = Files.createTempFile(directory, "template", ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				writeString(out, key);
+				out.writeLong(modified);
+				out.writeLong(size);
+				out.writeByte(template.getBom() != null ? template.getBom().ordinal() : -1);
+				out.writeInt(template.getSkipped());
+				out.writeInt(template.getLines().length);
+				for (int i = 0; i < template.getLines().length; i++) {
+					out.writeByte(template.getTerminators()[i]);
+					writeNodes(out, template.getLines()[i]);
+				}
+			}
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+			evictFiles();
+		} catch (IOException e) {
+			// the template is still cached in memory
+			if (log != null) log.println("Template cache - Error writing to directory: " + directory);
+		}
+	}
+
+	private void evictFiles() throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.tpl")) {
+			for (Path path : stream) {
+				files.add(path);
+			}
+		}
+		if (files.size() <= maxEntries) {
+			return;
+		}
+		List<FileTime> times = new ArrayList<FileTime>(files.size());
+		for (Path path : files) {
+			times.add(Files.getLastModifiedTime(path));
+		}
+		List<Integer> order = new ArrayList<Integer>(files.size());
+		for (int i = 0; i < files.size(); i++) {
+			order.add(i);
+		}
+		order.sort((a, b) -> times.get(a).compareTo(times.get(b)));
+		for (int i = 0; i < files.size() - maxEntries; i++) {
+			if (Files.deleteIfExists(files.get(order.get(i)))) {
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private static String fileName(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(digest.length * 2 + 4);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.append(".tpl").toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeNodes(DataOutputStream out, Node[] nodes) throws IOException {
+		out.writeInt(nodes.length);
+		for (Node node : nodes) {
+			if (node instanceof Literal) {
+				out.writeByte(NODE_LITERAL);
+				writeString(out, ((Literal) node).text);
+			} else if (node instanceof Expression) {
+				Expression expression = (Expression) node;
+				out.writeByte(NODE_EXPRESSION);
+				writeString(out, expression.key);
+				out.writeInt(expression.escapes);
+				out.writeBoolean(expression.escaped);
+				out.writeBoolean(expression.defaultValue != null);
+				if (expression.defaultValue != null) {
+					writeNodes(out, expression.defaultValue);
+				}
+			} else {
+				out.writeByte(NODE_SCANNED);
+				writeString(out, ((Scanned) node).line);
+			}
+		}
+	}
+
+	private static Node[] readNodes(DataInputStream in, long limit) throws IOException {
+		Node[] nodes = new Node[readLength(in, limit)];
+		for (int i = 0; i < nodes.length; i++) {
+			byte type = in.readByte();
+			switch (type) {
+			case NODE_LITERAL:
+				nodes[i] = new Literal(readString(in, limit));
+				break;
+			case NODE_EXPRESSION:
+				String key = readString(in, limit);
+				int escapes = in.readInt();
+				boolean escaped = in.readBoolean();
+				nodes[i] = new Expression(key, in.readBoolean() ? readNodes(in, limit) : null, escapes, escaped);
+				break;
+			case NODE_SCANNED:
+				nodes[i] = new Scanned(readString(in, limit));
+				break;
+			default:
+				throw new IOException("Invalid node type: " + type);
+			}
+		}
+		return nodes;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static int readLength(DataInputStream in, long limit) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || length > limit)
+			throw new IOException("Invalid length: " + length);
+		return length;
+	}
+
+	private static String readString(DataInputStream in, long limit) throws IOException {
+		byte[] bytes = new byte[readLength(in, limit)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static final class Entry {
+		final long modified;
+		final long size;
+		final Template template;
+
+		Entry(long modified, long size, Template template) {
+			this.modified = modified;
+			this.size = size;
+			this.template = template;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import com.github.arielcarrera.env.var.replacer.Template.Expression;
+import com.github.arielcarrera.env.var.replacer.Template.Literal;
+import com.github.arielcarrera.env.var.replacer.Template.Node;
+import com.github.arielcarrera.env.var.replacer.Template.Scanned;
+
+/**
+ * Compiles files into {@link Template}s. It follows the same rules as
+ * {@link ExpressionScanner}, filtered expressions are compiled as literal text.
+ * <p>
+ * A line with an expression inside a key can only be parsed once its values are
+ * known, so it is compiled as a line to be scanned on every render.
+ */
+final class TemplateCompiler {
+
+	private final Predicate<String> filter;
+
+	/**
+	 * @param filter keys to be replaced, null to replace all keys
+	 */
+	TemplateCompiler(Predicate<String> filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Compiles a file read from a stream, the stream is not closed. A byte order
+	 * mark selects the charset of the file, see {@link Bom}.
+	 *
+	 * @param charset charset of the file if it has no byte order mark
+	 */
+	Template compile(InputStream in, Charset charset) throws IOException {
+		PushbackInputStream pushback = new PushbackInputStream(in, Bom.MAX_LENGTH);
+		Bom bom = Bom.read(pushback);
+		return compile(new InputStreamReader(pushback, Bom.charset(bom, charset)), bom);
+	}
+
+	/**
+	 * @param bom byte order mark read before the text, null if there is no mark
+	 */
+	Template compile(Reader reader, Bom bom) throws IOException {
+		LineReader lineReader = new LineReader(reader);
+		List<Node[]> lines = new ArrayList<Node[]>();
+		byte[] terminators = new byte[64];
+		int skipped = 0;
+		String line = lineReader.readLine();
+		while (line != null) {
+			if (lines.size() == terminators.length) {
+				terminators = Arrays.copyOf(terminators, terminators.length * 2);
+			}
+			terminators[lines.size()] = Template.terminatorCode(lineReader.getTerminator());
+			NodeList top = new NodeList();
+			if (compileLine(line, top)) {
+				lines.add(top.toArray());
+				skipped += top.skipped;
+			} else {
+				// the key depends on the values of the inner expressions
+				lines.add(new Node[] { new Scanned(line) });
+			}
+			line = lineReader.readLine();
+		}
+		return new Template(lines.toArray(new Node[lines.size()][]), Arrays.copyOf(terminators, lines.size()), bom, skipped);
+	}
+
+	/**
+	 * @param top nodes of the line, the skipped regions are counted in it
+	 * @return false if the line has to be scanned on every render
+	 */
+	private boolean compileLine(String line, NodeList top) {
+		List<Frame> frames = new ArrayList<Frame>();
+		final int length = line.length();
+		int i = 0;
+		while (i < length) {
+			if (frames.isEmpty()) {
+				int next = line.indexOf("${", i);
+				if (next < 0) {
+					top.literal(line, i, length);
+					break;
+				}
+				top.literal(line, i, next);
+				frames.add(new Frame());
+				i = next + 2;
+				continue;
+			}
+			Frame frame = frames.get(frames.size() - 1);
+			char c = line.charAt(i);
+			if (c == '$' && i + 1 < length && line.charAt(i + 1) == '{') {
+				if (!frame.hasDefault) {
+					return false;
+				}
+				frames.add(new Frame());
+				i += 2;
+				continue;
+			}
+			if (!frame.hasDefault) {
+				if (c == '}') {
+					close(frames, top);
+				} else if (c == ':') {
+					frame.hasDefault = true;
+				} else if (ExpressionScanner.isKeyChar(c)) {
+					frame.key.append(c);
+				} else {
+					// invalid key, pending expressions remain as they are
+					abandon(frames, top);
+					top.literal(c);
+				}
+			} else if (c == '}') {
+				if (line.charAt(i - 1) == '\\') {
+					frame.raw.literal(c);
+					frame.value.replaceLast(c);
+					frame.escapes++;
+				} else {
+					close(frames, top);
+				}
+			} else {
+				frame.raw.literal(c);
+				frame.value.literal(c);
+			}
+			i++;
+		}
+		// unterminated expressions remain as they are
+		abandon(frames, top);
+		return true;
+	}
+
+	private void close(List<Frame> frames, NodeList top) {
+		Frame frame = frames.remove(frames.size() - 1);
+		Frame parent = frames.isEmpty() ? null : frames.get(frames.size() - 1);
+		String key = frame.key.toString();
+		if (filter != null && !filter.test(key)) {
+			// skipped region, the results of its inner expressions are escaped
+			top.skipped++;
+			NodeList raw = frame.rawForm(true);
+			raw.literal('}');
+			if (parent == null) {
+				top.append(raw);
+			} else {
+				parent.raw.append(raw);
+				parent.value.append(raw);
+			}
+			return;
+		}
+		Expression expression = new Expression(key, frame.hasDefault ? frame.value.toArray() : null, frame.escapes);
+		if (parent == null) {
+			top.node(expression);
+		} else {
+			parent.raw.node(expression);
+			parent.value.node(expression);
+		}
+	}
+
+	private static void abandon(List<Frame> frames, NodeList top) {
+		for (Frame frame : frames) {
+			top.append(frame.rawForm(false));
+		}
+		frames.clear();
+	}
+
+	/**
+	 * Open expression. The default value is kept as it is written, to be used if
+	 * the expression is not replaced, and with its end chars unescaped.
+	 */
+	private static final class Frame {
+		final StringBuilder key = new StringBuilder();
+		final NodeList raw = new NodeList();
+		final NodeList value = new NodeList();
+		boolean hasDefault;
+		/**
+		 * Escaped end chars of the default value
+		 */
+		int escapes;
+
+		NodeList rawForm(boolean escaped) {
+			NodeList nodes = new NodeList();
+			nodes.literal("${", 0, 2);
+			nodes.literal(key, 0, key.length());
+			if (hasDefault) {
+				nodes.literal(':');
+			}
+			nodes.append(raw, escaped);
+			return nodes;
+		}
+	}
+
+	/**
+	 * List of nodes that merges adjacent literal text
+	 */
+	private static final class NodeList {
+		final List<Node> nodes = new ArrayList<Node>();
+		final StringBuilder literal = new StringBuilder();
+		/**
+		 * Skipped regions of a line, counted in its top list
+		 */
+		int skipped;
+
+		void literal(char c) {
+			literal.append(c);
+		}
+
+		void literal(CharSequence s, int start, int end) {
+			literal.append(s, start, end);
+		}
+
+		void replaceLast(char c) {
+			literal.setCharAt(literal.length() - 1, c);
+		}
+
+		void node(Node node) {
+			flush();
+			nodes.add(node);
+		}
+
+		void append(NodeList other) {
+			append(other, false);
+		}
+
+		/**
+		 * @param escaped true to escape the results of the expressions
+		 */
+		void append(NodeList other, boolean escaped) {
+			for (Node node : other.nodes) {
+				if (node instanceof Literal) {
+					literal.append(((Literal) node).text);
+				} else if (escaped && node instanceof Expression) {
+					Expression expression = (Expression) node;
+					node(new Expression(expression.key, expression.defaultValue, expression.escapes, true));
+				} else {
+					node(node);
+				}
+			}
+			literal.append(other.literal);
+		}
+
+		Node[] toArray() {
+			flush();
+			return nodes.toArray(new Node[nodes.size()]);
+		}
+
+		private void flush() {
+			if (literal.length() > 0) {
+				nodes.add(new Literal(literal.toString()));
+				literal.setLength(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.github.arielcarrera.env.var.replacer.Replacer.Prepared;
+import com.github.arielcarrera.env.var.replacer.UsageIndex.Usage;
+
+/**
+ * Replaces a set of files in two phases, so no file is modified if any of them
+ * fails to be rendered:
+ * <ol>
+ * <li>{@link #prepare(Path)} writes the result of each file to a temporal file,
+ * outputs are not modified. Every file can be prepared to find all the errors
+ * before failing.</li>
+ * <li>{@link #commit()} creates the backups and moves the temporal files to the
+ * outputs if no file failed, otherwise {@link #rollback()} deletes them.</li>
+ * </ol>
+ * Files can be prepared from several threads. The second phase only creates
+ * backups and renames files, each output keeps its previous content or gets
+ * the new one as a whole. Renames can not be undone, so if a file can not be
+ * renamed the files renamed before it keep their new content.
+ */
+public final class Transaction {
+
+	private final Replacer replacer;
+	private final Queue<Prepared> prepared = new ConcurrentLinkedQueue<Prepared>();
+
+	public Transaction(Replacer replacer) {
+		this.replacer = replacer;
+	}
+
+	/**
+	 * Writes the result of a file to a temporal file for each output configured
+	 * for the file, or for the file itself.
+	 *
+	 * @param path file to process
+	 * @throws ReplacerException if the file can not be processed, a
+	 *                           {@link RequiredEnvironmentVariableException}
+	 *                           lists every missing variable of the file
+	 */
+	public void prepare(Path path) throws ReplacerException {
+		try {
+			prepared.addAll(replacer.prepareAll(path));
+		} catch (RequiredEnvironmentVariableException e) {
+			throw missingVariables(path, e);
+		}
+	}
+
+	/**
+	 * Writes the result of a file to a temporal file.
+	 *
+	 * @param input  file to process
+	 * @param output file to write when the transaction is committed
+	 * @throws ReplacerException if the file can not be processed, a
+	 *                           {@link RequiredEnvironmentVariableException}
+	 *                           lists every missing variable of the file
+	 */
+	public void prepare(Path input, Path output) throws ReplacerException {
+		try {
+			prepared.add(replacer.prepare(input, output));
+		} catch (RequiredEnvironmentVariableException e) {
+			throw missingVariables(input, e);
+		}
+	}
+
+	/**
+	 * Applies the prepared files. The backups of all the files are created
+	 * before any file is moved, no output is modified if a backup fails. If a
+	 * file can not be moved the remaining temporal files are deleted, the files
+	 * moved before keep their new content.
+	 *
+	 * @return results of the prepared files
+	 * @throws ReplacerException if a backup can not be created or a temporal file
+	 *                           can not be moved
+	 */
+	public List<ReplaceResult> commit() throws ReplacerException {
+		List<Prepared> files = new ArrayList<Prepared>(prepared.size());
+		Prepared next;
+		while ((next = prepared.poll()) != null) {
+			files.add(next);
+		}
+		return replacer.commit(files);
+	}
+
+	/**
+	 * Deletes the temporal files of the prepared files, outputs are not
+	 * modified.
+	 */
+	public void rollback() {
+		Prepared next;
+		while ((next = prepared.poll()) != null) {
+			replacer.discard(next);
+		}
+	}
+
+	/**
+	 * Scans the file to report all its missing variables, not only the first one
+	 */
+	private RequiredEnvironmentVariableException missingVariables(Path input, RequiredEnvironmentVariableException e) {
+		Set<String> missing = new LinkedHashSet<String>();
+		try {
+			for (Usage usage : replacer.scan(input)) {
+				if (usage.required && !usage.defined) {
+					missing.add(usage.key);
+				}
+			}
+		} catch (ReplacerException scanError) {
+			return e;
+		}
+		return missing.isEmpty() ? e : new RequiredEnvironmentVariableException(input, new ArrayList<String>(missing));
+	}
+}
@@ -0,0 +1,118 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Index of the keys used by a set of files, created by {@link Replacer#scan}
+ * without writing them.
+ */
+final class UsageIndex {
+
+	private final Map<String, List<Usage>> usages = new TreeMap<String, List<Usage>>();
+	private final Map<String, Boolean> defined = new TreeMap<String, Boolean>();
+	private int files;
+
+	/**
+	 * Adds the usages of a file, files must be added in order.
+	 */
+	void add(List<Usage> fileUsages) {
+		files++;
+		for (Usage usage : fileUsages) {
+			usages.computeIfAbsent(usage.key, k -> new ArrayList<Usage>()).add(usage);
+			defined.merge(usage.key, usage.defined, Boolean::logicalOr);
+		}
+	}
+
+	/**
+	 * @return keys without value that are used by an expression without default
+	 *         value
+	 */
+	List<String> getMissing() {
+		List<String> missing = new ArrayList<String>();
+		for (Map.Entry<String, List<Usage>> entry : usages.entrySet()) {
+			if (!defined.get(entry.getKey()) && isRequired(entry.getValue())) {
+				missing.add(entry.getKey());
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Writes the index as JSON. Keys are sorted, usages are sorted by file and
+	 * line.
+	 */
+	String toJson() {
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\n  \"files\": ").append(files).append(",\n  \"keys\": [");
+		boolean first = true;
+		for (Map.Entry<String, List<Usage>> entry : usages.entrySet()) {
+			sb.append(first ? "\n" : ",\n");
+			first = false;
+			sb.append("    {\"key\": ");
+			Json.quote(sb, entry.getKey());
+			sb.append(", \"defined\": ").append(defined.get(entry.getKey()));
+			sb.append(", \"required\": ").append(isRequired(entry.getValue()));
+			sb.append(", \"usages\": [");
+			for (int i = 0; i < entry.getValue().size(); i++) {
+				Usage usage = entry.getValue().get(i);
+				sb.append(i > 0 ? ", " : "").append("{\"file\": ");
+				Json.quote(sb, usage.file.toString());
+				sb.append(", \"line\": ").append(usage.line);
+				sb.append(", \"hasDefault\": ").append(usage.defaultValue != null);
+				sb.append(", \"default\": ");
+				Json.quote(sb, usage.defaultValue);
+				if (usage.composed) {
+					sb.append(", \"composed\": true");
+				}
+				sb.append('}');
+			}
+			sb.append("]}");
+		}
+		sb.append(first ? "" : "\n  ").append("],\n  \"missing\": [");
+		List<String> missing = getMissing();
+		for (int i = 0; i < missing.size(); i++) {
+			sb.append(i > 0 ? ", " : "");
+			Json.quote(sb, missing.get(i));
+		}
+		return sb.append("]\n}").toString();
+	}
+
+	private static boolean isRequired(List<Usage> usages) {
+		for (Usage usage : usages) {
+			if (usage.required) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Expression found in a file
+	 */
+	static final class Usage {
+		final String key;
+		final Path file;
+		final long line;
+		final boolean required;
+		final String defaultValue;
+		final boolean defined;
+		/**
+		 * The key is composed by other expressions, it was found resolving them
+		 */
+		final boolean composed;
+
+		Usage(String key, Path file, long line, boolean required, String defaultValue, boolean defined, boolean composed) {
+			this.key = key;
+			this.file = file;
+			this.line = line;
+			this.required = required;
+			this.defaultValue = defaultValue;
+			this.defined = defined;
+			this.composed = composed;
+		}
+	}
+}
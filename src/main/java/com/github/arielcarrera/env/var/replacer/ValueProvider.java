@@ -0,0 +1,32 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+
+/**
+ * Provider of {@link ValueSource}s that read values from an external location,
+ * like a directory of secrets or a file of values. Providers are registered by
+ * name in {@link ValueProviders} and selected in the command line with
+ * --values NAME:LOCATION.
+ * <p>
+ * Sources should read values lazily, when their keys are requested, and report
+ * errors reading them with an {@link java.io.UncheckedIOException}. Providers
+ * are registered in code, not discovered with reflection, so they can be used
+ * in native images.
+ */
+public interface ValueProvider {
+
+	/**
+	 * @return name of the provider in the command line, like "dir"
+	 */
+	String getName();
+
+	/**
+	 * Creates a source of values. The location is checked, values are read when
+	 * they are requested.
+	 *
+	 * @param location location of the values, like a path
+	 * @return source of the values
+	 * @throws IOException if the location does not exist or can not be read
+	 */
+	ValueSource open(String location) throws IOException;
+}
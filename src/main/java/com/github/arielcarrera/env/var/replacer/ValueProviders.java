@@ -0,0 +1,267 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of {@link ValueProvider}s. The built-in providers are:
+ * <ul>
+ * <li><b>dir</b>: a directory with a file per key, like the secrets mounted by
+ * Docker or Kubernetes in /run/secrets. The value is the content of the file
+ * read as UTF-8 without its final line terminator.</li>
+ * <li><b>dotenv</b>: a .env file of KEY=VALUE lines</li>
+ * <li><b>json</b>: a JSON object of keys to scalar values</li>
+ * <li><b>yaml</b>: a YAML mapping of keys to scalar values</li>
+ * </ul>
+ * Files of values are read and parsed when the first key is requested and the
+ * files of a directory when their keys are requested. Values, and keys that are
+ * not defined, are kept in a bounded cache.
+ */
+public final class ValueProviders {
+
+	/**
+	 * Entries of the cache of each source
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+
+	private static final ConcurrentMap<String, ValueProvider> PROVIDERS = new ConcurrentHashMap<String, ValueProvider>();
+
+	static {
+		register(provider("dir", location -> new DirectorySource(directory(location))));
+		register(provider("dotenv", location -> new FileSource(file(location),
+				(file, text) -> FlatMapParser.parseDotEnv(file, lines(text)))));
+		register(provider("json", location -> new FileSource(file(location), FlatMapParser::parseJson)));
+		register(provider("yaml", location -> new FileSource(file(location),
+				(file, text) -> FlatMapParser.parseYaml(file, lines(text)))));
+	}
+
+	private ValueProviders() {
+	}
+
+	/**
+	 * Registers a provider, it replaces a previous provider with the same name
+	 */
+	public static void register(ValueProvider provider) {
+		PROVIDERS.put(provider.getName(), provider);
+	}
+
+	/**
+	 * @return the provider or null if there is no provider with that name
+	 */
+	public static ValueProvider get(String name) {
+		return PROVIDERS.get(name);
+	}
+
+	/**
+	 * @return names of the registered providers
+	 */
+	public static List<String> names() {
+		List<String> names = new ArrayList<String>(PROVIDERS.keySet());
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * Opens a source of values from a NAME:LOCATION specification, like
+	 * dir:/run/secrets. Its values are cached.
+	 *
+	 * @throws IllegalArgumentException if the specification is not valid or the
+	 *                                  provider does not exist
+	 * @throws IOException              if the location can not be read
+	 */
+	public static ValueSource open(String specification) throws IOException {
+		int colon = specification.indexOf(':');
+		if (colon <= 0 || colon == specification.length() - 1) {
+			throw new IllegalArgumentException("Invalid value provider: " + specification);
+		}
+		ValueProvider provider = get(specification.substring(0, colon));
+		if (provider == null) {
+			throw new IllegalArgumentException("Unknown value provider: " + specification.substring(0, colon)
+					+ " (available: " + String.join(", ", names()) + ")");
+		}
+		return cached(provider.open(specification.substring(colon + 1)), DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param source     source to cache
+	 * @param maxEntries max number of keys kept, the least recently used keys are
+	 *                   evicted first
+	 * @return a source that reads each key once while it is in the cache
+	 */
+	public static ValueSource cached(ValueSource source, int maxEntries) {
+		return new CachedSource(source, maxEntries);
+	}
+
+	private static ValueProvider provider(String name, Opener opener) {
+		return new ValueProvider() {
+			@Override
+			public String getName() {
+				return name;
+			}
+
+			@Override
+			public ValueSource open(String location) throws IOException {
+				return opener.open(location);
+			}
+		};
+	}
+
+	private static Path directory(String location) throws IOException {
+		Path path = Paths.get(location);
+		if (!Files.exists(path)) {
+			throw new NoSuchFileException(location);
+		}
+		if (!Files.isDirectory(path)) {
+			throw new NotDirectoryException(location);
+		}
+		return path;
+	}
+
+	private static Path file(String location) throws IOException {
+		Path path = Paths.get(location);
+		if (!Files.isRegularFile(path)) {
+			throw new NoSuchFileException(location);
+		}
+		return path;
+	}
+
+	private static List<String> lines(String text) {
+		return Arrays.asList(text.split("\r\n|\r|\n", -1));
+	}
+
+	@FunctionalInterface
+	private interface Opener {
+		ValueSource open(String location) throws IOException;
+	}
+
+	@FunctionalInterface
+	private interface Parser {
+		Map<String, String> parse(String file, String text) throws IOException;
+	}
+
+	/**
+	 * Reads the file named as a key from a directory
+	 */
+	private static final class DirectorySource implements ValueSource {
+		private final Path directory;
+
+		DirectorySource(Path directory) {
+			this.directory = directory;
+		}
+
+		@Override
+		public String getValue(String key) {
+			if (key.isEmpty() || key.equals(".") || key.equals("..")) {
+				return null;
+			}
+			Path file = directory.resolve(key);
+			if (!Files.isRegularFile(file)) {
+				return null;
+			}
+			try {
+				String value = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+				if (value.endsWith("\r\n")) {
+					return value.substring(0, value.length() - 2);
+				}
+				return value.endsWith("\n") ? value.substring(0, value.length() - 1) : value;
+			} catch (NoSuchFileException e) {
+				return null;
+			} catch (IOException e) {
+				throw new UncheckedIOException("Error reading values: " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Reads and parses a file of values when the first key is requested
+	 */
+	private static final class FileSource implements ValueSource {
+		private final Path file;
+		private final Parser parser;
+		private volatile Map<String, String> values;
+
+		FileSource(Path file, Parser parser) {
+			this.file = file;
+			this.parser = parser;
+		}
+
+		@Override
+		public String getValue(String key) {
+			Map<String, String> values = this.values;
+			if (values == null) {
+				values = load();
+			}
+			return values.get(key);
+		}
+
+		private synchronized Map<String, String> load() {
+			if (values == null) {
+				try {
+					String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+					// byte order mark
+					if (text.startsWith("\uFEFF")) {
+						text = text.substring(1);
+					}
+					values = parser.parse(file.toString(), text);
+				} catch (IOException e) {
+					throw new UncheckedIOException("Error reading values: " + e.getMessage(), e);
+				}
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * Least recently used keys are evicted first. Undefined keys are cached too.
+	 */
+	private static final class CachedSource implements ValueSource {
+		private static final String UNDEFINED = new String();
+
+		private final ValueSource source;
+		private final Map<String, String> cache;
+
+		CachedSource(ValueSource source, int maxEntries) {
+			if (maxEntries < 1)
+				throw new IllegalArgumentException("Invalid cache size: " + maxEntries);
+			this.source = source;
+			this.cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+					return size() > maxEntries;
+				}
+			};
+		}
+
+		@Override
+		public String getValue(String key) {
+			synchronized (cache) {
+				String value = cache.get(key);
+				if (value != null) {
+					return value != UNDEFINED ? value : null;
+				}
+			}
+			// read outside the lock, a key can be read twice by concurrent readers
+			String value = source.getValue(key);
+			synchronized (cache) {
+				cache.put(key, value != null ? value : UNDEFINED);
+			}
+			return value;
+		}
+	}
+}
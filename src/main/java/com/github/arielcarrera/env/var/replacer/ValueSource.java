@@ -0,0 +1,96 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Source of the values of the expressions.
+ * <p>
+ * {@link Replacer} reads the value of each key once and reuses it for every
+ * file, sources that are snapshots also keep the values consistent for other
+ * readers.
+ * <p>
+ * Sources that read external locations lazily, like the ones of
+ * {@link ValueProvider}s, can throw an {@link java.io.UncheckedIOException} if
+ * a value can not be read. Replacers report it as a {@link ReplacerException}.
+ */
+@FunctionalInterface
+public interface ValueSource {
+
+	/**
+	 * @param key name of the variable
+	 * @return value of the variable or null if it is not defined
+	 */
+	String getValue(String key);
+
+	/**
+	 * @return a source that reads environment variables, they can not change
+	 *         while the process is running
+	 */
+	static ValueSource environment() {
+		return System::getenv;
+	}
+
+	/**
+	 * @param properties properties to read, including their defaults
+	 * @return a snapshot of the properties, later changes are not visible
+	 */
+	static ValueSource properties(Properties properties) {
+		Map<String, String> values = new HashMap<String, String>();
+		for (String key : properties.stringPropertyNames()) {
+			values.put(key, properties.getProperty(key));
+		}
+		return snapshot(values);
+	}
+
+	/**
+	 * @param values values by key
+	 * @return a snapshot of the values, later changes are not visible
+	 */
+	static ValueSource snapshot(Map<String, String> values) {
+		return Collections.unmodifiableMap(new HashMap<String, String>(values))::get;
+	}
+
+	/**
+	 * Merges layers of values into a single snapshot, a key is read from the
+	 * first layer that defines it.
+	 *
+	 * @param layers values by key, in order of precedence
+	 * @return a snapshot of the merged values, later changes are not visible
+	 */
+	static ValueSource layered(List<? extends Map<String, String>> layers) {
+		int size = 0;
+		for (Map<String, String> layer : layers) {
+			size += layer.size();
+		}
+		Map<String, String> values = new HashMap<String, String>(size * 4 / 3 + 1);
+		for (ListIterator<? extends Map<String, String>> it = layers.listIterator(layers.size()); it.hasPrevious();) {
+			values.putAll(it.previous());
+		}
+		return Collections.unmodifiableMap(values)::get;
+	}
+
+	/**
+	 * Chains sources, a key is read from the first source that defines it. Later
+	 * sources are only read for the keys that previous sources do not define.
+	 *
+	 * @param sources sources in order of precedence
+	 */
+	static ValueSource chain(List<? extends ValueSource> sources) {
+		List<ValueSource> chain = new ArrayList<ValueSource>(sources);
+		return key -> {
+			for (ValueSource source : chain) {
+				String value = source.getValue(key);
+				if (value != null) {
+					return value;
+				}
+			}
+			return null;
+		};
+	}
+}
@@ -0,0 +1,318 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FilenameUtils;
+
+import com.github.arielcarrera.env.var.replacer.PathExpander.Target;
+
+/**
+ * Watches templates, properties files and configuration files, rendering again
+ * the templates affected by their changes:
+ * <ul>
+ * <li>a modified template is rendered again</li>
+ * <li>a modified properties file renders the templates that use the keys whose
+ * values changed</li>
+ * <li>a modified configuration file renders the targets that were added to
+ * it</li>
+ * </ul>
+ * Events are batched until no event is received during the delay, every
+ * affected template is rendered once per batch. Errors are reported and
+ * watching continues.
+ * <p>
+ * Templates replaced in place lose their expressions with the first
+ * replacement, watch mode is meant for input:output targets. Backups are not
+ * created when templates are rendered again. Properties files of outputs
+ * (input:output@values.properties) are read when targets are resolved, they
+ * are not watched.
+ */
+final class WatchMode {
+
+	static final long DEFAULT_DELAY = 250;
+
+	private final ReplacerConfig.Builder builder;
+	private final Map<String, String> overrides;
+	private final List<ValueSource> providers;
+	private final List<Path> propertiesFiles;
+	private final List<String> paths;
+	private final List<Path> configFiles;
+	private final long delay;
+	private final boolean debug;
+	private final PrintStream log;
+
+	private final Map<Path, Map<String, String>> properties = new HashMap<Path, Map<String, String>>();
+	private final Map<Path, List<String>> configs = new HashMap<Path, List<String>>();
+	/**
+	 * Targets by absolute path, the value is the path used in the configuration
+	 */
+	private Map<Path, Path> targets = new LinkedHashMap<Path, Path>();
+	/**
+	 * Keys used by each target, null if it can use any key
+	 */
+	private final Map<Path, Set<String>> dependencies = new HashMap<Path, Set<String>>();
+	private final Set<Path> directories = new HashSet<Path>();
+	private ValueSource values;
+	private Replacer replacer;
+	private volatile boolean watching;
+
+	/**
+	 * @param builder         configuration of the replacements, it is used to
+	 *                        build a new replacer when values change
+	 * @param overrides       values defined in the command line
+	 * @param providers       sources of values opened from the command line,
+	 *                        their values are cached and not read again
+	 * @param propertiesFiles properties files, later files override previous ones
+	 * @param paths           targets defined in the command line
+	 * @param configFiles     files with a target by line
+	 * @param delay           milliseconds without events to process a batch
+	 */
+	WatchMode(ReplacerConfig.Builder builder, Map<String, String> overrides, List<ValueSource> providers,
+			List<String> propertiesFiles, List<String> paths, List<String> configFiles, long delay) {
+		// backups are created and reported by the first replacement only
+		this.builder = builder.backupMode(BackupMode.NONE).report(null);
+		this.overrides = overrides;
+		this.providers = providers;
+		this.propertiesFiles = toPaths(propertiesFiles);
+		this.paths = paths;
+		this.configFiles = toPaths(configFiles);
+		this.delay = delay;
+		ReplacerConfig config = builder.build();
+		this.debug = config.isDebugEnabled();
+		this.log = config.getLog();
+	}
+
+	/**
+	 * @return true once the files are being watched
+	 */
+	boolean isWatching() {
+		return watching;
+	}
+
+	/**
+	 * Watches the files until the thread is interrupted.
+	 */
+	void run() throws IOException {
+		try (WatchService service = FileSystems.getDefault().newWatchService()) {
+			for (Path path : propertiesFiles) {
+				properties.put(path, readProperties(path, null));
+			}
+			for (Path path : configFiles) {
+				configs.put(path, readConfigFile(path, null));
+			}
+			values = EnvVarReplacer.layeredValueSource(overrides, providers, orderedProperties());
+			targets = resolveTargets();
+			replacer = new Replacer(builder.valueSource(values).build());
+			for (Path target : targets.keySet()) {
+				index(target);
+			}
+			register(service);
+			watching = true;
+			if (debug) log.println("Watch - Watching " + targets.size() + " targets");
+			while (!Thread.currentThread().isInterrupted()) {
+				Set<Path> changed = new HashSet<Path>();
+				WatchKey key = service.take();
+				boolean overflow = collect(key, changed);
+				while ((key = service.poll(delay, TimeUnit.MILLISECONDS)) != null) {
+					overflow |= collect(key, changed);
+				}
+				process(changed, overflow);
+				register(service);
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			watching = false;
+		}
+	}
+
+	private void process(Set<Path> changed, boolean overflow) {
+		Set<Path> render = new LinkedHashSet<Path>();
+
+		boolean configChanged = overflow;
+		for (Path path : configFiles) {
+			if (overflow || changed.contains(path)) {
+				List<String> lines = readConfigFile(path, configs.get(path));
+				configChanged |= !lines.equals(configs.get(path));
+				configs.put(path, lines);
+			}
+		}
+		if (configChanged) {
+			Map<Path, Path> resolved = resolveTargets();
+			for (Path target : resolved.keySet()) {
+				if (!targets.containsKey(target)) {
+					render.add(target);
+				}
+			}
+			dependencies.keySet().retainAll(resolved.keySet());
+			targets = resolved;
+		}
+
+		Set<String> changedKeys = new HashSet<String>();
+		for (Path path : propertiesFiles) {
+			if (overflow || changed.contains(path)) {
+				Map<String, String> previous = properties.get(path);
+				Map<String, String> current = readProperties(path, previous);
+				properties.put(path, current);
+				changedKeys.addAll(previous.keySet());
+				changedKeys.addAll(current.keySet());
+			}
+		}
+		if (!changedKeys.isEmpty() || configChanged) {
+			ValueSource previous = values;
+			values = EnvVarReplacer.layeredValueSource(overrides, providers, orderedProperties());
+			changedKeys.removeIf(key -> Objects.equals(previous.getValue(key), values.getValue(key)));
+			// outputs of new targets are added to the builder when they are resolved
+			replacer = new Replacer(builder.valueSource(values).build());
+			if (debug && !changedKeys.isEmpty()) log.println("Watch - Changed keys: " + changedKeys);
+		}
+
+		for (Path target : targets.keySet()) {
+			if (overflow || changed.contains(target)) {
+				render.add(target);
+			} else if (!changedKeys.isEmpty()) {
+				Set<String> keys = dependencies.get(target);
+				if (keys == null || !Collections.disjoint(keys, changedKeys)) {
+					render.add(target);
+				}
+			}
+		}
+		for (Path target : render) {
+			index(target);
+			try {
+				if (debug) log.println("Watch - Rendering: " + targets.get(target));
+				replacer.replace(targets.get(target));
+			} catch (ReplacerException e) {
+				System.err.println(e.getMessage());
+			}
+		}
+	}
+
+	private void index(Path target) {
+		try {
+			dependencies.put(target, replacer.dependencies(targets.get(target)));
+		} catch (ReplacerException e) {
+			// it is rendered on any change until it can be read
+			dependencies.put(target, null);
+			System.err.println(e.getMessage());
+		}
+	}
+
+	private boolean collect(WatchKey key, Set<Path> changed) {
+		boolean overflow = false;
+		Path directory = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				overflow = true;
+			} else {
+				changed.add(directory.resolve((Path) event.context()).toAbsolutePath().normalize());
+			}
+		}
+		if (!key.reset()) {
+			directories.remove(directory);
+		}
+		return overflow;
+	}
+
+	private void register(WatchService service) throws IOException {
+		Set<Path> files = new HashSet<Path>(targets.keySet());
+		files.addAll(propertiesFiles);
+		files.addAll(configFiles);
+		for (Path file : files) {
+			Path directory = file.getParent();
+			if (directory != null && Files.isDirectory(directory) && directories.add(directory)) {
+				directory.register(service, ENTRY_CREATE, ENTRY_MODIFY);
+			}
+		}
+	}
+
+	private Map<Path, Path> resolveTargets() {
+		List<String> all = new ArrayList<String>(paths);
+		for (Path path : configFiles) {
+			all.addAll(configs.get(path));
+		}
+		Map<Path, Path> resolved = new LinkedHashMap<Path, Path>();
+		for (String path : all) {
+			if (path.isEmpty() || path.equals(EnvVarReplacer.STREAM_PATH)) {
+				continue;
+			}
+			// entries are expanded one by one, so an invalid entry does not stop the others
+			try {
+				for (Target target : PathExpander.expand(Collections.singletonList(path))) {
+					// files of values of outputs are read when targets are resolved, the values of the run when they are used
+					ValueSource outputValues = target.values != null ? EnvVarReplacer.outputValueSource(overrides,
+							EnvVarReplacer.readOutputValues(target.values), key -> values.getValue(key)) : null;
+					builder.addOutput(target.input, target.output != null ? target.output : target.input, outputValues);
+					resolved.putIfAbsent(target.input.toAbsolutePath().normalize(), target.input);
+				}
+			} catch (ReplacerException e) {
+				System.err.println("Watch - " + e.getMessage());
+			}
+		}
+		return resolved;
+	}
+
+	private List<Map<String, String>> orderedProperties() {
+		List<Map<String, String>> layers = new ArrayList<Map<String, String>>(propertiesFiles.size());
+		for (Path path : propertiesFiles) {
+			layers.add(properties.get(path));
+		}
+		return layers;
+	}
+
+	/**
+	 * @return values of the file, or the previous ones if it can not be read
+	 */
+	private Map<String, String> readProperties(Path path, Map<String, String> previous) {
+		try {
+			return EnvVarReplacer.readProperties(path.toString());
+		} catch (IOException e) {
+			System.err.println("Watch - Error reading properties file: " + path);
+			return previous != null ? previous : new HashMap<String, String>();
+		}
+	}
+
+	/**
+	 * @return lines of the file, or the previous ones if it can not be read
+	 */
+	private List<String> readConfigFile(Path path, List<String> previous) {
+		try {
+			return Files.readAllLines(path, Charset.defaultCharset());
+		} catch (IOException e) {
+			System.err.println("Watch - Error reading configuration file: " + path);
+			return previous != null ? previous : new ArrayList<String>();
+		}
+	}
+
+	private static List<Path> toPaths(List<String> paths) {
+		List<Path> result = new ArrayList<Path>(paths.size());
+		for (String path : paths) {
+			result.add(Paths.get(FilenameUtils.normalizeNoEndSeparator(path)).toAbsolutePath().normalize());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,243 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the startup and first-file latency of the JVM and native versions
+ * built by the same build, running each command as a new process:
+ * <ul>
+ * <li><i>startup</i>: an empty stdin is replaced (-), the time to start, parse
+ * the arguments and exit</li>
+ * <li><i>first-file</i>: test1-template.xml is written to a new file with the
+ * values of test.properties</li>
+ * <li><i>fixtures</i>: every template of the fixtures directory is written to
+ * a new file, every key is defined with -D</li>
+ * </ul>
+ * Runtimes are run alternately, so both of them see the same state of the
+ * machine, and outputs are deleted before each run so files are always
+ * written. The native version is skipped if its binary does not exist.
+ * <p>
+ * Arguments: JAR NATIVE_BINARY FIXTURES_DIR ITERATIONS WARMUP RESULT_FILE
+ */
+public final class StartupBenchmark {
+
+	private static final Pattern KEY = Pattern.compile("\\$\\{([A-Za-z0-9_.-]+)");
+
+	private final Path fixtures;
+	private final Path work;
+
+	private StartupBenchmark(Path fixtures, Path work) {
+		this.fixtures = fixtures;
+		this.work = work;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 6) {
+			System.err.println("Usage: StartupBenchmark JAR NATIVE_BINARY FIXTURES_DIR ITERATIONS WARMUP RESULT_FILE");
+			System.exit(1);
+		}
+		Path jar = Paths.get(args[0]).toAbsolutePath();
+		Path binary = Paths.get(args[1]).toAbsolutePath();
+		int iterations = Integer.parseInt(args[3]);
+		int warmup = Integer.parseInt(args[4]);
+		Path result = Paths.get(args[5]);
+
+		Map<String, List<String>> runtimes = new LinkedHashMap<String, List<String>>();
+		runtimes.put("jvm", Arrays.asList(Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-jar",
+				jar.toString()));
+		if (Files.isExecutable(binary)) {
+			runtimes.put("native", Collections.singletonList(binary.toString()));
+		} else {
+			System.err.println("Native binary not found, only the JVM version is measured: " + binary);
+		}
+
+		Path work = Files.createTempDirectory("startup-benchmark");
+		try {
+			StartupBenchmark benchmark = new StartupBenchmark(Paths.get(args[2]).toAbsolutePath(), work);
+			Map<String, List<String>> scenarios = benchmark.scenarios();
+			Map<String, Map<String, long[]>> times = new LinkedHashMap<String, Map<String, long[]>>();
+			for (Map.Entry<String, List<String>> scenario : scenarios.entrySet()) {
+				Map<String, long[]> byRuntime = new LinkedHashMap<String, long[]>();
+				for (String runtime : runtimes.keySet()) {
+					byRuntime.put(runtime, new long[iterations]);
+				}
+				for (int i = -warmup; i < iterations; i++) {
+					for (Map.Entry<String, List<String>> runtime : runtimes.entrySet()) {
+						long nanos = benchmark.run(runtime.getValue(), scenario.getValue());
+						if (i >= 0) {
+							byRuntime.get(runtime.getKey())[i] = nanos;
+						}
+					}
+				}
+				times.put(scenario.getKey(), byRuntime);
+			}
+			String json = toJson(iterations, warmup, times);
+			Files.write(result, json.getBytes(StandardCharsets.UTF_8));
+			System.out.println(summary(times));
+			System.out.println("Results written to " + result);
+		} finally {
+			deleteAll(work);
+		}
+	}
+
+	/**
+	 * @return arguments of each scenario
+	 */
+	private Map<String, List<String>> scenarios() throws IOException {
+		Map<String, List<String>> scenarios = new LinkedHashMap<String, List<String>>();
+		scenarios.put("startup", Collections.singletonList(EnvVarReplacer.STREAM_PATH));
+		scenarios.put("first-file", Arrays.asList(target("test1-template.xml"), "-p",
+				fixtures.resolve("test.properties").toString()));
+
+		List<String> targets = new ArrayList<String>();
+		Set<String> keys = new TreeSet<String>();
+		try (DirectoryStream<Path> templates = Files.newDirectoryStream(fixtures, "*-template.xml")) {
+			for (Path template : templates) {
+				targets.add(target(template.getFileName().toString()));
+				Matcher matcher = KEY.matcher(new String(Files.readAllBytes(template), StandardCharsets.UTF_8));
+				while (matcher.find()) {
+					keys.add(matcher.group(1));
+				}
+			}
+		}
+		Collections.sort(targets);
+		List<String> fixturesArgs = new ArrayList<String>();
+		fixturesArgs.add(String.join(",", targets));
+		for (String key : keys) {
+			fixturesArgs.add("-D" + key + "=" + key.toLowerCase(Locale.ROOT));
+		}
+		scenarios.put("fixtures", fixturesArgs);
+		return scenarios;
+	}
+
+	/**
+	 * @return input:output target that writes a template to the work directory
+	 */
+	private String target(String template) {
+		return fixtures.resolve(template) + ":" + work.resolve(template.replace("-template", ""));
+	}
+
+	/**
+	 * @return nanoseconds from the start of the process until it exits
+	 */
+	private long run(List<String> command, List<String> args) throws IOException, InterruptedException {
+		try (DirectoryStream<Path> outputs = Files.newDirectoryStream(work)) {
+			for (Path output : outputs) {
+				Files.delete(output);
+			}
+		}
+		List<String> all = new ArrayList<String>(command);
+		all.addAll(args);
+		ProcessBuilder builder = new ProcessBuilder(all).redirectOutput(ProcessBuilder.Redirect.PIPE)
+				.redirectError(ProcessBuilder.Redirect.INHERIT);
+		long start = System.nanoTime();
+		Process process = builder.start();
+		process.getOutputStream().close();
+		byte[] buffer = new byte[8192];
+		while (process.getInputStream().read(buffer) >= 0) {
+			// discards the output
+		}
+		int exitCode = process.waitFor();
+		long nanos = System.nanoTime() - start;
+		if (exitCode != 0) {
+			throw new IllegalStateException("Exit code " + exitCode + ": " + all);
+		}
+		return nanos;
+	}
+
+	private static String summary(Map<String, Map<String, long[]>> times) {
+		StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "%-12s %-8s %10s %10s %10s %10s", "Scenario",
+				"Runtime", "Min(ms)", "Median(ms)", "P90(ms)", "Mean(ms)"));
+		for (Map.Entry<String, Map<String, long[]>> scenario : times.entrySet()) {
+			for (Map.Entry<String, long[]> runtime : scenario.getValue().entrySet()) {
+				long[] sorted = sorted(runtime.getValue());
+				sb.append(String.format(Locale.ROOT, "%n%-12s %-8s %10.3f %10.3f %10.3f %10.3f", scenario.getKey(),
+						runtime.getKey(), millis(sorted[0]), millis(percentile(sorted, 50)),
+						millis(percentile(sorted, 90)), millis(mean(sorted))));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String toJson(int iterations, int warmup, Map<String, Map<String, long[]>> times) {
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("{\n  \"iterations\": ").append(iterations);
+		sb.append(",\n  \"warmup\": ").append(warmup);
+		sb.append(",\n  \"scenarios\": {");
+		boolean firstScenario = true;
+		for (Map.Entry<String, Map<String, long[]>> scenario : times.entrySet()) {
+			sb.append(firstScenario ? "\n    \"" : ",\n    \"").append(scenario.getKey()).append("\": {");
+			firstScenario = false;
+			boolean firstRuntime = true;
+			for (Map.Entry<String, long[]> runtime : scenario.getValue().entrySet()) {
+				long[] sorted = sorted(runtime.getValue());
+				sb.append(firstRuntime ? "\n      \"" : ",\n      \"").append(runtime.getKey()).append("\": {");
+				firstRuntime = false;
+				sb.append("\"minMs\": ").append(format(millis(sorted[0])));
+				sb.append(", \"medianMs\": ").append(format(millis(percentile(sorted, 50))));
+				sb.append(", \"p90Ms\": ").append(format(millis(percentile(sorted, 90))));
+				sb.append(", \"meanMs\": ").append(format(millis(mean(sorted))));
+				sb.append(", \"maxMs\": ").append(format(millis(sorted[sorted.length - 1]))).append('}');
+			}
+			sb.append("\n    }");
+		}
+		return sb.append("\n  }\n}\n").toString();
+	}
+
+	private static long[] sorted(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * @return nearest-rank percentile of sorted values
+	 */
+	private static long percentile(long[] sorted, int percentile) {
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(rank - 1, 0)];
+	}
+
+	private static long mean(long[] values) {
+		long total = 0;
+		for (long value : values) {
+			total += value;
+		}
+		return total / values.length;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	private static String format(double millis) {
+		return String.format(Locale.ROOT, "%.3f", millis);
+	}
+
+	private static void deleteAll(Path directory) throws IOException {
+		File[] files = directory.toFile().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				Files.delete(file.toPath());
+			}
+		}
+		Files.delete(directory);
+	}
+}
@@ -1,19 +1,32 @@
 package com.github.arielcarrera.env.var.replacer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
 
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.contrib.java.lang.system.EnvironmentVariables;
 import org.junit.contrib.java.lang.system.ExpectedSystemExit;
+import org.junit.contrib.java.lang.system.SystemErrRule;
 import org.junit.contrib.java.lang.system.SystemOutRule;
+import org.junit.contrib.java.lang.system.TextFromStandardInputStream;
+import org.junit.rules.TemporaryFolder;
 
 public class EnvVarReplacerTest {
 
@@ -26,6 +39,15 @@ public class EnvVarReplacerTest {
 	@Rule
 	public final SystemOutRule systemOutRule = new SystemOutRule().enableLog();
 	
+	@Rule
+	public final SystemErrRule systemErrRule = new SystemErrRule().enableLog();
+	
+	@Rule
+	public final TextFromStandardInputStream systemInMock = TextFromStandardInputStream.emptyStandardInputStream();
+	
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+	
 	
 	//file: test1
 	@Test
@@ -181,6 +203,71 @@ public class EnvVarReplacerTest {
 		Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test1-result-complete.xml")));
 	}
 	
+	@Test
+	public void testLayeredValues() throws IOException {
+		Path template = Paths.get("test-resources", "test1-template.xml");
+		Path file = Paths.get("test-resources", "test1.xml");
+		Files.copy(template, file , StandardCopyOption.REPLACE_EXISTING);
+		environmentVariables.set("VAR_2_CON_DEFAULT", "Environment content!");
+		environmentVariables.set("VAR_3_REQUIRED", "Environment!");
+		
+		String properties = Paths.get("test-resources", "test.properties") + "," + Paths.get("test-resources", "test13-layered.properties");
+		EnvVarReplacer.main(new String[] {file.toString(), "-p", properties, "-DVAR_3_REQUIRED=CLI!", "-DVAR_4_OPTIONAL=Defined!"});
+		Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test13-layered-result.xml")));
+	}
+
+	@Test
+	public void testValueProviders() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path secrets = Files.createDirectory(root.resolve("secrets"));
+		Files.write(secrets.resolve("VAR_3_REQUIRED"), "Secret!\n".getBytes());
+		Path dotenv = root.resolve("values.env");
+		Files.write(dotenv, "VAR_1=env\nVAR_2=env\n".getBytes());
+		Path json = root.resolve("values.json");
+		Files.write(json, "{\"VAR_2\": \"json\", \"VAR_3_REQUIRED\": \"json\"}".getBytes());
+		environmentVariables.set("VAR_3_REQUIRED", "Environment!");
+		systemInMock.provideLines("${VAR_1} ${VAR_2} ${VAR_3_REQUIRED} ${VAR_4:x}");
+
+		EnvVarReplacer.main(new String[] {"-", "--values", "dotenv:" + dotenv, "--values", "json:" + json,
+				"--values", "dir:" + secrets, "-DVAR_1=CLI!"});
+		Assert.assertEquals("CLI! json Secret! x" + System.lineSeparator(), systemOutRule.getLog());
+	}
+
+	@Test
+	public void testValueProviderNotFound() {
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_FILE_NOT_FOUND);
+		exit.checkAssertionAfterwards(() -> Assert.assertTrue(systemErrRule.getLog().contains("Values - Invalid path: dir:missing-secrets")));
+		EnvVarReplacer.main(new String[] {"-", "--values", "dir:missing-secrets"});
+	}
+
+	@Test
+	public void testRecursive() {
+		environmentVariables.set("DB_HOST", "localhost");
+		systemInMock.provideLines("${DB_URL}");
+
+		EnvVarReplacer.main(new String[] {"-", "--recursive", "-DDB_URL=jdbc:${DB_DRIVER:h2}://${DB_HOST}/${DB_NAME}", "-DDB_NAME=app"});
+		Assert.assertEquals("jdbc:h2://localhost/app" + System.lineSeparator(), systemOutRule.getLog());
+	}
+
+	@Test
+	public void testRecursiveCycle() {
+		systemInMock.provideLines("${A}");
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_CYCLIC_REFERENCE);
+		exit.checkAssertionAfterwards(() -> Assert.assertTrue(systemErrRule.getLog().contains("Cyclic reference: A -> B -> A")));
+		EnvVarReplacer.main(new String[] {"-", "--recursive", "-DA=${B}", "-DB=${A}"});
+	}
+
+	@Test
+	public void testLayeredValuesFromEnvironment() throws IOException {
+		Path template = Paths.get("test-resources", "test1-template.xml");
+		Path file = Paths.get("test-resources", "test1.xml");
+		Files.copy(template, file , StandardCopyOption.REPLACE_EXISTING);
+		environmentVariables.set("VAR_3_REQUIRED", "Test!");
+		
+		EnvVarReplacer.main(new String[] {file.toString(), "-p", Paths.get("test-resources", "test13-layered.properties").toString()});
+		Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test13-layered-env-result.xml")));
+	}
+
 	@Test
 	public void testTargetPath() throws IOException {
 		Path template = Paths.get("test-resources", "test1-template.xml");
@@ -273,6 +360,17 @@ public class EnvVarReplacerTest {
 		Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test1-result.xml")));
 	}
 	
+	@Test
+	public void testRemoveMultiplePrefixes() throws IOException {
+		Path template = Paths.get("test-resources", "test1-template.xml");
+		Path file = Paths.get("test-resources", "test1.xml");
+		Files.copy(template, file , StandardCopyOption.REPLACE_EXISTING);
+		environmentVariables.set("REQUIRED", "Test!");
+		
+		EnvVarReplacer.main(new String[] {file.toString(), "-rp", "OTHER_,VAR_,VAR_3_"});
+		Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test1-result.xml")));
+	}
+
 	@Test
 	public void testInnerExpressionDefault() throws IOException {
 		Path template = Paths.get("test-resources", "test9-template.xml");
@@ -308,6 +406,10 @@ public class EnvVarReplacerTest {
 		
 		EnvVarReplacer.main(new String[] {file.toString(), "-rp", "env."});
 		Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test9-withVar5-result.xml")));
+		
+		Files.copy(template, file , StandardCopyOption.REPLACE_EXISTING);
+		EnvVarReplacer.main(new String[] {file.toString(), "-rp", "env.", "--cache-dir", folder.newFolder().toString()});
+		Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test9-withVar5-result.xml")));
 	}
 	
 	@Test
@@ -344,6 +446,602 @@ public class EnvVarReplacerTest {
 		Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test10-defaults-result.xml")));
 	}
 	
+	// file: test11-manyinline
+	@Test
+	public void testManyInline() throws IOException {
+		Path template = Paths.get("test-resources", "test11-manyinline-template.xml");
+		Path file = Paths.get("test-resources", "test11-manyinline.xml");
+		Files.copy(template, file , StandardCopyOption.REPLACE_EXISTING);
+		
+		environmentVariables.set("VAR_A", "A");
+		Assert.assertEquals("A", System.getenv("VAR_A"));
+		
+		EnvVarReplacer.main(new String[] {file.toString()});
+		Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test11-manyinline-result.xml")));
+	}
+	
+	// file: test12-sentinel
+	@Test
+	public void testSkippedRegionsAndEscapedEndChars() throws IOException {
+		Path template = Paths.get("test-resources", "test12-sentinel-template.xml");
+		Path file = Paths.get("test-resources", "test12-sentinel.xml");
+		Files.copy(template, file , StandardCopyOption.REPLACE_EXISTING);
+		
+		environmentVariables.set("VAR_1", "A");
+		environmentVariables.set("VAR_2", "B\\}");
+		Assert.assertEquals("B\\}", System.getenv("VAR_2"));
+		
+		EnvVarReplacer.main(new String[] {file.toString(), "-rp", "env.", "-fp", "env."});
+		Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test12-sentinel-result.xml")));
+		
+		// compiled templates keep the same skipped regions, also when they are read from disk
+		Path cacheDir = folder.newFolder().toPath();
+		for (int i = 0; i < 2; i++) {
+			Files.copy(template, file , StandardCopyOption.REPLACE_EXISTING);
+			EnvVarReplacer.main(new String[] {file.toString(), "-rp", "env.", "-fp", "env.", "--cache-dir", cacheDir.toString()});
+			Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test12-sentinel-result.xml")));
+		}
+	}
+	
+	@Test
+	public void testParallel() throws IOException {
+		Path template = Paths.get("test-resources", "test1-template.xml");
+		Path file = Paths.get("test-resources", "test1.xml");
+		Path target = Paths.get("test-resources", "test1-target.xml");
+		Files.copy(template, file, StandardCopyOption.REPLACE_EXISTING);
+		Files.deleteIfExists(target);
+		
+		Path template2 = Paths.get("test-resources", "test7-multipleinline-template.xml");
+		Path file2 = Paths.get("test-resources", "test7-multipleinline.xml");
+		Files.copy(template2, file2, StandardCopyOption.REPLACE_EXISTING);
+		
+		Path template3 = Paths.get("test-resources", "test8-issue7-template.xml");
+		Path file3 = Paths.get("test-resources", "test8-issue7.xml");
+		Files.copy(template3, file3, StandardCopyOption.REPLACE_EXISTING);
+		
+		environmentVariables.set("VAR_3_REQUIRED", "Test!");
+		environmentVariables.set("VAR_A", "A");
+		environmentVariables.set("VAR_B", "B");
+		environmentVariables.set("VAR_C", "C");
+		environmentVariables.set("VAR_D", "D");
+		environmentVariables.set("VAR_E", "E");
+		environmentVariables.set("VAR_F", "F");
+		environmentVariables.set("V_HOST", "HOST");
+		environmentVariables.set("V_NAME", "NAME");
+		environmentVariables.set("V_USER", "USER");
+		environmentVariables.set("V_PASS", "PASS");
+		
+		Path configFile = Paths.get("test-resources", "replacer.cfg");
+		EnvVarReplacer.main(new String[] {"-s", configFile.toString(), file3.toString(), "-j", "3"});
+		Assert.assertTrue(compareFiles(target, Paths.get("test-resources", "test1-result.xml")));
+		Assert.assertTrue(compareFiles(file2, Paths.get("test-resources", "test7-multipleinline-result.xml")));
+		Assert.assertTrue(compareFiles(file3, Paths.get("test-resources", "test8-issue7-result.xml")));
+	}
+	
+	@Test
+	public void testParallelVarRequired() throws IOException {
+		Path template = Paths.get("test-resources", "test8-issue7-template.xml");
+		Path file = Paths.get("test-resources", "test8-issue7.xml");
+		Files.copy(template, file, StandardCopyOption.REPLACE_EXISTING);
+		
+		environmentVariables.set("V_HOST", "HOST");
+		environmentVariables.set("V_NAME", "NAME");
+		environmentVariables.set("V_USER", "USER");
+		environmentVariables.set("V_PASS", "PASS");
+		
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_VAR_REQUIRED);
+		exit.checkAssertionAfterwards(() -> Assert.assertTrue(compareFiles(file, Paths.get("test-resources", "test8-issue7-result.xml"))));
+		EnvVarReplacer.main(new String[] {Paths.get("test-resources", "test2.xml").toString() + "," + file.toString(), "-j", "2"});
+	}
+	
+	@Test
+	public void testTemplateCache() throws IOException {
+		Path template = Paths.get("test-resources", "test1-template.xml");
+		Path target = Paths.get("test-resources", "test1-target.xml");
+		Files.deleteIfExists(target);
+		
+		environmentVariables.set("VAR_3_REQUIRED", "Test!");
+		Path cacheDir = Files.createTempDirectory("replacer-cache");
+		
+		EnvVarReplacer.main(new String[] {template.toString() + ":" + target.toString(), "--cache-dir", cacheDir.toString(), "-d"});
+		EnvVarReplacer.main(new String[] {template.toString() + ":" + target.toString(), "--cache-dir", cacheDir.toString(), "-d"});
+		Assert.assertTrue(compareFiles(target, Paths.get("test-resources", "test1-result.xml")));
+		Assert.assertTrue(systemOutRule.getLog().contains("Template cache - hits: 0, misses: 1, evictions: 0"));
+		Assert.assertTrue(systemOutRule.getLog().contains("Template cache - hits: 1, misses: 0, evictions: 0"));
+	}
+	
+	@Test
+	public void testMemoryMapped() throws IOException {
+		Path template = Paths.get("test-resources", "test1-template.xml");
+		Path target = Paths.get("test-resources", "test1-target.xml");
+		Files.deleteIfExists(target);
+		
+		environmentVariables.set("VAR_3_REQUIRED", "Test!");
+		EnvVarReplacer.main(new String[] {template.toString() + ":" + target.toString(), "--mmap", "--charset", "UTF-8"});
+		Assert.assertTrue(compareFiles(target, Paths.get("test-resources", "test1-result.xml")));
+	}
+
+	@Test
+	public void testInvalidCharset() {
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_INVALID_ARGUMENTS);
+		EnvVarReplacer.main(new String[] {"test-resources/test1.xml", "--charset", "INVALID"});
+	}
+
+	@Test
+	public void testWatch() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		Path template1 = dir.resolve("template1.xml");
+		Path template2 = dir.resolve("template2.xml");
+		Path properties = dir.resolve("values.properties");
+		Path config = dir.resolve("replacer.cfg");
+		Files.write(template1, "${VAR_1} ${VAR_2:x}".getBytes());
+		Files.write(template2, "${VAR_3:c}".getBytes());
+		Files.write(properties, "VAR_1=1".getBytes());
+		Files.write(config, (template2 + ":" + dir.resolve("out2.xml")).getBytes());
+		
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		ReplacerConfig.Builder builder = ReplacerConfig.builder().debug(true).log(new PrintStream(log, true));
+		WatchMode watch = new WatchMode(builder, new HashMap<String, String>(), Collections.<ValueSource>emptyList(), Arrays.asList(properties.toString()),
+				Arrays.asList(template1 + ":" + dir.resolve("out1.xml")), Arrays.asList(config.toString()), 50);
+		Thread thread = new Thread(() -> {
+			try {
+				watch.run();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		thread.start();
+		try {
+			awaitCondition(watch::isWatching);
+			
+			// only the targets that use the changed keys are rendered
+			Files.write(properties, "VAR_1=1\nVAR_2=2".getBytes());
+			awaitContent(dir.resolve("out1.xml"), "1 2");
+			Assert.assertFalse(Files.exists(dir.resolve("out2.xml")));
+			Assert.assertFalse(log.toString().contains("Rendering: " + template2));
+			
+			Files.write(template2, "${VAR_3:d}".getBytes());
+			awaitContent(dir.resolve("out2.xml"), "d");
+			
+			// new targets of the configuration file are rendered
+			Path template3 = dir.resolve("template3.xml");
+			Files.write(template3, "${VAR_2}".getBytes());
+			Files.write(config, (template2 + ":" + dir.resolve("out2.xml") + "\n" + template3 + ":" + dir.resolve("out3.xml")).getBytes());
+			awaitContent(dir.resolve("out3.xml"), "2");
+			
+			Files.write(properties, "VAR_1=1\nVAR_2=3".getBytes());
+			awaitContent(dir.resolve("out3.xml"), "3");
+			awaitContent(dir.resolve("out1.xml"), "1 3");
+		} finally {
+			thread.interrupt();
+			thread.join(5000);
+		}
+		Assert.assertFalse(thread.isAlive());
+	}
+
+	private static void awaitContent(Path path, String content) throws InterruptedException {
+		awaitCondition(() -> {
+			try {
+				return content.equals(new String(Files.readAllBytes(path)));
+			} catch (IOException e) {
+				return false;
+			}
+		});
+	}
+
+	private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			Assert.assertTrue("Timeout", System.currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+	}
+
+	@Test
+	public void testDaemon() throws Exception {
+		Path dir = folder.getRoot().toPath();
+		Path template = dir.resolve("template.xml");
+		Files.write(template, "${APP_NAME} ${APP_PORT:8080}".getBytes());
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("NAME", "app");
+		ReplacerConfig.Builder builder = ReplacerConfig.builder().removePrefixes("APP_")
+				.templateCache(new TemplateCache(16)).valueSource(ValueSource.snapshot(values));
+		Daemon daemon = new Daemon(new Replacer(builder.build()), ValueSource.snapshot(values), Collections.singletonList(dir), "secret", null);
+		String address = daemon.bind("0");
+		Thread thread = new Thread(() -> {
+			try {
+				daemon.run();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		thread.start();
+		try (DaemonClient client = new DaemonClient(address)) {
+			// any local process can connect, requests without the token get no values
+			Map<String, String> response = client.call("{\"id\":0,\"text\":\"${APP_NAME}\"}");
+			Assert.assertEquals("false", response.get("ok"));
+			Assert.assertEquals("Daemon - Unauthorized: invalid token", response.get("error"));
+			Assert.assertNull(response.get("result"));
+			
+			response = client.call("{\"token\":\"secret\",\"id\":1,\"template\":" + json(template) + "}");
+			Assert.assertEquals("1", response.get("id"));
+			Assert.assertEquals("true", response.get("ok"));
+			Assert.assertEquals("app 8080", response.get("result").trim());
+			
+			// values of requests override the values of the daemon
+			response = client.call("{\"token\":\"secret\",\"id\":2,\"template\":" + json(template) + ",\"values\":{\"PORT\":\"9090\"}}");
+			Assert.assertEquals("app 9090", response.get("result").trim());
+			
+			Path output = dir.resolve("out.xml");
+			response = client.call("{\"token\":\"secret\",\"id\":3,\"template\":" + json(template) + ",\"output\":" + json(output) + "}");
+			Assert.assertEquals("true", response.get("modified"));
+			Assert.assertEquals("app 8080", new String(Files.readAllBytes(output)).trim());
+			
+			response = client.call("{\"token\":\"secret\",\"id\":4,\"text\":\"${APP_NAME}\\n${APP_MISSING}\"}");
+			Assert.assertEquals("false", response.get("ok"));
+			Assert.assertEquals(String.valueOf(EnvVarReplacer.ERROR_CODE_VAR_REQUIRED), response.get("code"));
+			
+			response = client.call("{\"token\":\"secret\",\"id\":5,\"text\":");
+			Assert.assertEquals("false", response.get("ok"));
+			Assert.assertEquals(String.valueOf(EnvVarReplacer.ERROR_CODE_INVALID_ARGUMENTS), response.get("code"));
+			
+			// invalid paths and ids get an error response
+			response = client.call("{\"token\":\"secret\",\"id\":6,\"template\":\"a\\u0000b\"}");
+			Assert.assertEquals("6", response.get("id"));
+			Assert.assertEquals(String.valueOf(EnvVarReplacer.ERROR_CODE_INVALID_ARGUMENTS), response.get("code"));
+			response = client.call("{\"token\":\"secret\",\"id\":{\"a\":\"b\"},\"text\":\"x\"}");
+			Assert.assertEquals("false", response.get("ok"));
+			Assert.assertEquals(String.valueOf(EnvVarReplacer.ERROR_CODE_INVALID_ARGUMENTS), response.get("code"));
+			
+			// requests run concurrently, responses are matched by id
+			for (int i = 0; i < 50; i++) {
+				client.send("{\"token\":\"secret\",\"id\":\"c" + i + "\",\"text\":\"${APP_NAME}-" + i + "\",\"values\":{\"NAME\":\"n" + i + "\"}}");
+			}
+			for (int i = 0; i < 50; i++) {
+				response = FlatMapParser.parseJson("response", client.receive());
+				Assert.assertEquals("n" + response.get("id").substring(1) + "-" + response.get("id").substring(1), response.get("result"));
+			}
+			
+			response = client.call("{\"token\":\"secret\",\"command\":\"stats\"}");
+			Assert.assertEquals("58", response.get("requests"));
+			Assert.assertEquals("5", response.get("errors"));
+			Assert.assertTrue(Long.parseLong(response.get("p50Micros")) <= Long.parseLong(response.get("p99Micros")));
+			
+			Assert.assertEquals("true", client.call("{\"token\":\"secret\",\"command\":\"shutdown\"}").get("ok"));
+			thread.join(5000);
+			Assert.assertFalse(thread.isAlive());
+		} finally {
+			daemon.close();
+		}
+	}
+
+	@Test
+	public void testDaemonRestrictsPathsAndWrites() throws Exception {
+		Path root = folder.newFolder("root").toPath();
+		Path template = root.resolve("template.xml");
+		Files.write(template, "${NAME}".getBytes());
+		Path outside = folder.newFile("outside.xml").toPath();
+		Files.write(outside, "secret ${NAME}".getBytes());
+		Path token = root.resolve("token");
+		ValueSource values = key -> {
+			if (key.equals("BROKEN")) {
+				throw new IllegalStateException("broken source");
+			}
+			return null;
+		};
+		Daemon daemon = new Daemon(new Replacer(ReplacerConfig.builder().templateCache(new TemplateCache(16)).valueSource(values).build()),
+				values, Collections.singletonList(root), Daemon.token(token), token);
+		// the token is generated once and read again
+		Assert.assertEquals(Daemon.token(token), Files.readAllLines(token).get(0));
+		String address = daemon.bind("0");
+		Thread thread = new Thread(() -> {
+			try {
+				daemon.run();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		thread.start();
+		String auth = ",\"token\":\"" + Daemon.token(token) + "\"";
+		try (DaemonClient client = new DaemonClient(address)) {
+			// templates are not read without the token, the token file is never served
+			Map<String, String> response = client.call("{\"id\":0,\"template\":" + json(template) + "}");
+			Assert.assertEquals("Daemon - Unauthorized: invalid token", response.get("error"));
+			response = client.call("{\"id\":0,\"template\":" + json(token) + auth + "}");
+			Assert.assertEquals("false", response.get("ok"));
+			Assert.assertTrue(response.get("error").contains("Path not served"));
+			response = client.call("{\"id\":0,\"template\":" + json(template) + ",\"output\":" + json(token) + auth + "}");
+			Assert.assertTrue(response.get("error").contains("Path not served"));
+			
+			response = client.call("{\"id\":1,\"template\":" + json(outside) + auth + "}");
+			Assert.assertEquals("false", response.get("ok"));
+			Assert.assertEquals(String.valueOf(EnvVarReplacer.ERROR_CODE_INVALID_ARGUMENTS), response.get("code"));
+			Assert.assertTrue(response.get("error").contains("Path outside of the daemon roots"));
+			response = client.call("{\"id\":2,\"template\":" + json(root.resolve("..").resolve("outside.xml")) + auth + "}");
+			Assert.assertTrue(response.get("error").contains("Path outside of the daemon roots"));
+			
+			// outputs outside of the roots and writes without the token are rejected
+			response = client.call("{\"id\":3,\"template\":" + json(template) + ",\"output\":" + json(outside) + auth + "}");
+			Assert.assertTrue(response.get("error").contains("Path outside of the daemon roots"));
+			response = client.call("{\"id\":4,\"template\":" + json(template) + ",\"output\":" + json(root.resolve("out.xml")) + "}");
+			Assert.assertEquals("Daemon - Unauthorized: invalid token", response.get("error"));
+			Assert.assertFalse(Files.exists(root.resolve("out.xml")));
+			response = client.call("{\"id\":5,\"command\":\"shutdown\",\"token\":\"other\"}");
+			Assert.assertEquals("Daemon - Unauthorized: invalid token", response.get("error"));
+			Assert.assertEquals("secret ${NAME}", new String(Files.readAllBytes(outside)));
+			
+			// unexpected errors get a response too
+			response = client.call("{\"id\":6,\"text\":\"${BROKEN}\"" + auth + "}");
+			Assert.assertEquals("6", response.get("id"));
+			Assert.assertEquals(String.valueOf(EnvVarReplacer.ERROR_CODE_INVALID_ARGUMENTS), response.get("code"));
+			Assert.assertTrue(response.get("error").contains("broken source"));
+			
+			Assert.assertEquals("true", client.call("{\"command\":\"shutdown\"" + auth + "}").get("ok"));
+			thread.join(5000);
+			Assert.assertFalse(thread.isAlive());
+		} finally {
+			daemon.close();
+		}
+	}
+
+	@Test
+	public void testDaemonInvalidAddress() {
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_INVALID_ARGUMENTS);
+		exit.checkAssertionAfterwards(() -> Assert.assertTrue(systemErrRule.getLog().contains("Only loopback addresses are served")));
+		EnvVarReplacer.main(new String[] { "--daemon", "8.8.8.8:0", "--daemon-token-file", folder.getRoot().toPath().resolve("token").toString() });
+	}
+
+	@Test
+	public void testDaemonTcpRequiresToken() {
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_INVALID_ARGUMENTS);
+		exit.checkAssertionAfterwards(() -> Assert.assertTrue(systemErrRule.getLog().contains("TCP addresses require --daemon-token-file")));
+		EnvVarReplacer.main(new String[] { "--daemon", "0" });
+	}
+
+	@Test
+	public void testDaemonWithWatch() {
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_INVALID_ARGUMENTS);
+		EnvVarReplacer.main(new String[] { "--daemon", "0", "--watch" });
+	}
+
+	private static String json(Path path) {
+		return Json.quote(new StringBuilder(), path.toString()).toString();
+	}
+
+	@Test
+	public void testScan() throws IOException {
+		Path template = Paths.get("test-resources", "test10-template.xml");
+		byte[] content = Files.readAllBytes(template);
+		environmentVariables.set("VAR_6", "6");
+		
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_VAR_REQUIRED);
+		exit.checkAssertionAfterwards(() -> {
+			String log = systemOutRule.getLog();
+			Assert.assertTrue(log.contains("\"files\": 1"));
+			Assert.assertTrue(log.contains("{\"key\": \"env.VAR_1\", \"defined\": false, \"required\": false, \"usages\": [{\"file\": \"" + template
+					+ "\", \"line\": 1, \"hasDefault\": true, \"default\": \"${env.VAR_2:B}\"}"));
+			// every missing key is reported, not only the first one
+			Assert.assertTrue(log.contains("\"missing\": [\"env.VAR_4\", \"env.VAR_7\", \"env.VAR_8\"]"));
+			Assert.assertArrayEquals(content, Files.readAllBytes(template));
+		});
+		EnvVarReplacer.main(new String[] {template.toString(), "-fp", "env.", "-rp", "env.", "--scan", "-j", "2"});
+	}
+
+	@Test
+	public void testTransaction() throws IOException {
+		Path a = folder.newFile("a.txt").toPath();
+		Path b = folder.newFile("b.txt").toPath();
+		Path c = folder.newFile("c.txt").toPath();
+		Files.write(a, "${TX_A}".getBytes());
+		Files.write(b, "${TX_B} ${TX_C:c}\n${TX_D}".getBytes());
+		Files.write(c, "${TX_E} ${TX_B}".getBytes());
+		environmentVariables.set("TX_A", "a");
+		
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_VAR_REQUIRED);
+		exit.checkAssertionAfterwards(() -> {
+			// every missing variable of every file is reported
+			Assert.assertTrue(systemErrRule.getLog().contains("Missing required variables: TX_B, TX_D, TX_E"));
+			// no file is modified
+			Assert.assertEquals("${TX_A}", new String(Files.readAllBytes(a)));
+			Assert.assertEquals("${TX_B} ${TX_C:c}\n${TX_D}", new String(Files.readAllBytes(b)));
+			Assert.assertEquals("${TX_E} ${TX_B}", new String(Files.readAllBytes(c)));
+			Assert.assertArrayEquals(new String[] {"a.txt", "b.txt", "c.txt"}, listFiles(folder.getRoot().toPath()));
+		});
+		EnvVarReplacer.main(new String[] {a + "," + b + "," + c, "-b", "--transaction", "-j", "2"});
+	}
+
+	@Test
+	public void testFanOut() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path template = root.resolve("ds.tpl");
+		Files.write(template, "${DS_NAME}:${DS_PORT:1500}:${DS_USER}".getBytes());
+		Files.write(root.resolve("a.properties"), "DS_NAME=a\nDS_PORT=1521\n".getBytes());
+		Files.write(root.resolve("b.properties"), "DS_NAME=b\nDS_USER=b-user\n".getBytes());
+		Path config = root.resolve("replacer.cfg");
+		Files.write(config, (template + ":" + root.resolve("a.xml") + "@" + root.resolve("a.properties") + "," + root.resolve("b.xml") + "@"
+				+ root.resolve("b.properties")).getBytes());
+		environmentVariables.set("DS_NAME", "env");
+
+		// the same input listed with many outputs in the command line
+		EnvVarReplacer.main(new String[] {template + ":" + root.resolve("base.xml") + "," + template + ":" + root.resolve("c.xml") + "@"
+				+ root.resolve("b.properties"), "-s", config.toString(), "-DDS_USER=cli", "--transaction"});
+		Assert.assertEquals("env:1500:cli", new String(Files.readAllBytes(root.resolve("base.xml"))));
+		Assert.assertEquals("a:1521:cli", new String(Files.readAllBytes(root.resolve("a.xml"))));
+		// -D values override the properties files of outputs
+		Assert.assertEquals("b:1500:cli", new String(Files.readAllBytes(root.resolve("b.xml"))));
+		Assert.assertEquals("b:1500:cli", new String(Files.readAllBytes(root.resolve("c.xml"))));
+		Assert.assertEquals("${DS_NAME}:${DS_PORT:1500}:${DS_USER}", new String(Files.readAllBytes(template)));
+		Assert.assertArrayEquals(new String[] {"a.properties", "a.xml", "b.properties", "b.xml", "base.xml", "c.xml", "ds.tpl", "replacer.cfg"},
+				listFiles(root));
+	}
+
+	@Test
+	public void testFanOutValuesNotFound() throws IOException {
+		Path template = folder.newFile("ds.tpl").toPath();
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_FILE_NOT_FOUND);
+		exit.checkAssertionAfterwards(() -> Assert.assertTrue(systemErrRule.getLog().contains("missing.properties (File not found)")));
+		EnvVarReplacer.main(new String[] {template + ":" + folder.getRoot().toPath().resolve("a.xml") + "@missing.properties"});
+	}
+
+	@Test
+	public void testOutputsWithAt() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path template = root.resolve("ds.tpl");
+		Files.write(template, "${DS_NAME:none}".getBytes());
+		Files.createDirectory(root.resolve("user@host"));
+		Files.write(root.resolve("prod.values"), "DS_NAME=prod\n".getBytes());
+		
+		// @ is part of the output path unless it is followed by a values file
+		EnvVarReplacer.main(new String[] {template + ":" + root.resolve("conf@prod.xml") + "," + template + ":" + root.resolve("user@host").resolve("app.xml")
+				+ "," + template + ":" + root.resolve("values.xml") + "@" + root.resolve("prod.values")});
+		Assert.assertEquals("none", new String(Files.readAllBytes(root.resolve("conf@prod.xml"))));
+		Assert.assertEquals("none", new String(Files.readAllBytes(root.resolve("user@host").resolve("app.xml"))));
+		Assert.assertEquals("prod", new String(Files.readAllBytes(root.resolve("values.xml"))));
+	}
+
+	@Test
+	public void testTransactionCommit() throws IOException {
+		Path a = folder.newFile("a.txt").toPath();
+		Path b = folder.newFile("b.txt").toPath();
+		Files.write(a, "${TX_A}".getBytes());
+		Files.write(b, "${TX_B} ${TX_C:c}".getBytes());
+		environmentVariables.set("TX_A", "a");
+		environmentVariables.set("TX_B", "b");
+		
+		EnvVarReplacer.main(new String[] {a + "," + b, "-b", "--transaction"});
+		Assert.assertEquals("a", new String(Files.readAllBytes(a)));
+		Assert.assertEquals("b c", new String(Files.readAllBytes(b)));
+		Assert.assertArrayEquals(new String[] {"a.txt", "a.txt.bak", "b.txt", "b.txt.bak"}, listFiles(folder.getRoot().toPath()));
+	}
+
+	@Test
+	public void testReport() throws IOException {
+		Path a = folder.newFile("a.txt").toPath();
+		Path b = folder.newFile("b.txt").toPath();
+		Path report = folder.getRoot().toPath().resolve("report.json");
+		Files.write(a, "${RP_A} ${RP_B:b}".getBytes());
+		Files.write(b, "b".getBytes());
+		environmentVariables.set("RP_A", "a");
+		
+		EnvVarReplacer.main(new String[] {a + "," + b, "--report", report.toString(), "--summary"});
+		Assert.assertEquals("a b", new String(Files.readAllBytes(a)));
+		String json = new String(Files.readAllBytes(report));
+		Assert.assertTrue(json, json.contains("\"files\": 2,\n  \"modified\": 1,\n  \"failed\": 0"));
+		Assert.assertTrue(json, json.contains("\"lines\": 1, \"placeholders\": 1, \"defaults\": 1, \"skipped\": 0, \"escapes\": 0, \"bytesIn\": 17, \"bytesOut\": 3}"));
+		Assert.assertTrue(systemErrRule.getLog(), systemErrRule.getLog().contains("Report - 2 files (1 modified, 0 failed) in "));
+	}
+
+	@Test
+	public void testPatterns() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path conf = root.resolve("conf");
+		Path dir = root.resolve("dir");
+		Files.createDirectories(conf.resolve("a"));
+		Files.createDirectories(dir.resolve("b"));
+		Files.write(conf.resolve("a/x.tpl"), "${GL_A}".getBytes());
+		Files.write(conf.resolve("y.tpl"), "${GL_A}y".getBytes());
+		Files.write(conf.resolve("z.txt"), "${GL_A}".getBytes());
+		Files.write(dir.resolve("b/c.txt"), "${GL_A}c".getBytes());
+		// backups are not expanded
+		Files.write(dir.resolve("b/c.txt.bak"), "${GL_B}".getBytes());
+		Path config = root.resolve("targets.cfg");
+		Files.write(config, Arrays.asList(dir.toString(), conf + "/**/*.tpl:" + root + "/out/**/*.xml"));
+		environmentVariables.set("GL_A", "a");
+		
+		EnvVarReplacer.main(new String[] {"-s", config.toString()});
+		Assert.assertEquals("a", new String(Files.readAllBytes(root.resolve("out/a/x.xml"))));
+		Assert.assertEquals("ay", new String(Files.readAllBytes(root.resolve("out/y.xml"))));
+		Assert.assertEquals("${GL_A}", new String(Files.readAllBytes(conf.resolve("z.txt"))));
+		Assert.assertEquals("${GL_A}y", new String(Files.readAllBytes(conf.resolve("y.tpl"))));
+		Assert.assertEquals("ac", new String(Files.readAllBytes(dir.resolve("b/c.txt"))));
+		Assert.assertEquals("${GL_B}", new String(Files.readAllBytes(dir.resolve("b/c.txt.bak"))));
+	}
+
+	@Test
+	public void testNestedPatternRoots() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path sub = root.resolve("conf/sub");
+		Files.createDirectories(sub);
+		Files.write(root.resolve("conf/a.xml"), "${GL_A}".getBytes());
+		Files.write(sub.resolve("b.xml"), "${GL_A}b".getBytes());
+		Files.write(sub.resolve("c.tpl"), "${GL_A}c".getBytes());
+		environmentVariables.set("GL_A", "a");
+		
+		// conf/sub is walked with conf, the files of each entry are relative to its own root
+		EnvVarReplacer.main(new String[] {root + "/conf/**/*.xml," + sub + "/*.tpl:" + root + "/out/*.txt"});
+		Assert.assertEquals("a", new String(Files.readAllBytes(root.resolve("conf/a.xml"))));
+		Assert.assertEquals("ab", new String(Files.readAllBytes(sub.resolve("b.xml"))));
+		Assert.assertEquals("ac", new String(Files.readAllBytes(root.resolve("out/c.txt"))));
+		Assert.assertEquals("${GL_A}c", new String(Files.readAllBytes(sub.resolve("c.tpl"))));
+	}
+
+	@Test
+	public void testLiteralPathsWithGlobChars() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Files.write(root.resolve("app[1].xml"), "${GL_A}".getBytes());
+		Files.write(root.resolve("app1.xml"), "${GL_A}".getBytes());
+		Files.createDirectories(root.resolve("d{1}"));
+		Files.write(root.resolve("d{1}/x.txt"), "${GL_A}x".getBytes());
+		environmentVariables.set("GL_A", "a");
+		
+		// paths that exist are not patterns, directories that exist are roots of patterns
+		EnvVarReplacer.main(new String[] {root + "/app[1].xml," + root + "/d{1}/*.txt"});
+		Assert.assertEquals("a", new String(Files.readAllBytes(root.resolve("app[1].xml"))));
+		Assert.assertEquals("${GL_A}", new String(Files.readAllBytes(root.resolve("app1.xml"))));
+		Assert.assertEquals("ax", new String(Files.readAllBytes(root.resolve("d{1}/x.txt"))));
+	}
+
+	@Test
+	public void testPatternsNotFound() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path file = root.resolve("a.txt");
+		Files.write(file, "${GL_A:a}".getBytes());
+		
+		exit.expectSystemExitWithStatus(EnvVarReplacer.ERROR_CODE_FILE_NOT_FOUND);
+		exit.checkAssertionAfterwards(() -> {
+			// every invalid entry is reported and no file is modified
+			Assert.assertTrue(systemErrRule.getLog().contains("Invalid path: " + root + "/*.xml (No files found)"));
+			Assert.assertTrue(systemErrRule.getLog().contains("Invalid path: " + root + "/missing.txt (File not found)"));
+			Assert.assertEquals("${GL_A:a}", new String(Files.readAllBytes(file)));
+		});
+		EnvVarReplacer.main(new String[] {root + "/*.txt," + root + "/*.xml," + root + "/missing.txt"});
+	}
+
+	@Test
+	public void testBackupArchive() throws IOException {
+		Path a = folder.newFile("a.txt").toPath();
+		Path b = folder.newFile("b.txt").toPath();
+		Path zip = folder.getRoot().toPath().resolve("backup.zip");
+		Files.write(a, "${BA_A:a}".getBytes());
+		Files.write(b, "${BA_A:b}".getBytes());
+		
+		EnvVarReplacer.main(new String[] {a + "," + b, "--backup-mode=archive", "--backup-archive", zip.toString()});
+		Assert.assertEquals("a", new String(Files.readAllBytes(a)));
+		Assert.assertArrayEquals(new String[] {"a.txt", "b.txt", "backup.zip"}, listFiles(folder.getRoot().toPath()));
+		try (ZipFile archive = new ZipFile(zip.toFile())) {
+			Assert.assertEquals(2, archive.size());
+		}
+	}
+
+	private static String[] listFiles(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.map(path -> path.getFileName().toString()).sorted().toArray(String[]::new);
+		}
+	}
+
+	@Test
+	public void testStandardInput() throws IOException {
+		environmentVariables.set("V_HOST", "HOST");
+		environmentVariables.set("V_NAME", "NAME");
+		environmentVariables.set("V_USER", "USER");
+		environmentVariables.set("V_PASS", "PASS");
+		// the text is read as it is, with its own line terminators (systemInMock restores System.in)
+		System.setIn(new ByteArrayInputStream(Files.readAllBytes(Paths.get("test-resources", "test8-issue7-template.xml"))));
+		
+		EnvVarReplacer.main(new String[] {"-", "-d"});
+		Assert.assertEquals(new String(Files.readAllBytes(Paths.get("test-resources", "test8-issue7-result.xml"))), systemOutRule.getLog());
+	}
+	
 	private boolean compareFiles(Path origin, Path target) throws IOException {
 		List<String> originContent = Files.readAllLines(origin);
 		List<String> targetContent = Files.readAllLines(target);
@@ -0,0 +1,869 @@
+package com.github.arielcarrera.env.var.replacer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.arielcarrera.env.var.replacer.UsageIndex.Usage;
+
+public class ReplacerTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReplaceToOutput() throws IOException, ReplacerException {
+		Path template = Paths.get("test-resources", "test1-template.xml");
+		Path target = Paths.get("test-resources", "test1-target.xml");
+		Files.deleteIfExists(target);
+		Properties properties = new Properties();
+		properties.setProperty("VAR_3_REQUIRED", "Test!");
+
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.properties(properties)).build());
+		ReplaceResult result = replacer.replace(template, target);
+		Assert.assertEquals(target, result.getOutput());
+		Assert.assertNull(result.getBackup());
+		Assert.assertTrue(compareFiles(target, Paths.get("test-resources", "test1-result.xml")));
+	}
+
+	@Test
+	public void testReplaceStream() throws ReplacerException {
+		Replacer replacer = new Replacer(ReplacerConfig.builder().removePrefix("env.").filterPrefixes("env.")
+				.valueSource(key -> key.equals("VAR_1") ? "A" : null).build());
+		for (int i = 0; i < 3; i++) {
+			StringWriter writer = new StringWriter();
+			ReplaceResult result = replacer.replace(new StringReader("a ${env.VAR_1} ${VAR_1} ${env.VAR_2:B}"), writer);
+			Assert.assertEquals("a A ${VAR_1} B", writer.toString());
+			Assert.assertEquals(1, result.getLines());
+		}
+	}
+
+	@Test
+	public void testReplaceStreamKeepsLineTerminators() throws ReplacerException {
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(key -> key.equals("VAR_1") ? "A" : null).build());
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < LineReader.DEFAULT_BUFFER_SIZE - 4; i++) {
+			padding.append('x');
+		}
+		// the first expression is split by the end of the read buffer
+		String input = padding + "${VAR_1}\r\n${VAR_1}\r${VAR_2:B}\n\n${VAR_1}\r";
+		StringWriter writer = new StringWriter();
+		ReplaceResult result = replacer.replace(new StringReader(input), writer);
+		Assert.assertEquals(padding + "A\r\nA\rB\n\nA\r", writer.toString());
+		Assert.assertEquals(5, result.getLines());
+	}
+
+	@Test
+	public void testPrefixes() throws ReplacerException {
+		Properties properties = new Properties();
+		properties.setProperty("PORT", "1");
+		properties.setProperty("app.PORT", "2");
+		properties.setProperty(".HOST", "4");
+		properties.setProperty("HOST", "3");
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.properties(properties))
+				.filterPrefixes("env.", "team1.", "team10.", "").removePrefixes("env.", "env.app.", "team1").build());
+		StringWriter writer = new StringWriter();
+		replacer.replace(new StringReader("${env.app.PORT} ${env.PORT} ${team10.HOST:x} ${team1.HOST:x} ${HOST}"), writer);
+		Assert.assertEquals("1 1 x 4 3", writer.toString());
+
+		replacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.properties(properties))
+				.filterPrefixes("team1.", "team10.", "env.a").build());
+		for (int i = 0; i < 2; i++) {
+			// decisions are memoised
+			writer = new StringWriter();
+			replacer.replace(new StringReader("${team1.HOST:a} ${team10.HOST:b} ${team2.HOST:c} ${team1:d} ${env.app.PORT:e} ${env.PORT}"), writer);
+			Assert.assertEquals("a b ${team2.HOST:c} ${team1:d} e ${env.PORT}", writer.toString());
+		}
+	}
+
+	@Test
+	public void testValuesAreReadOnce() throws ReplacerException {
+		Map<String, AtomicInteger> reads = new ConcurrentHashMap<String, AtomicInteger>();
+		Properties properties = new Properties();
+		properties.setProperty("VAR_1", "A");
+		ValueSource snapshot = ValueSource.properties(properties);
+		properties.setProperty("VAR_1", "B");
+		Replacer replacer = new Replacer(ReplacerConfig.builder().removePrefix("env.").valueSource(key -> {
+			reads.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+			return snapshot.getValue(key);
+		}).build());
+		for (int i = 0; i < 3; i++) {
+			StringWriter writer = new StringWriter();
+			replacer.replace(new StringReader("${VAR_1} ${env.VAR_1} ${VAR_2:x}\n${VAR_2:y}"), writer);
+			Assert.assertEquals("A A x\ny", writer.toString());
+		}
+		// keys with and without prefix are memoised separately
+		Assert.assertEquals(2, reads.get("VAR_1").get());
+		Assert.assertEquals(1, reads.get("VAR_2").get());
+	}
+
+	@Test
+	public void testScan() throws IOException, ReplacerException {
+		Path path = folder.getRoot().toPath().resolve("file.txt");
+		Files.write(path, "${VAR_1:a\\}b} ${VAR_2}\n\n${VAR_${VAR_1}} ${VAR_3}".getBytes());
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(key -> key.equals("VAR_1") ? "2" : null).build());
+		List<Usage> usages = replacer.scan(path);
+		Assert.assertEquals(4, usages.size());
+		assertUsage(usages.get(0), "VAR_1", 1, false, "a}b", true, false);
+		assertUsage(usages.get(1), "VAR_2", 1, true, null, false, false);
+		assertUsage(usages.get(2), "VAR_1", 3, false, null, true, true);
+		// the composed line is scanned up to its first missing key
+		assertUsage(usages.get(3), "VAR_2", 3, true, null, false, true);
+		Assert.assertArrayEquals("${VAR_1:a\\}b} ${VAR_2}\n\n${VAR_${VAR_1}} ${VAR_3}".getBytes(), Files.readAllBytes(path));
+	}
+
+	private static void assertUsage(Usage usage, String key, long line, boolean required, String defaultValue,
+			boolean defined, boolean composed) {
+		Assert.assertEquals(key, usage.key);
+		Assert.assertEquals(line, usage.line);
+		Assert.assertEquals(required, usage.required);
+		Assert.assertEquals(defaultValue, usage.defaultValue);
+		Assert.assertEquals(defined, usage.defined);
+		Assert.assertEquals(composed, usage.composed);
+	}
+
+	@Test
+	public void testRecursive() throws ReplacerException {
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("URL", "${SCHEME:http}://${HOST}:${PORT}/${env.PATH_1}");
+		values.put("HOST", "${NAME}.${DOMAIN}");
+		values.put("PORT", "${ALT_PORT:80}");
+		values.put("NAME", "app");
+		values.put("DOMAIN", "example.com");
+		values.put("PATH_1", "${NAME}");
+		values.put("RAW", "${UNDEFINED:${NAME}}");
+		Map<String, AtomicInteger> reads = new ConcurrentHashMap<String, AtomicInteger>();
+		ValueSource source = key -> {
+			reads.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+			return values.get(key);
+		};
+
+		StringWriter writer = new StringWriter();
+		new Replacer(ReplacerConfig.builder().valueSource(source).build()).replace(new StringReader("${URL}"), writer);
+		Assert.assertEquals("${SCHEME:http}://${HOST}:${PORT}/${env.PATH_1}", writer.toString());
+
+		reads.clear();
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(source).removePrefix("env.").recursive(true).build());
+		for (int i = 0; i < 3; i++) {
+			writer = new StringWriter();
+			replacer.replace(new StringReader("${URL} ${X:${HOST}} ${RAW}"), writer);
+			Assert.assertEquals("http://app.example.com:80/app app.example.com app", writer.toString());
+		}
+		// every key is read and expanded once
+		for (Map.Entry<String, AtomicInteger> entry : reads.entrySet()) {
+			Assert.assertEquals(entry.getKey(), 1, entry.getValue().get());
+		}
+	}
+
+	@Test
+	public void testRecursiveErrors() {
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("A", "a${B}");
+		values.put("B", "${C:c}${D}");
+		values.put("D", "${A}");
+		values.put("E", "${F}");
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(values::get).recursive(true).build());
+		try {
+			replacer.replace(new StringReader("${X:x} ${B}"), new StringWriter());
+			Assert.fail();
+		} catch (ReplacerException e) {
+			Assert.assertEquals(EnvVarReplacer.ERROR_CODE_CYCLIC_REFERENCE, e.getErrorCode());
+			Assert.assertEquals("Replacement - Cyclic reference: B -> D -> A -> B", e.getMessage());
+		}
+		try {
+			replacer.replace(new StringReader("${E}"), new StringWriter());
+			Assert.fail();
+		} catch (RequiredEnvironmentVariableException e) {
+			Assert.assertEquals("F", e.getKey());
+		} catch (ReplacerException e) {
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testValueProviders() throws IOException, ReplacerException {
+		Path root = folder.getRoot().toPath();
+		Path secrets = Files.createDirectory(root.resolve("secrets"));
+		Files.write(secrets.resolve("DB_PASS"), "s3cret\n".getBytes(StandardCharsets.UTF_8));
+		Files.write(root.resolve("values.env"), ("# comment\nexport DB_HOST=localhost # host\nDB_NAME='a b'\n"
+				+ "DB_URL=\"jdbc:x\\ty\nz\"\n").getBytes(StandardCharsets.UTF_8));
+		Files.write(root.resolve("values.json"), "\uFEFF{\"DB_PORT\": 5432, \"DB_SSL\": true, \"DB_NAME\": \"j\\u00e9\", \"DB_HOST\": null}"
+				.getBytes(StandardCharsets.UTF_8));
+		Files.write(root.resolve("values.yaml"), "---\nDB_NAME: 'it''s' # name\nDB_USER: \"a\\tb\"\nDB_HOST: ~\nDB_PORT: 1\n"
+				.getBytes(StandardCharsets.UTF_8));
+
+		ValueSource dir = ValueProviders.open("dir:" + secrets);
+		ValueSource dotenv = ValueProviders.open("dotenv:" + root.resolve("values.env"));
+		ValueSource json = ValueProviders.open("json:" + root.resolve("values.json"));
+		ValueSource yaml = ValueProviders.open("yaml:" + root.resolve("values.yaml"));
+		Assert.assertEquals("s3cret", dir.getValue("DB_PASS"));
+		Assert.assertNull(dir.getValue("DB_USER"));
+		Assert.assertNull(dir.getValue(".."));
+		Assert.assertEquals("localhost", dotenv.getValue("DB_HOST"));
+		Assert.assertEquals("a b", dotenv.getValue("DB_NAME"));
+		Assert.assertEquals("jdbc:x\ty\nz", dotenv.getValue("DB_URL"));
+		Assert.assertEquals("5432", json.getValue("DB_PORT"));
+		Assert.assertEquals("true", json.getValue("DB_SSL"));
+		Assert.assertEquals("j\u00e9", json.getValue("DB_NAME"));
+		Assert.assertNull(json.getValue("DB_HOST"));
+		Assert.assertEquals("it's", yaml.getValue("DB_NAME"));
+		Assert.assertEquals("a\tb", yaml.getValue("DB_USER"));
+		Assert.assertNull(yaml.getValue("DB_HOST"));
+
+		// values are cached, files of keys that were not requested are read on demand
+		Files.write(secrets.resolve("DB_PASS"), "changed".getBytes(StandardCharsets.UTF_8));
+		Files.write(secrets.resolve("DB_USER"), "admin".getBytes(StandardCharsets.UTF_8));
+		Files.write(secrets.resolve("DB_NAME"), "db".getBytes(StandardCharsets.UTF_8));
+		Assert.assertEquals("s3cret", dir.getValue("DB_PASS"));
+		Assert.assertNull(dir.getValue("DB_USER"));
+		Assert.assertEquals("db", dir.getValue("DB_NAME"));
+
+		// later sources override previous ones
+		ValueSource chain = ValueSource.chain(Arrays.asList(yaml, json, dotenv, dir));
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(chain).build());
+		StringWriter writer = new StringWriter();
+		replacer.replace(new StringReader("${DB_USER}@${DB_HOST}:${DB_PORT}/${DB_NAME} ${DB_PASS}"), writer);
+		Assert.assertEquals("a\tb@localhost:1/it's s3cret", writer.toString());
+	}
+
+	@Test
+	public void testValueProviderErrors() throws IOException {
+		Path root = folder.getRoot().toPath();
+		Path json = root.resolve("values.json");
+		Files.write(json, "{\"A\": \"a\",\n \"B\": {\"C\": 1}}".getBytes(StandardCharsets.UTF_8));
+		Path yaml = root.resolve("values.yaml");
+		Files.write(yaml, "A: a\nB:\n  C: 1\n".getBytes(StandardCharsets.UTF_8));
+		Path dotenv = root.resolve("values.env");
+		Files.write(dotenv, "A=a\nB=\"b\n".getBytes(StandardCharsets.UTF_8));
+
+		// files are opened without being read, errors are reported by the replacement
+		assertValuesError(ValueProviders.open("json:" + json), "Nested values are not supported: B (" + json + ":2)");
+		assertValuesError(ValueProviders.open("yaml:" + yaml), "Nested values are not supported (" + yaml + ":3)");
+		assertValuesError(ValueProviders.open("dotenv:" + dotenv), "Unterminated quoted value (" + dotenv + ":2)");
+
+		for (String specification : new String[] { "dir", "dir:", ":dir", "vault:secret/app" }) {
+			try {
+				ValueProviders.open(specification);
+				Assert.fail(specification);
+			} catch (IllegalArgumentException e) {
+				// invalid specification
+			}
+		}
+		try {
+			ValueProviders.open("dir:" + json);
+			Assert.fail();
+		} catch (NotDirectoryException e) {
+			// not a directory
+		}
+		try {
+			ValueProviders.open("json:" + root.resolve("missing.json"));
+			Assert.fail();
+		} catch (NoSuchFileException e) {
+			// not found
+		}
+	}
+
+	private static void assertValuesError(ValueSource source, String message) {
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(source).build());
+		try {
+			replacer.replace(new StringReader("${A}"), new StringWriter());
+			Assert.fail();
+		} catch (ReplacerException e) {
+			Assert.assertEquals(EnvVarReplacer.ERROR_CODE_ERROR_READING_VALUES, e.getErrorCode());
+			Assert.assertEquals("Replacement - Error reading values: " + message, e.getMessage());
+		}
+	}
+
+	@Test
+	public void testFanOut() throws IOException, ReplacerException {
+		Path template = Paths.get("test-resources", "test8-issue7-template.xml");
+		Path root = folder.getRoot().toPath();
+		Map<String, String> base = new HashMap<String, String>();
+		base.put("V_HOST", "db");
+		base.put("V_NAME", "base");
+		base.put("V_USER", "user");
+		base.put("V_PASS", "pass");
+		Map<String, String> a = new HashMap<String, String>();
+		a.put("V_NAME", "a");
+		a.put("V_PORT", "1521");
+		Map<String, String> b = new HashMap<String, String>();
+		b.put("V_NAME", "b");
+		ValueSource values = ValueSource.snapshot(base);
+
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(values)
+				.addOutput(template, root.resolve("base.xml"), null)
+				.addOutput(template, root.resolve("a").resolve("a.xml"), ValueSource.chain(Arrays.asList(ValueSource.snapshot(a), values)))
+				.addOutput(template, root.resolve("b.xml"), ValueSource.chain(Arrays.asList(ValueSource.snapshot(b), values))).build());
+		List<ReplaceResult> results = replacer.replaceAll(template);
+		Assert.assertEquals(3, results.size());
+		Assert.assertEquals(root.resolve("base.xml"), results.get(0).getOutput());
+		Assert.assertEquals(expectedDatasource(template, "base", "1500"), new String(Files.readAllBytes(root.resolve("base.xml"))));
+		Assert.assertEquals(expectedDatasource(template, "a", "1521"), new String(Files.readAllBytes(root.resolve("a").resolve("a.xml"))));
+		Assert.assertEquals(expectedDatasource(template, "b", "1500"), new String(Files.readAllBytes(root.resolve("b.xml"))));
+		Assert.assertEquals(root.resolve("base.xml"), replacer.replace(template).getOutput());
+
+		// if an output fails no output is written
+		replacer = new Replacer(ReplacerConfig.builder().valueSource(values)
+				.addOutput(template, root.resolve("c1.xml"), null)
+				.addOutput(template, root.resolve("c2.xml"), key -> key.equals("V_PASS") ? null : values.getValue(key)).build());
+		try {
+			replacer.replaceAll(template);
+			Assert.fail();
+		} catch (RequiredEnvironmentVariableException e) {
+			Assert.assertEquals("V_PASS", e.getKey());
+		}
+		Assert.assertFalse(Files.exists(root.resolve("c1.xml")));
+		Assert.assertFalse(Files.exists(root.resolve("c2.xml")));
+		try (DirectoryStream<Path> tmp = Files.newDirectoryStream(template.getParent(), "*.tmp")) {
+			Assert.assertFalse(tmp.iterator().hasNext());
+		}
+	}
+
+	@Test
+	public void testConcurrentOutputsOfSameFile() throws Exception {
+		Path template = Paths.get("test-resources", "test8-issue7-template.xml");
+		Path root = folder.getRoot().toPath();
+		Map<String, String> values = new HashMap<String, String>();
+		values.put("V_HOST", "db");
+		values.put("V_NAME", "a");
+		values.put("V_USER", "user");
+		values.put("V_PASS", "pass");
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.snapshot(values)).build());
+		values.put("V_NAME", "b");
+		Replacer other = replacer.withValues(ValueSource.snapshot(values));
+		String expectedA = expectedDatasource(template, "a", "1500");
+		String expectedB = expectedDatasource(template, "b", "1500");
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (int i = 0; i < 50; i++) {
+				Path a = root.resolve("a" + i + ".xml");
+				Path b = root.resolve("b" + i + ".xml");
+				CyclicBarrier barrier = new CyclicBarrier(2);
+				Future<ReplaceResult> resultA = executor.submit(() -> {
+					barrier.await();
+					return replacer.replace(template, a);
+				});
+				Future<ReplaceResult> resultB = executor.submit(() -> {
+					barrier.await();
+					return other.replace(template, b);
+				});
+				Assert.assertTrue(resultA.get(10, TimeUnit.SECONDS).isModified());
+				Assert.assertTrue(resultB.get(10, TimeUnit.SECONDS).isModified());
+				Assert.assertEquals(expectedA, new String(Files.readAllBytes(a)));
+				Assert.assertEquals(expectedB, new String(Files.readAllBytes(b)));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		try (DirectoryStream<Path> tmp = Files.newDirectoryStream(root, "*.tmp")) {
+			Assert.assertFalse(tmp.iterator().hasNext());
+		}
+	}
+
+	@Test
+	public void testOutputPermissions() throws IOException, ReplacerException {
+		Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+		Path root = folder.getRoot().toPath();
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(key -> "v").build());
+		// replaced files keep their permissions
+		for (String permissions : new String[] { "rw-r--r--", "rw-r-----", "rwxr-xr-x" }) {
+			Path file = root.resolve("file-" + permissions + ".txt");
+			Files.write(file, "${A}".getBytes());
+			Files.setPosixFilePermissions(file, PosixFilePermissions.fromString(permissions));
+			Assert.assertTrue(replacer.replace(file).isModified());
+			Assert.assertEquals("v", new String(Files.readAllBytes(file)));
+			Assert.assertEquals(permissions, PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+		}
+		// new outputs get the default permissions of new files
+		Path template = root.resolve("template.txt");
+		Files.write(template, "${A}".getBytes());
+		Path output = root.resolve("output.txt");
+		Assert.assertTrue(replacer.replace(template, output).isModified());
+		Path created = Files.createFile(root.resolve("created.txt"));
+		Assert.assertEquals(Files.getPosixFilePermissions(created), Files.getPosixFilePermissions(output));
+	}
+
+	private static String expectedDatasource(Path template, String name, String port) throws IOException {
+		return new String(Files.readAllBytes(template)).replace("${V_HOST}", "db")
+				.replace("${V_PORT:1500}", port).replace("${V_NAME}", name).replace("${V_USER}", "user")
+				.replace("${V_PASS}", "pass");
+	}
+
+	@Test
+	public void testRequired() {
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(key -> null).build());
+		try {
+			replacer.replace(new StringReader("${VAR_1:A} ${VAR_2}"), new StringWriter());
+			Assert.fail();
+		} catch (RequiredEnvironmentVariableException e) {
+			Assert.assertEquals("VAR_2", e.getKey());
+			Assert.assertEquals(EnvVarReplacer.ERROR_CODE_VAR_REQUIRED, e.getErrorCode());
+		} catch (ReplacerException e) {
+			Assert.fail();
+		}
+	}
+
+	@Test
+	public void testBackupAlreadyExists() {
+		Replacer replacer = new Replacer(ReplacerConfig.builder().backupMode(BackupMode.CREATE).build());
+		try {
+			replacer.checkBackup(Paths.get("test-resources", "test3-backup-already-exists.xml"));
+			Assert.fail();
+		} catch (BackupException e) {
+			Assert.assertEquals(EnvVarReplacer.ERROR_CODE_BACKUP_ERROR_FILE_EXIST, e.getErrorCode());
+		}
+	}
+
+	@Test
+	public void testBackupsAreCreatedBeforeMoving() throws IOException, ReplacerException {
+		Path a = folder.newFile("a.txt").toPath();
+		Path b = folder.newFile("b.txt").toPath();
+		Files.write(a, "${VAR_1}".getBytes());
+		Files.write(b, "${VAR_1}".getBytes());
+		Files.write(Paths.get(b + ".bak"), "old".getBytes());
+		Properties properties = new Properties();
+		properties.setProperty("VAR_1", "A");
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.properties(properties))
+				.backupMode(BackupMode.CREATE).build());
+		Transaction transaction = new Transaction(replacer);
+		transaction.prepare(a);
+		transaction.prepare(b);
+		try {
+			transaction.commit();
+			Assert.fail();
+		} catch (BackupException e) {
+			Assert.assertEquals(EnvVarReplacer.ERROR_CODE_BACKUP_ERROR_FILE_EXIST, e.getErrorCode());
+		}
+		// the backup of b fails before a is moved
+		Assert.assertEquals("${VAR_1}", new String(Files.readAllBytes(a)));
+		Assert.assertEquals("${VAR_1}", new String(Files.readAllBytes(b)));
+		try (DirectoryStream<Path> tmp = Files.newDirectoryStream(folder.getRoot().toPath(), "*.tmp")) {
+			Assert.assertFalse(tmp.iterator().hasNext());
+		}
+	}
+
+	@Test
+	public void testTemplateCache() throws IOException, ReplacerException {
+		Path template = Paths.get("test-resources", "test8-issue7-template.xml");
+		Path target = folder.getRoot().toPath().resolve("test8-issue7.xml");
+		Path cacheDir = folder.getRoot().toPath().resolve("cache");
+		Properties properties = new Properties();
+		properties.setProperty("V_HOST", "HOST");
+		properties.setProperty("V_NAME", "NAME");
+		properties.setProperty("V_USER", "USER");
+		properties.setProperty("V_PASS", "PASS");
+
+		TemplateCache cache = new TemplateCache(2, cacheDir);
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.properties(properties))
+				.templateCache(cache).build());
+		for (int i = 0; i < 3; i++) {
+			replacer.replace(template, target);
+			Assert.assertTrue(compareFiles(target, Paths.get("test-resources", "test8-issue7-result.xml")));
+		}
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(2, cache.getHits());
+
+		// another process reads the compiled template from the directory
+		TemplateCache diskCache = new TemplateCache(2, cacheDir);
+		replacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.properties(properties))
+				.templateCache(diskCache).build());
+		replacer.replace(template, target);
+		Assert.assertTrue(compareFiles(target, Paths.get("test-resources", "test8-issue7-result.xml")));
+		Assert.assertEquals(0, diskCache.getMisses());
+		Assert.assertEquals(1, diskCache.getHits());
+
+		// modified files are compiled again
+		Path copy = folder.getRoot().toPath().resolve("template.xml");
+		Files.write(copy, "${V_HOST}".getBytes());
+		replacer.replace(copy, target);
+		Files.write(copy, "${V_NAME}:${V_PORT:1500}".getBytes());
+		replacer.replace(copy, target);
+		Assert.assertEquals("NAME:1500", new String(Files.readAllBytes(target)));
+		Assert.assertEquals(2, diskCache.getMisses());
+	}
+
+	@Test
+	public void testSkipUnchanged() throws IOException, ReplacerException {
+		Properties properties = new Properties();
+		properties.setProperty("VAR_1", "A");
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.properties(properties)).build());
+		Path template = folder.getRoot().toPath().resolve("template.txt");
+		Path target = folder.getRoot().toPath().resolve("target.txt");
+		Files.write(template, "x ${VAR_1}".getBytes());
+
+		Assert.assertTrue(replacer.replace(template, target).isModified());
+		FileTime time = FileTime.fromMillis(1000000000000L);
+		Files.setLastModifiedTime(target, time);
+		ReplaceResult result = replacer.replace(template, target);
+		Assert.assertFalse(result.isModified());
+		Assert.assertEquals(1, result.getLines());
+		Assert.assertEquals(time, Files.getLastModifiedTime(target));
+		Assert.assertFalse(Files.exists(Paths.get(template + ".tmp")));
+
+		// shorter and longer targets are written again
+		Files.write(target, "x ".getBytes());
+		Assert.assertTrue(replacer.replace(template, target).isModified());
+		Assert.assertEquals("x A", new String(Files.readAllBytes(target)));
+		Files.write(target, "x A\n".getBytes());
+		Assert.assertTrue(replacer.replace(template, target).isModified());
+		Assert.assertEquals("x A", new String(Files.readAllBytes(target)));
+		properties.setProperty("VAR_1", "B");
+		replacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.properties(properties)).build());
+		Assert.assertTrue(replacer.replace(template, target).isModified());
+		Assert.assertEquals("x B", new String(Files.readAllBytes(target)));
+	}
+
+	@Test
+	public void testSkipWithoutExpressions() throws IOException, ReplacerException {
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(key -> "A").build());
+		Path path = folder.getRoot().toPath().resolve("file.txt");
+		byte[] content = "$ {VAR_1} $$ {}\r\nline\r\n".getBytes();
+		Files.write(path, content);
+		ReplaceResult result = replacer.replace(path);
+		Assert.assertFalse(result.isModified());
+		Assert.assertArrayEquals(content, Files.readAllBytes(path));
+
+		// the expression starts at the end of an 8 bytes word
+		Files.write(path, "1234567${VAR_1}".getBytes());
+		Assert.assertTrue(replacer.replace(path).isModified());
+		Assert.assertEquals("1234567A", new String(Files.readAllBytes(path)));
+	}
+
+	@Test
+	public void testMemoryMapped() throws IOException, ReplacerException {
+		Properties properties = new Properties();
+		properties.setProperty("VAR_1", "\u00e1");
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.properties(properties))
+				.charset(StandardCharsets.UTF_8).memoryMapped(true).filterPrefixes("VAR_").build());
+		StringBuilder padding = new StringBuilder();
+		// long ranges are copied from channel to channel
+		for (int i = 0; i < 100000; i++) {
+			padding.append(i % 80 == 79 ? '\n' : 'x');
+		}
+		String input = "\u00f1 ${VAR_1}\r\n" + padding + "\r${VAR_2:${VAR_1}} ${OTHER}\r\n${VAR_1\n";
+		String expected = "\u00f1 \u00e1\r\n" + padding + "\r\u00e1 ${OTHER}\r\n${VAR_1\n";
+		Path path = folder.getRoot().toPath().resolve("file.txt");
+		Files.write(path, input.getBytes(StandardCharsets.UTF_8));
+
+		ReplaceResult result = replacer.replace(path);
+		Assert.assertTrue(result.isModified());
+		Assert.assertEquals(4 + padding.length() / 80, result.getLines());
+		Assert.assertEquals(expected, new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+
+		// lines are counted as in line mode, not only the lines with expressions
+		Replacer lineReplacer = new Replacer(ReplacerConfig.builder().valueSource(ValueSource.properties(properties))
+				.charset(StandardCharsets.UTF_8).filterPrefixes("VAR_").build());
+		Path lineOutput = folder.getRoot().toPath().resolve("line.txt");
+		Path mappedOutput = folder.getRoot().toPath().resolve("mapped.txt");
+		for (String text : new String[] { input, "", "a", "\r\n", "\n\n${VAR_1}", "a\r\n${VAR_1}\r\r\nb\n", "${VAR_1}\r" }) {
+			Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+			Assert.assertEquals(text, lineReplacer.replace(path, lineOutput).getLines(), replacer.replace(path, mappedOutput).getLines());
+		}
+
+		Path target = folder.getRoot().toPath().resolve("target.txt");
+		Files.write(path, input.getBytes(StandardCharsets.UTF_8));
+		Assert.assertTrue(replacer.replace(path, target).isModified());
+		Assert.assertFalse(replacer.replace(path, target).isModified());
+		Assert.assertEquals(expected, new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testReport() throws IOException, ReplacerException {
+		String input = "${VAR_1} ${VAR_2:a\\}b} ${OTHER}\n${VAR_3:${VAR_1}}\n${VAR_4:${OTHER:c\\}}}";
+		String expected = "x}y a}b ${OTHER}\nx}y\n${OTHER:c\\}}";
+		Path path = folder.getRoot().toPath().resolve("file.txt");
+		Path target = folder.getRoot().toPath().resolve("target.txt");
+		Files.write(path, input.getBytes());
+		// counters do not depend on the mode, compiled templates count what the scanner counts
+		Path cacheDir = folder.newFolder("cache").toPath();
+		List<ReplacerConfig.Builder> builders = Arrays.asList(ReplacerConfig.builder(), ReplacerConfig.builder().memoryMapped(true),
+				ReplacerConfig.builder().chunked(true), ReplacerConfig.builder().templateCache(new TemplateCache(16, cacheDir)),
+				ReplacerConfig.builder().templateCache(new TemplateCache(16, cacheDir)));
+		for (ReplacerConfig.Builder builder : builders) {
+			RunReport report = new RunReport();
+			Replacer replacer = new Replacer(builder.filterPrefixes("VAR_")
+					.valueSource(key -> key.equals("VAR_1") ? "x\\}y" : null).report(report).build());
+			Files.deleteIfExists(target);
+			Assert.assertTrue(replacer.replace(path, target).isModified());
+			Assert.assertEquals(expected, new String(Files.readAllBytes(target)));
+			Assert.assertFalse(replacer.replace(path, target).isModified());
+			report.finish();
+
+			String json = report.toJson();
+			Assert.assertTrue(json, json.contains("\"files\": 2,\n  \"modified\": 1,\n  \"failed\": 0"));
+			Assert.assertTrue(json, json.contains("\"input\": \"" + path + "\", \"output\": \"" + target + "\", \"modified\": true"));
+			Assert.assertTrue(json, json.contains("\"lines\": 3, \"placeholders\": 2, \"defaults\": 3, \"skipped\": 2, \"escapes\": 3, \"bytesIn\": "
+					+ input.length() + ", \"bytesOut\": " + expected.length() + "}"));
+			Assert.assertTrue(report.summary(), report.summary().startsWith("Report - 2 files (1 modified, 0 failed) in "));
+			Assert.assertTrue(report.summary(), report.summary().endsWith(": 6 lines, 4 placeholders, 6 defaults, 4 skipped, 6 escapes, "
+					+ input.length() * 2 + " bytes in, " + expected.length() * 2 + " bytes out"));
+		}
+
+		RunReport report = new RunReport();
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(key -> null).report(report).build());
+		try {
+			replacer.replace(path, target);
+			Assert.fail();
+		} catch (RequiredEnvironmentVariableException e) {
+			Assert.assertTrue(report.toJson(), report.toJson().contains("\"failed\": 1"));
+			Assert.assertTrue(report.toJson(), report.toJson().contains("\"error\": \"Environment Variable VAR_1 is required\""));
+		}
+	}
+
+	@Test
+	public void testBackupStrategies() throws IOException, ReplacerException {
+		Path path = folder.getRoot().toPath().resolve("file.txt");
+		Path backup = folder.getRoot().toPath().resolve("file.txt.bak");
+		Files.write(path, "${VAR_1}".getBytes());
+		Object fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+		Replacer replacer = new Replacer(ReplacerConfig.builder().backupMode(BackupMode.CREATE)
+				.backupStrategy(BackupStrategy.LINK).valueSource(key -> "a").build());
+		Assert.assertEquals(backup, replacer.replace(path).getBackup());
+		Assert.assertEquals("a", new String(Files.readAllBytes(path)));
+		Assert.assertEquals("${VAR_1}", new String(Files.readAllBytes(backup)));
+		if (fileKey != null) {
+			// the backup is the original file
+			Assert.assertEquals(fileKey, Files.readAttributes(backup, BasicFileAttributes.class).fileKey());
+		}
+
+		Path other = folder.getRoot().toPath().resolve("other.txt");
+		Path zip = folder.getRoot().toPath().resolve("backup.zip");
+		Files.write(path, "${VAR_1}".getBytes());
+		Files.write(other, "${VAR_2}".getBytes());
+		try (BackupArchive archive = new BackupArchive(zip, false)) {
+			replacer = new Replacer(ReplacerConfig.builder().backupMode(BackupMode.CREATE)
+					.backupStrategy(BackupStrategy.ARCHIVE).backupArchive(archive).valueSource(key -> "b").build());
+			Assert.assertEquals(zip, replacer.replace(path).getBackup());
+			Assert.assertEquals(zip, replacer.replace(other).getBackup());
+			// a reused replacer backs up the same file again, the first content is kept
+			Files.write(path, "${VAR_3}".getBytes());
+			Assert.assertEquals(zip, replacer.replace(path).getBackup());
+		}
+		Assert.assertEquals("b", new String(Files.readAllBytes(path)));
+		try (ZipFile archive = new ZipFile(zip.toFile())) {
+			Assert.assertEquals(2, archive.size());
+			String name = path.toAbsolutePath().toString().substring(1);
+			Assert.assertEquals("${VAR_1}", IOUtils.toString(archive.getInputStream(archive.getEntry(name)), StandardCharsets.UTF_8));
+		}
+		// an existing archive is not overridden
+		try (BackupArchive archive = new BackupArchive(zip, false)) {
+			replacer = new Replacer(ReplacerConfig.builder().backupMode(BackupMode.CREATE)
+					.backupStrategy(BackupStrategy.ARCHIVE).backupArchive(archive).build());
+			try {
+				replacer.checkBackup(path);
+				Assert.fail();
+			} catch (BackupException e) {
+				Assert.assertEquals(EnvVarReplacer.ERROR_CODE_BACKUP_ERROR_FILE_EXIST, e.getErrorCode());
+			}
+		}
+	}
+
+	@Test
+	public void testCharset() throws IOException, ReplacerException {
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(key -> "\u00e1")
+				.charset(StandardCharsets.ISO_8859_1).build());
+		Path path = folder.getRoot().toPath().resolve("file.txt");
+		Files.write(path, "\u00f1 ${VAR_1}".getBytes(StandardCharsets.ISO_8859_1));
+		replacer.replace(path);
+		Assert.assertEquals("\u00f1 \u00e1", new String(Files.readAllBytes(path), StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void testCharsetKeepsBomAndLineTerminators() throws IOException, ReplacerException {
+		Path dir = folder.getRoot().toPath();
+		String text = "\uFEFF\u00f1 ${VAR_1}\r\nplain\r\n\r${VAR_1}\nend\r\n";
+		String expected = "\uFEFF\u00f1 \u00e1\r\nplain\r\n\r\u00e1\nend\r\n";
+		List<ReplacerConfig.Builder> modes = Arrays.asList(ReplacerConfig.builder(),
+				ReplacerConfig.builder().memoryMapped(true), ReplacerConfig.builder().chunked(true),
+				ReplacerConfig.builder().templateCache(new TemplateCache(16)));
+		for (ReplacerConfig.Builder mode : modes) {
+			Replacer replacer = new Replacer(mode.valueSource(key -> "\u00e1").charset(StandardCharsets.UTF_8).build());
+			Path path = dir.resolve("utf8.txt");
+			Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+			replacer.replace(path);
+			Assert.assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(path));
+
+			// the mark selects the charset of the file and it is written as it was read
+			path = dir.resolve("utf16.txt");
+			Files.write(path, text.getBytes(StandardCharsets.UTF_16LE));
+			replacer.replace(path, dir.resolve("utf16-out.txt"));
+			Assert.assertArrayEquals(expected.getBytes(StandardCharsets.UTF_16LE), Files.readAllBytes(dir.resolve("utf16-out.txt")));
+		}
+
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(key -> "\u00e1").build());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		replacer.replace(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_16BE)), out);
+		Assert.assertArrayEquals(expected.getBytes(StandardCharsets.UTF_16BE), out.toByteArray());
+
+		// text without mark is written without mark
+		replacer = new Replacer(ReplacerConfig.builder().valueSource(key -> "\u00e1").charset(StandardCharsets.UTF_16).build());
+		Path path = dir.resolve("utf16-no-bom.txt");
+		Files.write(path, text.substring(1).getBytes(StandardCharsets.UTF_16BE));
+		replacer.replace(path);
+		Assert.assertArrayEquals(expected.substring(1).getBytes(StandardCharsets.UTF_16BE), Files.readAllBytes(path));
+	}
+
+	@Test
+	public void testChunked() throws IOException, ReplacerException {
+		ValueSource values = key -> key.startsWith("VAR_") || key.startsWith("env.") ? key.toLowerCase() + "\\}" : null;
+		Replacer lineReplacer = new Replacer(ReplacerConfig.builder().valueSource(values).build());
+		List<String> inputs = new ArrayList<String>();
+		inputs.add("\u00f1 ${VAR_1}\r\n${VAR_2:a\\}b}x${A${VAR_B}}\r${VAR_1\n$");
+		inputs.add("$${VAR_1}$ ${${VAR_1}} ${OTHER:${VAR_2:\\}}}\r\r\n${OTHER:a\n}${VAR_1:x}");
+		try (DirectoryStream<Path> templates = Files.newDirectoryStream(Paths.get("test-resources"), "*-template.xml")) {
+			for (Path template : templates) {
+				inputs.add(new String(Files.readAllBytes(template), StandardCharsets.UTF_8));
+			}
+		}
+		for (String input : inputs) {
+			StringWriter expected = new StringWriter();
+			String expectedKey = null;
+			long expectedLines = 0;
+			try {
+				expectedLines = lineReplacer.replace(new StringReader(input), expected).getLines();
+			} catch (RequiredEnvironmentVariableException e) {
+				expectedKey = e.getKey();
+			}
+			// expressions are split by the end of the chunks
+			for (int size : new int[] { 2, 3, 5, 8, 64 }) {
+				ExpressionScanner scanner = new ExpressionScanner(null, values::getValue);
+				StringWriter writer = new StringWriter();
+				try {
+					long lines = scanner.process(new StringReader(input), writer, new char[size], 1024);
+					Assert.assertNull(expectedKey);
+					Assert.assertEquals(expected.toString(), writer.toString());
+					Assert.assertEquals(expectedLines, lines);
+				} catch (RequiredEnvironmentVariableException e) {
+					Assert.assertEquals(expectedKey, e.getKey());
+				}
+			}
+		}
+
+		// longer expressions are an error
+		ExpressionScanner scanner = new ExpressionScanner(null, values::getValue);
+		try {
+			scanner.process(new StringReader("${VAR_1} ${OTHER:0123456789}"), new StringWriter(), new char[4], 12);
+			Assert.fail();
+		} catch (ExpressionScanner.ExpressionTooLongException e) {
+			Assert.assertEquals(9, e.getOffset());
+		}
+
+		Replacer replacer = new Replacer(ReplacerConfig.builder().valueSource(values).chunked(true).build());
+		Path path = folder.getRoot().toPath().resolve("file.txt");
+		Files.write(path, "a ${VAR_1}\r\nb ${OTHER:c}".getBytes(StandardCharsets.UTF_8));
+		ReplaceResult result = replacer.replace(path);
+		Assert.assertEquals(2, result.getLines());
+		Assert.assertEquals("a var_1}\r\nb c", new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+
+		char[] chars = new char[Replacer.MAX_EXPRESSION_SIZE];
+		Arrays.fill(chars, 'x');
+		String large = "a\n${OTHER:" + new String(chars) + "}";
+		Files.write(path, large.getBytes(StandardCharsets.UTF_8));
+		try {
+			replacer.replace(path);
+			Assert.fail();
+		} catch (ReplacerException e) {
+			Assert.assertEquals(EnvVarReplacer.ERROR_CODE_ERROR_READING_FILE, e.getErrorCode());
+			Assert.assertTrue(e.getMessage(), e.getMessage().endsWith(" chars at offset 2 of file: " + path));
+		}
+		Assert.assertEquals(large, new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Renders a file of 1GB with a single line in chunked mode with a heap of
+	 * 32MB, in another JVM
+	 */
+	@Test
+	public void testChunkedLargeFile() throws IOException, InterruptedException {
+		StringBuilder filler = new StringBuilder();
+		for (int i = 0; i < 15000; i++) {
+			filler.append("QUJD");
+		}
+		StringBuilder defaultValue = new StringBuilder();
+		for (int i = 0; i < 4000; i++) {
+			defaultValue.append('d');
+		}
+		String unit = "<v>${VAR_1}</v>${OTHER:" + defaultValue + "}" + filler;
+		String expectedUnit = "<v>value</v>" + defaultValue + filler;
+		long count = (1L << 30) / unit.length() + 1;
+
+		Path input = folder.getRoot().toPath().resolve("large.txt");
+		Path output = folder.getRoot().toPath().resolve("large-output.txt");
+		try (Writer writer = Files.newBufferedWriter(input, StandardCharsets.UTF_8)) {
+			for (long i = 0; i < count; i++) {
+				writer.write(unit);
+			}
+			writer.write('\n');
+		}
+		Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+				"-Xmx32m", "-cp", System.getProperty("java.class.path"), LargeFileRender.class.getName(),
+				input.toString(), output.toString()).inheritIO().start();
+		Assert.assertEquals(0, process.waitFor());
+		Files.delete(input);
+
+		Assert.assertEquals(count * expectedUnit.length() + 1, Files.size(output));
+		byte[] tail = new byte[expectedUnit.length() + 1];
+		try (SeekableByteChannel channel = Files.newByteChannel(output)) {
+			channel.position(channel.size() - tail.length);
+			ByteBuffer buffer = ByteBuffer.wrap(tail);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+				// reads the tail
+			}
+		}
+		Assert.assertEquals(expectedUnit + "\n", new String(tail, StandardCharsets.UTF_8));
+	}
+
+	static final class LargeFileRender {
+		public static void main(String[] args) throws ReplacerException {
+			Replacer replacer = new Replacer(ReplacerConfig.builder().chunked(true)
+					.valueSource(key -> key.equals("VAR_1") ? "value" : null).charset(StandardCharsets.UTF_8).build());
+			ReplaceResult result = replacer.replace(Paths.get(args[0]), Paths.get(args[1]));
+			System.exit(result.getLines() == 1 ? 0 : 1);
+		}
+	}
+
+	private boolean compareFiles(Path origin, Path target) throws IOException {
+		List<String> originContent = Files.readAllLines(origin);
+		List<String> targetContent = Files.readAllLines(target);
+		return originContent.equals(targetContent);
+	}
+}